@@ -19,7 +19,13 @@
  */
 package org.xwiki.contrib.rights;
 
+import java.util.List;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.observation.event.Event;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
 import org.xwiki.stability.Unstable;
 
 /**
@@ -31,7 +37,10 @@ import org.xwiki.stability.Unstable;
  *     <li>data: a List&lt;SecurityRuleDiff&gt; corresponding of the diff of rules before and after the
  *     changes</li>
  * </ul>
- *
+ * <p>
+ * Listeners can restrict the updates they receive to a subtree (e.g. a wiki or a space), to the rules of a subject or
+ * to a right, see {@link #RightUpdatedEvent(EntityReference, DocumentReference, Right)}. The entity criterion is
+ * checked first, and the diff is only read (and thus computed) when matching a subject or a right.
  *
  * @see SecurityRuleDiff
  * @version $Id$
@@ -40,9 +49,91 @@ import org.xwiki.stability.Unstable;
 @Unstable
 public class RightUpdatedEvent implements Event
 {
+    private final EntityReference entity;
+
+    private final DocumentReference subject;
+
+    private final Right right;
+
+    private final List<SecurityRuleDiff> diffs;
+
+    /**
+     * Creates an event matching all the rights updates.
+     */
+    public RightUpdatedEvent()
+    {
+        this(null, null, null);
+    }
+
+    /**
+     * Creates an event matching the rights updates meeting all the passed criteria.
+     *
+     * @param subtree if not {@code null}, only match the updates of the rules of this entity or of its descendants,
+     *     e.g. a {@link org.xwiki.model.reference.WikiReference} to match the updates of a wiki
+     * @param subject if not {@code null}, only match the updates changing rules concerning this user or group
+     * @param right if not {@code null}, only match the updates changing rules concerning this right
+     * @since 2.4
+     */
+    public RightUpdatedEvent(EntityReference subtree, DocumentReference subject, Right right)
+    {
+        this.entity = subtree;
+        this.subject = subject;
+        this.right = right;
+        this.diffs = null;
+    }
+
+    /**
+     * Creates the event fired when the rules of an entity are updated.
+     *
+     * @param entity the entity whose rules were updated
+     * @param diffs the diff of the rules of the entity, only read to match the events filtering on subjects or rights
+     * @since 2.4
+     */
+    public RightUpdatedEvent(EntityReference entity, List<SecurityRuleDiff> diffs)
+    {
+        this.entity = entity;
+        this.subject = null;
+        this.right = null;
+        this.diffs = diffs;
+    }
+
     @Override
     public boolean matches(Object otherEvent)
     {
-        return otherEvent instanceof RightUpdatedEvent;
+        if (!(otherEvent instanceof RightUpdatedEvent)) {
+            return false;
+        }
+        RightUpdatedEvent updateEvent = (RightUpdatedEvent) otherEvent;
+        return matchesEntity(updateEvent.entity) && matchesDiffs(updateEvent.diffs);
+    }
+
+    private boolean matchesEntity(EntityReference updatedEntity)
+    {
+        return this.entity == null
+            || (updatedEntity != null && (this.entity.equals(updatedEntity) || updatedEntity.hasParent(this.entity)));
+    }
+
+    private boolean matchesDiffs(List<SecurityRuleDiff> updateDiffs)
+    {
+        if (this.subject == null && this.right == null) {
+            return true;
+        }
+        if (updateDiffs == null) {
+            return false;
+        }
+        for (SecurityRuleDiff diff : updateDiffs) {
+            if (matchesRule(diff.getPreviousRule()) || matchesRule(diff.getCurrentRule())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesRule(ReadableSecurityRule rule)
+    {
+        return rule != null
+            && (this.right == null || rule.getRights().contains(this.right))
+            && (this.subject == null || rule.getUsers().contains(this.subject)
+                || rule.getGroups().contains(this.subject));
     }
 }
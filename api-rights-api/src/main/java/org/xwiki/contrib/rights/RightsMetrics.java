@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Metrics of the rights writes and of the notification of the {@link RightUpdatedEvent}s, to monitor the contention
+ * between concurrent writers and the backlog of the asynchronous notifications. The values are counted since the
+ * start of the wiki.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface RightsMetrics
+{
+    /**
+     * @return the number of times the lock of a document storing rights was acquired before writing it
+     */
+    long getLockAcquisitionCount();
+
+    /**
+     * @return the number of times the lock of a document storing rights was held by another writer when it was
+     *     requested
+     */
+    long getContendedLockAcquisitionCount();
+
+    /**
+     * @return the total time spent waiting for the locks of the documents storing rights, in milliseconds
+     */
+    long getTotalLockWaitTime();
+
+    /**
+     * @return the longest time spent waiting for the lock of a document storing rights, in milliseconds
+     */
+    long getMaxLockWaitTime();
+
+    /**
+     * @return {@code true} if the {@link RightUpdatedEvent}s are notified in background threads, {@code false} if they
+     *     are notified by the thread saving the rights
+     */
+    boolean isEventNotificationAsynchronous();
+
+    /**
+     * @return the number of rights updates currently waiting to be notified, always 0 when the notification is
+     *     synchronous
+     */
+    int getEventQueueDepth();
+
+    /**
+     * @return the maximum number of rights updates that were waiting to be notified by a same thread
+     */
+    int getMaxEventQueueDepth();
+
+    /**
+     * @return the number of rights updates that were notified
+     */
+    long getNotifiedUpdateCount();
+}
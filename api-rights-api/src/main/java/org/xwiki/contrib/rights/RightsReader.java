@@ -54,4 +54,38 @@ public interface RightsReader
      * @throws AuthorizationException on error
      */
     List<ReadableSecurityRule> getActualRules(EntityReference entityReference) throws AuthorizationException;
+
+    /**
+     * Gets the rules that the passed entity inherits from its ancestors, i.e. the actual rules of its parent (see
+     * {@link #getActualRules(EntityReference)}).
+     *
+     * @param entityReference the reference on which to check rules
+     * @return the list of security rules inherited by the passed entity, empty for the main wiki
+     * @throws AuthorizationException on error
+     * @since 2.4
+     */
+    List<ReadableSecurityRule> getInheritedRules(EntityReference entityReference) throws AuthorizationException;
+
+    /**
+     * Gets the fingerprint of the rules that are stored for the passed entity, see
+     * {@link SecurityRuleAbacus#computeFingerprint(List)}.
+     *
+     * @param entityReference the entity reference to get the rules fingerprint for
+     * @param withImplied whether implied rules should also be taken into account or only persisted rules.
+     * @return the fingerprint of the rules returned by {@link #getRules(EntityReference, boolean)}
+     * @throws AuthorizationException on error.
+     * @since 2.4
+     */
+    String getRulesFingerprint(EntityReference entityReference, boolean withImplied) throws AuthorizationException;
+
+    /**
+     * Gets the fingerprint of the rules that apply to the passed entity, see
+     * {@link SecurityRuleAbacus#computeFingerprint(List)}.
+     *
+     * @param entityReference the reference on which to check rules
+     * @return the fingerprint of the rules returned by {@link #getActualRules(EntityReference)}
+     * @throws AuthorizationException on error.
+     * @since 2.4
+     */
+    String getActualRulesFingerprint(EntityReference entityReference) throws AuthorizationException;
 }
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.AuthorizationException;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.stability.Unstable;
+
+/**
+ * A snapshot of the persisted rules of all the entities of a subtree (a space or a wiki). A snapshot can either be read
+ * live from the wiki or be built from rules that were stored earlier. Implementations are expected to load the rules of
+ * an entity only when they are asked for, so that snapshots of large subtrees can be compared without holding all
+ * their rules in memory.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public interface RightsSnapshot
+{
+    /**
+     * @return the references of the entities of the snapshot that have persisted rules, in ascending natural order
+     *     (see {@link EntityReference#compareTo(EntityReference)})
+     */
+    Iterator<EntityReference> getEntities();
+
+    /**
+     * @param entityReference an entity returned by {@link #getEntities()}
+     * @return the persisted rules of the passed entity in this snapshot
+     * @throws AuthorizationException if the rules cannot be read
+     */
+    List<ReadableSecurityRule> getRules(EntityReference entityReference) throws AuthorizationException;
+
+    /**
+     * @param entityReference an entity returned by {@link #getEntities()}
+     * @return the fingerprint of the persisted rules of the passed entity (see
+     *     {@link SecurityRuleAbacus#computeFingerprint(List)}), or {@code null} if it is not known without reading the
+     *     rules
+     * @throws AuthorizationException if the fingerprint cannot be read
+     */
+    String getFingerprint(EntityReference entityReference) throws AuthorizationException;
+}
@@ -20,11 +20,14 @@
 package org.xwiki.contrib.rights;
 
 import java.util.List;
+import java.util.Map;
 
 import org.xwiki.component.annotation.Role;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.QueryException;
+import org.xwiki.security.authorization.AuthorizationException;
 import org.xwiki.security.authorization.ReadableSecurityRule;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.security.authorization.RuleState;
@@ -88,11 +91,13 @@ public interface RightsWriter
      *            there. Writable rules can also be passed, since they are readable as well. An empty list will
      *            remove all current rules.
      * @param reference the reference to update rules on. Can be a document or a space or a wiki.
+     * @return {@link SaveRulesResult#SAVED} if the rules were saved, {@link SaveRulesResult#UNCHANGED} if the passed
+     *         rules are already stored or if {@code rules} or {@code reference} are null (since 2.4)
      * @throws XWikiException in case something goes wrong during save on the passed XWiki entity
      * @throws UnsupportedOperationException if access rules cannot be saved at the level of the passed reference (the
      *             reference is something else than a document, a space or a wiki)
      */
-    void saveRules(List<ReadableSecurityRule> rules, EntityReference reference)
+    SaveRulesResult saveRules(List<ReadableSecurityRule> rules, EntityReference reference)
         throws XWikiException, UnsupportedOperationException;
 
     /**
@@ -105,12 +110,92 @@ public interface RightsWriter
      *            there. Writable rules can also be passed, since they are readable as well.
      * @param reference the reference to update rules on. Can be a document or a space or a wiki.
      * @param persistenceStrategyName the name of the persistence strategy to apply for the rule to rights
+     * @return {@link SaveRulesResult#SAVED} if the rules were saved, {@link SaveRulesResult#UNCHANGED} if
+     *         {@code rules} or {@code reference} are null (since 2.4)
      * @throws XWikiException in case something goes wrong during save on the passed XWiki entity
      * @throws UnsupportedOperationException if access rules cannot be saved at the level of the passed reference (the
      *             reference is something else than a document, a space or a wiki)
      * @throws ComponentLookupException if no implementation of the persistence strategy with the passed name can be
      *             found
      */
-    void saveRules(List<ReadableSecurityRule> rules, EntityReference reference, String persistenceStrategyName)
+    SaveRulesResult saveRules(List<ReadableSecurityRule> rules, EntityReference reference,
+        String persistenceStrategyName)
         throws XWikiException, UnsupportedOperationException, ComponentLookupException;
+
+    /**
+     * Saves the passed rules on the given reference, like {@link #saveRules(List, EntityReference)}, but only if the
+     * rules currently stored on the reference are still the ones the caller read. This allows concurrent editors to
+     * detect that they would overwrite each other's changes without locking: read the rules and their fingerprint
+     * with {@link RightsReader#getRulesFingerprint(EntityReference, boolean)} (without implied rules), then save the
+     * new rules with that fingerprint. On {@link SaveRulesResult#CONFLICT}, read the rules again and retry, or use
+     * {@link #applyDiff(EntityReference, List)}.
+     * As with {@link #saveRules(List, EntityReference)}, if {@code rules} or {@code reference} are null, this call will
+     * have no effect.
+     *
+     * @param rules the new rules to set for the passed reference
+     * @param reference the reference to update rules on. Can be a document or a space or a wiki.
+     * @param expectedFingerprint the fingerprint of the rules the caller expects to be stored on the reference (see
+     *            {@link SecurityRuleAbacus#computeFingerprint(List)}), or {@code null} to save the rules whatever rules
+     *            are stored
+     * @return {@link SaveRulesResult#SAVED} if the rules were saved, {@link SaveRulesResult#UNCHANGED} if the passed
+     *         rules are already stored or if {@code rules} or {@code reference} are null,
+     *         {@link SaveRulesResult#CONFLICT} if the stored rules don't match the expected fingerprint
+     * @throws XWikiException in case something goes wrong during save on an XWiki entity
+     * @throws UnsupportedOperationException if the passed reference is something else than a document, a space or a
+     *             wiki
+     * @since 2.4
+     */
+    SaveRulesResult saveRulesIfMatch(List<ReadableSecurityRule> rules, EntityReference reference,
+        String expectedFingerprint) throws XWikiException, UnsupportedOperationException;
+
+    /**
+     * Saves the rules of several references at once, using the default persistence strategy. The rules of each
+     * reference replace the rules already in place on it, as with {@link #saveRules(List, EntityReference)}. References
+     * whose rules are stored in the same document (for example a space and its WebPreferences page) are saved
+     * together, so that each document is saved only once. A failure to save a document doesn't prevent the other
+     * documents from being saved. Entries with a null reference or null rules are ignored.
+     *
+     * @param rules the new rules to set, by reference. The references can be documents, spaces or wikis.
+     * @return the outcome of the save, by reference, in the order of the passed map
+     * @since 2.4
+     */
+    Map<EntityReference, SaveRulesResult> saveRules(Map<EntityReference, List<ReadableSecurityRule>> rules);
+
+    /**
+     * Applies the passed diffs to the rules persisted on the given reference, without reading them first: the diffs are
+     * applied to the rights objects currently stored (see {@link SecurityRuleAbacus#applyRuleDiff(List, List)}), so
+     * that the changes made on the reference since the diffs were computed are kept, and only the rights objects
+     * touched by the diffs are written.
+     *
+     * @param reference the reference to update rules on. Can be a document or a space or a wiki.
+     * @param diffs the changes to apply, for example computed with
+     *            {@link SecurityRuleAbacus#computeRuleDiff(List, List)} between the rules read by an editor and the
+     *            rules it wants to save
+     * @return {@link SaveRulesResult#SAVED} if the rules were saved, {@link SaveRulesResult#UNCHANGED} if the diffs
+     *         didn't change the stored rules
+     * @throws XWikiException in case something goes wrong during save on an XWiki entity
+     * @throws UnsupportedOperationException if the passed reference is something else than a document, a space or a
+     *             wiki
+     * @since 2.4
+     */
+    SaveRulesResult applyDiff(EntityReference reference, List<SecurityRuleDiff> diffs)
+        throws XWikiException, UnsupportedOperationException;
+
+    /**
+     * Removes the redundant rules persisted on the passed entity and on all its descendants, i.e. the rules that can be
+     * removed without changing the actual rules of the entities (see
+     * {@link SecurityRuleAbacus#getRedundantRules(List, List)}). Only the entities having redundant rules are saved,
+     * with their remaining rules packed in as few objects as possible (see {@link SecurityRuleAbacus#packRules(List)}).
+     *
+     * @param reference the root of the subtree to clean, a document, a space or a wiki
+     * @return the redundant rules that were removed, by entity. Entities without redundant rules are not included.
+     * @throws XWikiException in case something goes wrong during save on an XWiki entity
+     * @throws AuthorizationException if the rules of an entity cannot be read
+     * @throws QueryException if the entities having rules in the subtree cannot be listed
+     * @throws UnsupportedOperationException if the passed reference is something else than a document, a space or a
+     *             wiki
+     * @since 2.4
+     */
+    Map<EntityReference, List<ReadableSecurityRule>> removeRedundantRules(EntityReference reference)
+        throws XWikiException, AuthorizationException, QueryException, UnsupportedOperationException;
 }
@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * The outcome of saving the rules of a reference with {@link RightsWriter}.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public enum SaveRulesResult
+{
+    /**
+     * The rules were saved.
+     */
+    SAVED,
+
+    /**
+     * The rules were not saved because the stored objects already hold the same rules, one object per rule and
+     * regardless of their order, so that no new document version is created and no rights event is fired. A save
+     * with an explicit persistence strategy is never skipped, since the strategy may store the rules differently.
+     */
+    UNCHANGED,
+
+    /**
+     * The rules were not saved because the rules stored on the reference are not the ones the caller expected, i.e.
+     * they were changed by someone else since the caller read them (see
+     * {@link RightsWriter#saveRulesIfMatch(java.util.List, org.xwiki.model.reference.EntityReference, String)}).
+     */
+    CONFLICT,
+
+    /**
+     * The rules could not be saved, the reason is logged.
+     */
+    FAILED
+}
@@ -21,11 +21,15 @@ package org.xwiki.contrib.rights;
 
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.xwiki.component.annotation.Role;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.AuthorizationException;
 import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
 import org.xwiki.stability.Unstable;
 
 /**
@@ -49,6 +53,58 @@ public interface SecurityRuleAbacus
      */
     List<ReadableSecurityRule> normalizeRulesBySubject(List<ReadableSecurityRule> rules);
 
+    /**
+     * Pack given rules in as few rules as possible, so that they can be persisted with as few objects as possible. This
+     * is the inverse of {@link #normalizeRulesBySubject(List)}: the rules are first normalized and then all the
+     * subjects that have exactly the same rights with the same state are grouped in a single rule. The packing will
+     * ensure that:
+     * <ul>
+     * <li>there is only one rule per [rights, state]</li>
+     * <li>each subject appears in at most one rule per state</li>
+     * </ul>
+     * Rules without any right are dropped, and the result does not depend on the order of the passed rules.
+     *
+     * @param rules A list of rules
+     * @return The packed list of rules
+     * @since 2.4
+     */
+    @Unstable
+    List<ReadableSecurityRule> packRules(List<ReadableSecurityRule> rules);
+
+    /**
+     * Find the persisted rules of an entity that are redundant with the rules it inherits, i.e. the rules that can be
+     * removed from the entity without changing its actual rules (see
+     * {@link RightsReader#getActualRules(EntityReference)}). A right set on a subject of the entity is redundant if the
+     * same subject inherits the same right with the same state, unless the right is allowed on the entity and its
+     * inheritance can be overridden (see {@link Right#getInheritanceOverridePolicy()}): in this case the rules of the
+     * entity hide the inherited rules for that right, so they are redundant only if they are exactly the inherited
+     * ones.
+     *
+     * @param rules the rules persisted on the entity
+     * @param inheritedRules the rules inherited by the entity, see
+     *     {@link RightsReader#getInheritedRules(EntityReference)}
+     * @return the redundant rules, normalized (see {@link #normalizeRulesBySubject(List)}) and holding only the
+     *     redundant rights
+     * @since 2.4
+     */
+    @Unstable
+    List<ReadableSecurityRule> getRedundantRules(List<ReadableSecurityRule> rules,
+        List<ReadableSecurityRule> inheritedRules);
+
+    /**
+     * Remove from the persisted rules of an entity the rights that are redundant with the rules it inherits, see
+     * {@link #getRedundantRules(List, List)}.
+     *
+     * @param rules the rules persisted on the entity
+     * @param inheritedRules the rules inherited by the entity, see
+     *     {@link RightsReader#getInheritedRules(EntityReference)}
+     * @return the rules that are not redundant, normalized (see {@link #normalizeRulesBySubject(List)})
+     * @since 2.4
+     */
+    @Unstable
+    List<ReadableSecurityRule> removeRedundantRules(List<ReadableSecurityRule> rules,
+        List<ReadableSecurityRule> inheritedRules);
+
     /**
      * Compute a diff between the previous rules and the current ones.
      * This diff is computed by first normalizing the rules (see {@link #normalizeRulesBySubject(List)} and then by
@@ -69,6 +125,23 @@ public interface SecurityRuleAbacus
     List<SecurityRuleDiff> computeRuleDiff(List<ReadableSecurityRule> previousRules,
         List<ReadableSecurityRule> currentRules);
 
+    /**
+     * Apply a list of diffs, such as the ones computed by {@link #computeRuleDiff(List, List)}, to the passed rules. The
+     * diffs are applied grant by grant, a grant being a [subject, state, right] triple: the grants of the previous
+     * rules of the diffs are removed if they are still there, and the grants of their current rules are added if they
+     * are not already there. Hence the diffs can be applied to rules that changed since the diffs were computed without
+     * undoing the other changes. The rules not touched by the diffs are returned as they are, so that the objects
+     * storing them don't need to be written again.
+     *
+     * @param rules the rules to patch
+     * @param diffs the diffs to apply
+     * @return the patched rules, in the order of the passed rules, the touched rules being normalized by subject (see
+     *     {@link #normalizeRulesBySubject(List)}), followed by the added rules normalized by subject
+     * @since 2.4
+     */
+    @Unstable
+    List<ReadableSecurityRule> applyRuleDiff(List<ReadableSecurityRule> rules, List<SecurityRuleDiff> diffs);
+
     /**
      * Extract rules whose subject is a user from a set of rules. Returned rules are normalized, check the
      * {@link #normalizeRulesBySubject(List) normalizeRulesBySubject(List&lt;ReadableSecurityRule&gt;)} method.
@@ -98,4 +171,36 @@ public interface SecurityRuleAbacus
     @Unstable
     Map<DocumentReference, Pair<ReadableSecurityRule, ReadableSecurityRule>> organizeRulesBySubjectAndState(
         List<ReadableSecurityRule> rules);
+
+    /**
+     * Compute a fingerprint of the given rules. The fingerprint is computed on the normalized rules (see
+     * {@link #normalizeRulesBySubject(List)}), so two lists of rules that grant or deny the same rights to the same
+     * subjects have the same fingerprint, regardless of the order of the rules or of the way subjects are grouped in
+     * rules. Rules without any right are ignored. The fingerprint is a string, so it can be cached alongside the rules
+     * or used as an HTTP entity tag.
+     *
+     * @param rules A list of rules
+     * @return the hexadecimal representation of a 128-bit hash of the normalized rules
+     * @since 2.4
+     */
+    @Unstable
+    String computeFingerprint(List<ReadableSecurityRule> rules);
+
+    /**
+     * Compute the diffs between two snapshots of the rules of a subtree, entity by entity. The entities of both
+     * snapshots are walked in parallel in their natural order, so that only the rules of the entity currently compared
+     * are loaded. Entities for which both snapshots know the fingerprint of the rules are skipped without loading their
+     * rules when the fingerprints are equal. An entity that only exists in one of the snapshots is compared with an
+     * empty list of rules.
+     *
+     * @param previousSnapshot the snapshot of the rules before the changes
+     * @param currentSnapshot the snapshot of the rules after the changes
+     * @param consumer called for each entity whose rules changed, with the list of {@link SecurityRuleDiff} computed
+     *     by {@link #computeRuleDiff(List, List)}
+     * @throws AuthorizationException if the rules of an entity cannot be read from one of the snapshots
+     * @since 2.4
+     */
+    @Unstable
+    void computeSubtreeRuleDiff(RightsSnapshot previousSnapshot, RightsSnapshot currentSnapshot,
+        BiConsumer<EntityReference, List<SecurityRuleDiff>> consumer) throws AuthorizationException;
 }
@@ -0,0 +1,201 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Canonical ordering of security rules, so that lists of rules and diffs are always returned in the same order. Rules
+ * are ordered by state, then by users, then by groups and then by rights. The sort key of each rule is computed only
+ * once per sort, see {@link SortableSecurityRule}.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public final class SecurityRuleOrdering
+{
+    private static final char PART_SEPARATOR = '\u0001';
+
+    private static final char ITEM_SEPARATOR = '\u0002';
+
+    private static final char NAME_SEPARATOR = '\u0003';
+
+    /**
+     * The guest user is stored as a null reference in rules, it needs a key that is distinct from an empty subject
+     * list.
+     */
+    private static final String GUEST_KEY = "\u0004";
+
+    private SecurityRuleOrdering()
+    {
+    }
+
+    /**
+     * Computes the canonical sort key of a rule. Two rules have the same key if and only if they have the same state,
+     * users, groups and rights, regardless of the order in which these are returned by the rules.
+     *
+     * @param rule the rule to compute the key for
+     * @return the canonical sort key of the passed rule
+     */
+    public static String getSortKey(ReadableSecurityRule rule)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(rule.getState() != null ? rule.getState().ordinal() : -1);
+        builder.append(PART_SEPARATOR);
+        appendSorted(builder, serializeReferences(rule.getUsers()));
+        builder.append(PART_SEPARATOR);
+        appendSorted(builder, serializeReferences(rule.getGroups()));
+        builder.append(PART_SEPARATOR);
+        List<String> rightNames = new ArrayList<>();
+        if (rule.getRights() != null) {
+            for (Right right : rule.getRights()) {
+                rightNames.add(right.getName());
+            }
+        }
+        appendSorted(builder, rightNames);
+        return builder.toString();
+    }
+
+    /**
+     * Sorts rules in the canonical order.
+     *
+     * @param rules the rules to sort
+     * @param <T> the type of the rules
+     * @return a new list containing the passed rules in the canonical order
+     */
+    public static <T extends ReadableSecurityRule> List<T> sort(Collection<T> rules)
+    {
+        List<SortableSecurityRule<T>> sortableRules = new ArrayList<>(rules.size());
+        for (T rule : rules) {
+            sortableRules.add(new SortableSecurityRule<>(rule));
+        }
+        Collections.sort(sortableRules);
+        List<T> result = new ArrayList<>(sortableRules.size());
+        for (SortableSecurityRule<T> sortableRule : sortableRules) {
+            result.add(sortableRule.getRule());
+        }
+        return result;
+    }
+
+    /**
+     * Sorts diffs in the canonical order of their previous rule, or of their current rule for added rules.
+     *
+     * @param diffs the diffs to sort
+     * @return a new list containing the passed diffs in the canonical order
+     */
+    public static List<SecurityRuleDiff> sortDiffs(Collection<SecurityRuleDiff> diffs)
+    {
+        List<SortableDiff> sortableDiffs = new ArrayList<>(diffs.size());
+        for (SecurityRuleDiff diff : diffs) {
+            sortableDiffs.add(new SortableDiff(diff));
+        }
+        Collections.sort(sortableDiffs);
+        List<SecurityRuleDiff> result = new ArrayList<>(sortableDiffs.size());
+        for (SortableDiff sortableDiff : sortableDiffs) {
+            result.add(sortableDiff.diff);
+        }
+        return result;
+    }
+
+    private static List<String> serializeReferences(Collection<? extends EntityReference> references)
+    {
+        List<String> result = new ArrayList<>();
+        if (references != null) {
+            for (EntityReference reference : references) {
+                result.add(serializeReference(reference));
+            }
+        }
+        return result;
+    }
+
+    private static String serializeReference(EntityReference reference)
+    {
+        if (reference == null) {
+            return GUEST_KEY;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (EntityReference element : reference.getReversedReferenceChain()) {
+            if (builder.length() > 0) {
+                builder.append(NAME_SEPARATOR);
+            }
+            builder.append(element.getName());
+        }
+        return builder.toString();
+    }
+
+    private static void appendSorted(StringBuilder builder, List<String> values)
+    {
+        Collections.sort(values);
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                builder.append(ITEM_SEPARATOR);
+            }
+            builder.append(values.get(i));
+        }
+    }
+
+    /**
+     * A diff along with the precomputed sort key of its rule.
+     */
+    private static final class SortableDiff implements Comparable<SortableDiff>
+    {
+        private final SecurityRuleDiff diff;
+
+        private final String sortKey;
+
+        SortableDiff(SecurityRuleDiff diff)
+        {
+            this.diff = diff;
+            ReadableSecurityRule rule = diff.getPreviousRule() != null ? diff.getPreviousRule() : diff.getCurrentRule();
+            this.sortKey = rule != null ? getSortKey(rule) : "";
+        }
+
+        @Override
+        public int compareTo(SortableDiff other)
+        {
+            int result = this.sortKey.compareTo(other.sortKey);
+            if (result == 0) {
+                result = this.diff.getChangeType().compareTo(other.diff.getChangeType());
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof SortableDiff && compareTo((SortableDiff) o) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.sortKey.hashCode();
+        }
+    }
+}
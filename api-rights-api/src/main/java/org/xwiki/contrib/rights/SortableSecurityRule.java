@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.List;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.GroupSecurityReference;
+import org.xwiki.security.UserSecurityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Wraps a security rule along with its canonical sort key (see {@link SecurityRuleOrdering#getSortKey(
+ * ReadableSecurityRule)}), computed once when the wrapper is created, so that comparing rules does not allocate
+ * anything. The wrapped rule is expected not to be modified while it is wrapped.
+ *
+ * @param <T> the type of the wrapped rule
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public final class SortableSecurityRule<T extends ReadableSecurityRule>
+    implements ReadableSecurityRule, Comparable<SortableSecurityRule<?>>
+{
+    private final T rule;
+
+    private final String sortKey;
+
+    /**
+     * @param rule the rule to wrap
+     */
+    public SortableSecurityRule(T rule)
+    {
+        this.rule = rule;
+        this.sortKey = SecurityRuleOrdering.getSortKey(rule);
+    }
+
+    /**
+     * @return the wrapped rule
+     */
+    public T getRule()
+    {
+        return this.rule;
+    }
+
+    /**
+     * @return the canonical sort key of the wrapped rule
+     */
+    public String getSortKey()
+    {
+        return this.sortKey;
+    }
+
+    @Override
+    public List<DocumentReference> getUsers()
+    {
+        return this.rule.getUsers();
+    }
+
+    @Override
+    public List<DocumentReference> getGroups()
+    {
+        return this.rule.getGroups();
+    }
+
+    @Override
+    public RightSet getRights()
+    {
+        return this.rule.getRights();
+    }
+
+    @Override
+    public boolean isPersisted()
+    {
+        return this.rule.isPersisted();
+    }
+
+    @Override
+    public boolean match(Right right)
+    {
+        return this.rule.match(right);
+    }
+
+    @Override
+    public boolean match(GroupSecurityReference group)
+    {
+        return this.rule.match(group);
+    }
+
+    @Override
+    public boolean match(UserSecurityReference user)
+    {
+        return this.rule.match(user);
+    }
+
+    @Override
+    public RuleState getState()
+    {
+        return this.rule.getState();
+    }
+
+    @Override
+    public int compareTo(SortableSecurityRule<?> other)
+    {
+        return this.sortKey.compareTo(other.sortKey);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof SortableSecurityRule && this.sortKey.equals(((SortableSecurityRule<?>) o).sortKey);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.sortKey.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.rule.toString();
+    }
+}
@@ -67,8 +67,8 @@ public abstract class AbstractRightsWriter implements RightsWriter
     @Override
     public WritableSecurityRule createRule(ReadableSecurityRule ruleToCopy)
     {
-        return new WritableSecurityRuleImpl(ruleToCopy.getGroups(), ruleToCopy.getUsers(), ruleToCopy.getRights(),
-            ruleToCopy.getState());
+        return new WritableSecurityRuleImpl(new ArrayList<>(ruleToCopy.getGroups()),
+            new ArrayList<>(ruleToCopy.getUsers()), new RightSet(ruleToCopy.getRights()), ruleToCopy.getState());
     }
 
     /**
@@ -81,8 +81,7 @@ public abstract class AbstractRightsWriter implements RightsWriter
     {
         List<WritableSecurityRule> writableRules = new ArrayList<>();
         for (ReadableSecurityRule rule : rulesToCopy) {
-            writableRules.add(new WritableSecurityRuleImpl(rule.getGroups(), rule.getUsers(), rule.getRights(),
-                rule.getState()));
+            writableRules.add(createRule(rule));
         }
         return writableRules;
     }
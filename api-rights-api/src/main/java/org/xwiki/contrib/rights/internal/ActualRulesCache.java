@@ -0,0 +1,285 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+/**
+ * Cache of the actual rules of the entities (see
+ * {@link org.xwiki.contrib.rights.RightsReader#getActualRules(EntityReference)}), indexed by a tree following the
+ * references of the entities (wiki, spaces, document).
+ * <p>
+ * The actual rules of an entity depend on the rules of all its ancestors, so a change of the rules of an entity
+ * invalidates the actual rules of all its descendants: the rules and the subtree of the node of the entity are
+ * dropped, in a time proportional to the size of the subtree, and the entries of the other branches are kept. A
+ * change of the rules of the main wiki clears the whole cache, since the main wiki is the parent of all the wikis.
+ * <p>
+ * As for the {@link PersistedRulesCache}, the actual rules are only cached if they were not invalidated since they
+ * were computed (see {@link #getVersion(EntityReference)}). An invalidation marks the node of the entity with a new
+ * stamp, greater than all the previous ones, and the version of an entity is the greatest stamp on its path, so that
+ * only the computations of the entity and of its descendants are discarded.
+ * <p>
+ * The number of nodes is bounded by evicting the least recently used leaves. Using a node also uses its ancestors,
+ * after it, so that the least recently used node is always a leaf. The stamp of an evicted leaf is kept by its parent,
+ * so that the versions of the entities never go back.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = ActualRulesCache.class)
+@Singleton
+public class ActualRulesCache
+{
+    /**
+     * The least recently used leaves are evicted when the tree holds more nodes, to bound the memory it uses.
+     */
+    static final int MAX_NODES = 10000;
+
+    private static final char KEY_SEPARATOR = ':';
+
+    private Node root = new Node(null, null);
+
+    /**
+     * The nodes of the tree except the root, from the least to the most recently used.
+     */
+    private final Map<Node, Node> usedNodes = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int entries;
+
+    /**
+     * The last stamp given to an invalidated node, guarded by the lock of the cache.
+     */
+    private long clock;
+
+    /**
+     * @param entityReference an entity
+     * @return a copy of the cached actual rules of the passed entity, or {@code null} if they are not cached
+     */
+    public synchronized List<ReadableSecurityRule> get(EntityReference entityReference)
+    {
+        Node node = getNode(entityReference, false);
+        if (node == null || node.rules == null) {
+            return null;
+        }
+        use(node);
+        return copy(node.rules);
+    }
+
+    /**
+     * @param entityReference an entity
+     * @return the current version of the actual rules of the entity, to be passed to
+     *     {@link #put(EntityReference, List, long)}
+     */
+    public synchronized long getVersion(EntityReference entityReference)
+    {
+        long version = this.root.stamp;
+        Node node = this.root;
+        for (EntityReference element : entityReference.getReversedReferenceChain()) {
+            node = node.children.get(getKey(element));
+            if (node == null) {
+                break;
+            }
+            version = Math.max(version, node.stamp);
+        }
+        return version;
+    }
+
+    /**
+     * Caches the actual rules of an entity, unless they were invalidated since they were computed.
+     *
+     * @param entityReference an entity
+     * @param rules the actual rules of the entity
+     * @param computeVersion the version of the actual rules of the entity when they started being computed
+     */
+    public void put(EntityReference entityReference, List<ReadableSecurityRule> rules, long computeVersion)
+    {
+        List<ReadableSecurityRule> cachedRules = Collections.unmodifiableList(copy(rules));
+        synchronized (this) {
+            if (getVersion(entityReference) != computeVersion) {
+                return;
+            }
+            Node node = getNode(entityReference, true);
+            if (node.rules == null) {
+                this.entries++;
+            }
+            node.rules = cachedRules;
+            use(node);
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * Removes the cached actual rules of an entity and of all its descendants.
+     *
+     * @param securityReference the entity whose rules changed
+     */
+    public synchronized void invalidate(SecurityReference securityReference)
+    {
+        if (securityReference.getParentSecurityReference() == null) {
+            // The rules of the main wiki are inherited by all the wikis.
+            clear();
+            return;
+        }
+        // The node is kept, even if empty, to hold the stamp discarding the rules being computed for its subtree.
+        Node node = getNode(securityReference, true);
+        for (Node child : node.children.values()) {
+            removeSubtree(child);
+        }
+        node.children.clear();
+        if (node.rules != null) {
+            node.rules = null;
+            this.entries--;
+        }
+        node.stamp = ++this.clock;
+        use(node);
+        evictLeastRecentlyUsed();
+    }
+
+    /**
+     * @return the number of entities whose actual rules are cached
+     */
+    synchronized int size()
+    {
+        return this.entries;
+    }
+
+    /**
+     * @return the number of nodes of the tree, except the root
+     */
+    synchronized int getNodeCount()
+    {
+        return this.usedNodes.size();
+    }
+
+    private void clear()
+    {
+        this.root = new Node(null, null);
+        this.root.stamp = ++this.clock;
+        this.usedNodes.clear();
+        this.entries = 0;
+    }
+
+    /**
+     * Marks the passed node and its ancestors as the most recently used nodes, the ancestors last.
+     */
+    private void use(Node node)
+    {
+        for (Node current = node; current != this.root; current = current.parent) {
+            this.usedNodes.put(current, current);
+        }
+    }
+
+    private void evictLeastRecentlyUsed()
+    {
+        Iterator<Node> iterator = this.usedNodes.keySet().iterator();
+        while (this.usedNodes.size() > MAX_NODES) {
+            Node leaf = iterator.next();
+            iterator.remove();
+            leaf.parent.children.remove(leaf.key);
+            leaf.parent.stamp = Math.max(leaf.parent.stamp, leaf.stamp);
+            if (leaf.rules != null) {
+                this.entries--;
+            }
+        }
+    }
+
+    private void removeSubtree(Node node)
+    {
+        this.usedNodes.remove(node);
+        if (node.rules != null) {
+            this.entries--;
+        }
+        for (Node child : node.children.values()) {
+            removeSubtree(child);
+        }
+    }
+
+    private Node getNode(EntityReference entityReference, boolean create)
+    {
+        Node node = this.root;
+        for (EntityReference element : entityReference.getReversedReferenceChain()) {
+            String key = getKey(element);
+            Node child = node.children.get(key);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node(node, key);
+                node.children.put(key, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private String getKey(EntityReference element)
+    {
+        // The type tells apart a document from a nested space with the same name.
+        return element.getType().name() + KEY_SEPARATOR + element.getName();
+    }
+
+    /**
+     * The actual rules are computed as writable rules, so the callers get their own instances.
+     */
+    private static List<ReadableSecurityRule> copy(List<ReadableSecurityRule> rules)
+    {
+        List<ReadableSecurityRule> copy = new ArrayList<>(rules.size());
+        for (ReadableSecurityRule rule : rules) {
+            copy.add(new WritableSecurityRuleImpl(rule));
+        }
+        return copy;
+    }
+
+    /**
+     * A node of the tree, holding the actual rules of an entity if they are cached, the nodes of its children and the
+     * stamp of its last invalidation.
+     */
+    private static final class Node
+    {
+        private final Node parent;
+
+        private final String key;
+
+        private final Map<String, Node> children = new HashMap<>();
+
+        private List<ReadableSecurityRule> rules;
+
+        private long stamp;
+
+        Node(Node parent, String key)
+        {
+            this.parent = parent;
+            this.key = key;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.xwiki.contrib.rights.internal;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +33,7 @@ import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
 import org.xwiki.contrib.rights.WritableSecurityRule;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
@@ -60,6 +62,15 @@ public class DefaultRightsReader implements RightsReader
     @Inject
     private SecurityReferenceFactory securityReferenceFactory;
 
+    @Inject
+    private SecurityRuleAbacus securityRuleAbacus;
+
+    @Inject
+    private PersistedRulesCache persistedRulesCache;
+
+    @Inject
+    private ActualRulesCache actualRulesCache;
+
     /**
      * {@inheritDoc}
      *
@@ -69,6 +80,13 @@ public class DefaultRightsReader implements RightsReader
     public List<ReadableSecurityRule> getRules(EntityReference entityReference, boolean withImplied)
         throws AuthorizationException
     {
+        if (!withImplied) {
+            List<ReadableSecurityRule> cachedRules = this.persistedRulesCache.get(entityReference);
+            if (cachedRules != null) {
+                return cachedRules;
+            }
+        }
+        long cacheVersion = this.persistedRulesCache.getVersion(entityReference);
         // TODO: see how we should handle SecurityEntryReaderExtra from DefaultSecurityEntryReader#read(ref).
         SecurityReference securityReference = securityReferenceFactory.newEntityReference(entityReference);
         List<ReadableSecurityRule> rules = new ArrayList<>();
@@ -83,6 +101,9 @@ public class DefaultRightsReader implements RightsReader
             }
             rules.add((ReadableSecurityRule) rule);
         });
+        if (!withImplied) {
+            this.persistedRulesCache.put(entityReference, rules, cacheVersion);
+        }
         return rules;
     }
 
@@ -95,6 +116,13 @@ public class DefaultRightsReader implements RightsReader
     public List<ReadableSecurityRule> getActualRules(EntityReference entityReference)
         throws AuthorizationException
     {
+        SecurityReference entitySecurityReference = securityReferenceFactory.newEntityReference(entityReference);
+        List<ReadableSecurityRule> cachedRules = this.actualRulesCache.get(entitySecurityReference);
+        if (cachedRules != null) {
+            return cachedRules;
+        }
+        long cacheVersion = this.actualRulesCache.getVersion(entitySecurityReference);
+
         // Create a set containing allowed rights that were explicitly encountered going up the parent tree
         // It will be updated based on what is found when looking at parent pages
         // It only contains rights for which inheritanceOverridePolicy flag is true
@@ -107,7 +135,7 @@ public class DefaultRightsReader implements RightsReader
         List<ReadableSecurityRule> actualRules = new ArrayList<>();
 
         // Go up the parent tree to get actual rules
-        SecurityReference securityReference = securityReferenceFactory.newEntityReference(entityReference);
+        SecurityReference securityReference = entitySecurityReference;
 
         do {
             List<ReadableSecurityRule> inheritedPageRules = this.getRules(securityReference, false);
@@ -143,6 +171,29 @@ public class DefaultRightsReader implements RightsReader
             securityReference = securityReference.getParentSecurityReference();
         } while (securityReference != null);
 
+        this.actualRulesCache.put(entitySecurityReference, actualRules, cacheVersion);
         return actualRules;
     }
+
+    @Override
+    public List<ReadableSecurityRule> getInheritedRules(EntityReference entityReference)
+        throws AuthorizationException
+    {
+        SecurityReference parentReference =
+            securityReferenceFactory.newEntityReference(entityReference).getParentSecurityReference();
+        return parentReference != null ? getActualRules(parentReference) : Collections.emptyList();
+    }
+
+    @Override
+    public String getRulesFingerprint(EntityReference entityReference, boolean withImplied)
+        throws AuthorizationException
+    {
+        return this.securityRuleAbacus.computeFingerprint(getRules(entityReference, withImplied));
+    }
+
+    @Override
+    public String getActualRulesFingerprint(EntityReference entityReference) throws AuthorizationException
+    {
+        return this.securityRuleAbacus.computeFingerprint(getActualRules(entityReference));
+    }
 }
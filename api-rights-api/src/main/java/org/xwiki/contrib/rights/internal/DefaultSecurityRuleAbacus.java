@@ -21,10 +21,13 @@ package org.xwiki.contrib.rights.internal;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
@@ -35,10 +38,14 @@ import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.StringUtils;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.RightsSnapshot;
 import org.xwiki.contrib.rights.SecurityRuleAbacus;
 import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.contrib.rights.SecurityRuleOrdering;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.AuthorizationException;
 import org.xwiki.security.authorization.ReadableSecurityRule;
 import org.xwiki.security.authorization.RightSet;
 import org.xwiki.security.authorization.RuleState;
@@ -118,6 +125,55 @@ public class DefaultSecurityRuleAbacus implements SecurityRuleAbacus
         return new ArrayList<ReadableSecurityRule>(normalizedRulesMap.values());
     }
 
+    @Override
+    public List<ReadableSecurityRule> packRules(List<ReadableSecurityRule> rules)
+    {
+        // Sort the normalized rules so that the subjects of the packed rules are always in the same order
+        SortedMap<String, ReadableSecurityRule> sortedRules = new TreeMap<>();
+        for (ReadableSecurityRule rule : normalizeRulesBySubject(rules)) {
+            if (!rule.getRights().isEmpty()) {
+                sortedRules.put(SecurityRuleOrdering.getSortKey(rule), rule);
+            }
+        }
+
+        SortedMap<String, WritableSecurityRuleImpl> packedRules = new TreeMap<>();
+        for (ReadableSecurityRule rule : sortedRules.values()) {
+            // The key of a rule without subjects only depends on its state and rights
+            String packKey = SecurityRuleOrdering.getSortKey(new WritableSecurityRuleImpl(Collections.emptyList(),
+                Collections.emptyList(), rule.getRights(), rule.getState()));
+            WritableSecurityRuleImpl packedRule = packedRules.get(packKey);
+            if (packedRule == null) {
+                packedRule = new WritableSecurityRuleImpl(new ArrayList<>(), new ArrayList<>(),
+                    new RightSet(rule.getRights()), rule.getState());
+                packedRules.put(packKey, packedRule);
+            }
+            packedRule.getGroups().addAll(rule.getGroups());
+            packedRule.getUsers().addAll(rule.getUsers());
+        }
+
+        return new ArrayList<>(packedRules.values());
+    }
+
+    @Override
+    public List<ReadableSecurityRule> getRedundantRules(List<ReadableSecurityRule> rules,
+        List<ReadableSecurityRule> inheritedRules)
+    {
+        return new SecurityRuleRedundancy(normalizeRulesBySubject(rules), inheritedRules).getRedundantRules();
+    }
+
+    @Override
+    public List<ReadableSecurityRule> removeRedundantRules(List<ReadableSecurityRule> rules,
+        List<ReadableSecurityRule> inheritedRules)
+    {
+        return new SecurityRuleRedundancy(normalizeRulesBySubject(rules), inheritedRules).getRemainingRules();
+    }
+
+    @Override
+    public List<ReadableSecurityRule> applyRuleDiff(List<ReadableSecurityRule> rules, List<SecurityRuleDiff> diffs)
+    {
+        return new SecurityRulePatch(rules, diffs).getPatchedRules();
+    }
+
     private boolean isSameRuleUpdate(ReadableSecurityRule previousRule, ReadableSecurityRule currentRule)
     {
         boolean previousSubjectIsGroup = previousRule.getUsers().isEmpty();
@@ -147,10 +203,9 @@ public class DefaultSecurityRuleAbacus implements SecurityRuleAbacus
         normalizedPreviousRules.removeAll(intersectionRules);
         normalizedCurrentRules.removeAll(intersectionRules);
 
-        normalizedPreviousRules.sort(ReadableSecurityRuleComparator.INSTANCE);
-        normalizedCurrentRules.sort(ReadableSecurityRuleComparator.INSTANCE);
+        normalizedCurrentRules = SecurityRuleOrdering.sort(normalizedCurrentRules);
 
-        for (ReadableSecurityRule normalizedPreviousRule : normalizedPreviousRules) {
+        for (ReadableSecurityRule normalizedPreviousRule : SecurityRuleOrdering.sort(normalizedPreviousRules)) {
             boolean updated = false;
             for (ReadableSecurityRule currentRule : normalizedCurrentRules) {
                 if (isSameRuleUpdate(normalizedPreviousRule, currentRule)) {
@@ -176,31 +231,6 @@ public class DefaultSecurityRuleAbacus implements SecurityRuleAbacus
         return result;
     }
 
-    private static final class ReadableSecurityRuleComparator implements Comparator<ReadableSecurityRule>
-    {
-        private static final ReadableSecurityRuleComparator INSTANCE = new ReadableSecurityRuleComparator();
-
-        private ReadableSecurityRuleComparator()
-        {
-        }
-
-        @Override
-        public int compare(ReadableSecurityRule rule1, ReadableSecurityRule rule2)
-        {
-            if (rule1.equals(rule2)) {
-                return 0;
-            } else if (!rule1.getState().equals(rule2.getState())) {
-                return rule1.getState().compareTo(rule2.getState());
-            } else if (!rule1.getUsers().equals(rule2.getUsers())) {
-                return StringUtils.join(rule1.getUsers()).compareTo(StringUtils.join(rule2.getUsers()));
-            } else if (!rule1.getGroups().equals(rule2.getGroups())) {
-                return StringUtils.join(rule1.getGroups()).compareTo(StringUtils.join(rule2.getGroups()));
-            } else {
-                return StringUtils.join(rule1.getRights()).compareTo(StringUtils.join(rule2.getRights()));
-            }
-        }
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -260,6 +290,82 @@ public class DefaultSecurityRuleAbacus implements SecurityRuleAbacus
         return result;
     }
 
+    @Override
+    public String computeFingerprint(List<ReadableSecurityRule> rules)
+    {
+        List<String> keys = new ArrayList<>();
+        for (ReadableSecurityRule rule : normalizeRulesBySubject(rules)) {
+            if (rule.getRights() != null && !rule.getRights().isEmpty()) {
+                keys.add(SecurityRuleOrdering.getSortKey(rule));
+            }
+        }
+        return SecurityRuleKeys.getFingerprint(keys);
+    }
+
+    @Override
+    public void computeSubtreeRuleDiff(RightsSnapshot previousSnapshot, RightsSnapshot currentSnapshot,
+        BiConsumer<EntityReference, List<SecurityRuleDiff>> consumer) throws AuthorizationException
+    {
+        Iterator<EntityReference> previousEntities = previousSnapshot.getEntities();
+        Iterator<EntityReference> currentEntities = currentSnapshot.getEntities();
+        EntityReference previousEntity = nextEntity(previousEntities);
+        EntityReference currentEntity = nextEntity(currentEntities);
+
+        while (previousEntity != null || currentEntity != null) {
+            int comparison = compareEntities(previousEntity, currentEntity);
+            if (comparison < 0) {
+                // The entity doesn't have any rule anymore
+                reportRuleDiff(previousEntity, previousSnapshot.getRules(previousEntity), Collections.emptyList(),
+                    consumer);
+                previousEntity = nextEntity(previousEntities);
+            } else if (comparison > 0) {
+                // The entity didn't have any rule before
+                reportRuleDiff(currentEntity, Collections.emptyList(), currentSnapshot.getRules(currentEntity),
+                    consumer);
+                currentEntity = nextEntity(currentEntities);
+            } else {
+                if (!haveSameFingerprint(previousSnapshot, currentSnapshot, currentEntity)) {
+                    reportRuleDiff(currentEntity, previousSnapshot.getRules(previousEntity),
+                        currentSnapshot.getRules(currentEntity), consumer);
+                }
+                previousEntity = nextEntity(previousEntities);
+                currentEntity = nextEntity(currentEntities);
+            }
+        }
+    }
+
+    private EntityReference nextEntity(Iterator<EntityReference> entities)
+    {
+        return entities.hasNext() ? entities.next() : null;
+    }
+
+    private int compareEntities(EntityReference previousEntity, EntityReference currentEntity)
+    {
+        if (previousEntity == null) {
+            return 1;
+        } else if (currentEntity == null) {
+            return -1;
+        } else {
+            return previousEntity.compareTo(currentEntity);
+        }
+    }
+
+    private boolean haveSameFingerprint(RightsSnapshot previousSnapshot, RightsSnapshot currentSnapshot,
+        EntityReference entity) throws AuthorizationException
+    {
+        String previousFingerprint = previousSnapshot.getFingerprint(entity);
+        return previousFingerprint != null && previousFingerprint.equals(currentSnapshot.getFingerprint(entity));
+    }
+
+    private void reportRuleDiff(EntityReference entity, List<ReadableSecurityRule> previousRules,
+        List<ReadableSecurityRule> currentRules, BiConsumer<EntityReference, List<SecurityRuleDiff>> consumer)
+    {
+        List<SecurityRuleDiff> ruleDiffs = computeRuleDiff(previousRules, currentRules);
+        if (!ruleDiffs.isEmpty()) {
+            consumer.accept(entity, ruleDiffs);
+        }
+    }
+
     /*
      * Get the Guest user DocumentReference as it is stored in the Database (using a user named XWikiGuest) because in
      * rule objects Guest user reference is set to null.
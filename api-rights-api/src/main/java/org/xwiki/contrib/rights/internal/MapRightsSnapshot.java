@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.xwiki.contrib.rights.RightsSnapshot;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+/**
+ * A {@link RightsSnapshot} built from rules that are already known, for example rules that were stored earlier.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+public class MapRightsSnapshot implements RightsSnapshot
+{
+    private final SortedMap<EntityReference, List<ReadableSecurityRule>> rules = new TreeMap<>();
+
+    private final SortedMap<EntityReference, String> fingerprints = new TreeMap<>();
+
+    /**
+     * @param rules the persisted rules of the entities of the snapshot
+     * @param fingerprints the fingerprints of the rules of the entities, if they were stored along with the rules.
+     *     Can be null or not contain all the entities.
+     */
+    public MapRightsSnapshot(Map<? extends EntityReference, List<ReadableSecurityRule>> rules,
+        Map<? extends EntityReference, String> fingerprints)
+    {
+        this.rules.putAll(rules);
+        if (fingerprints != null) {
+            this.fingerprints.putAll(fingerprints);
+        }
+    }
+
+    @Override
+    public Iterator<EntityReference> getEntities()
+    {
+        return Collections.unmodifiableSet(this.rules.keySet()).iterator();
+    }
+
+    @Override
+    public List<ReadableSecurityRule> getRules(EntityReference entityReference)
+    {
+        List<ReadableSecurityRule> entityRules = this.rules.get(entityReference);
+        return entityRules != null ? entityRules : Collections.emptyList();
+    }
+
+    @Override
+    public String getFingerprint(EntityReference entityReference)
+    {
+        return this.fingerprints.get(entityReference);
+    }
+}
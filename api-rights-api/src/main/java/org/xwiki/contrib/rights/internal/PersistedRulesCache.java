@@ -0,0 +1,233 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+/**
+ * Cache of the persisted rules of the entities (see
+ * {@link org.xwiki.contrib.rights.RightsReader#getRules(EntityReference, boolean)}), filled by the rights reader and
+ * by the rights writer with the rules it just saved, and invalidated when the rights objects change.
+ * <p>
+ * A reader could otherwise cache rules it read just before a concurrent save invalidated them, so the rules are only
+ * cached if no invalidation of the same entity happened since they were read (see
+ * {@link #getVersion(EntityReference)}). The versions are kept per stripe of entities, so that the invalidations of
+ * other entities don't keep the rules of an entity from being cached, without keeping a version for each entity.
+ * <p>
+ * The rights writer replaces the rules of the entities it saves with {@link #beginUpdate(EntityReference)} and
+ * {@link #endUpdate(EntityReference, List, long)}, in between which the invalidation caused by its own save is
+ * ignored.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = PersistedRulesCache.class)
+@Singleton
+public class PersistedRulesCache implements Initializable, Disposable
+{
+    private static final String CACHE_ID = "rights.api.persistedRules";
+
+    private static final int CACHE_SIZE = 10000;
+
+    /**
+     * The number of stripes of versions, a power of two.
+     */
+    private static final int VERSION_STRIPES = 256;
+
+    private static final char KEY_SEPARATOR = ':';
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private Cache<List<ReadableSecurityRule>> cache;
+
+    /**
+     * The version of each stripe of entities, incremented on each invalidation of one of the entities of the stripe.
+     * The versions are only modified with the lock of the array held, so that a check of a version and the
+     * modification of the cache are atomic.
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    /**
+     * The keys of the entities whose rules are being updated by the current thread.
+     */
+    private final ThreadLocal<Set<String>> updatedKeys = ThreadLocal.withInitial(HashSet::new);
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the persisted rules cache", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * @param entityReference an entity
+     * @return a copy of the cached persisted rules of the passed entity, or {@code null} if they are not cached
+     */
+    public List<ReadableSecurityRule> get(EntityReference entityReference)
+    {
+        List<ReadableSecurityRule> rules = this.cache.get(getKey(entityReference));
+        return rules != null ? copy(rules) : null;
+    }
+
+    /**
+     * @param entityReference an entity
+     * @return the current version of the cached rules of the entity, to be passed to
+     *     {@link #put(EntityReference, List, long)}
+     */
+    public long getVersion(EntityReference entityReference)
+    {
+        return this.versions.get(getStripe(getKey(entityReference)));
+    }
+
+    /**
+     * Caches the persisted rules of an entity, unless they were invalidated since they were read.
+     *
+     * @param entityReference an entity
+     * @param rules the persisted rules of the entity
+     * @param readVersion the version of the cached rules of the entity when the rules were read
+     */
+    public void put(EntityReference entityReference, List<ReadableSecurityRule> rules, long readVersion)
+    {
+        String key = getKey(entityReference);
+        List<ReadableSecurityRule> cachedRules = Collections.unmodifiableList(copy(rules));
+        int stripe = getStripe(key);
+        synchronized (this.versions) {
+            if (this.versions.get(stripe) == readVersion) {
+                this.cache.set(key, cachedRules);
+            }
+        }
+    }
+
+    /**
+     * Removes the cached rules of an entity, unless they are being updated by the current thread.
+     *
+     * @param entityReference an entity
+     */
+    public void remove(EntityReference entityReference)
+    {
+        String key = getKey(entityReference);
+        if (this.updatedKeys.get().contains(key)) {
+            return;
+        }
+        int stripe = getStripe(key);
+        synchronized (this.versions) {
+            this.versions.incrementAndGet(stripe);
+            this.cache.remove(key);
+        }
+    }
+
+    /**
+     * Starts updating the rules of an entity before saving them: until {@link #endUpdate(EntityReference, List, long)}
+     * is called, the current thread doesn't invalidate the cached rules of the entity, since it replaces them
+     * afterwards.
+     *
+     * @param entityReference the entity whose rules are going to be saved
+     * @return the version of the cached rules of the entity before the save, to be passed to
+     *     {@link #endUpdate(EntityReference, List, long)}
+     */
+    public long beginUpdate(EntityReference entityReference)
+    {
+        String key = getKey(entityReference);
+        this.updatedKeys.get().add(key);
+        return this.versions.get(getStripe(key));
+    }
+
+    /**
+     * Ends the update of the rules of an entity started with {@link #beginUpdate(EntityReference)}. The rules read by
+     * other threads in between are not cached, and the saved rules are cached unless the rules of the entity were
+     * invalidated by someone else since the update started, e.g. by a concurrent save of the same document which
+     * didn't go through the rights writer.
+     *
+     * @param entityReference the entity whose rules were saved
+     * @param rules the saved rules of the entity, or {@code null} if they are not known, e.g. because the save failed
+     * @param beginVersion the version returned by {@link #beginUpdate(EntityReference)}
+     */
+    public void endUpdate(EntityReference entityReference, List<ReadableSecurityRule> rules, long beginVersion)
+    {
+        String key = getKey(entityReference);
+        this.updatedKeys.get().remove(key);
+        int stripe = getStripe(key);
+        synchronized (this.versions) {
+            boolean invalidated = this.versions.getAndIncrement(stripe) != beginVersion;
+            if (rules != null && !invalidated) {
+                this.cache.set(key, Collections.unmodifiableList(copy(rules)));
+            } else {
+                this.cache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * The rules and their rights are mutable, so the cache keeps its own instances and gives a copy to each caller.
+     */
+    private static List<ReadableSecurityRule> copy(List<ReadableSecurityRule> rules)
+    {
+        List<ReadableSecurityRule> copy = new ArrayList<>(rules.size());
+        for (ReadableSecurityRule rule : rules) {
+            copy.add(new WritableSecurityRuleImpl(rule));
+        }
+        return copy;
+    }
+
+    private int getStripe(String key)
+    {
+        return key.hashCode() & (VERSION_STRIPES - 1);
+    }
+
+    private String getKey(EntityReference entityReference)
+    {
+        // The type tells apart a document from a nested space with the same path.
+        return entityReference.getType().name() + KEY_SEPARATOR + this.serializer.serialize(entityReference);
+    }
+}
@@ -33,6 +33,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.contrib.rights.RightsMetrics;
 import org.xwiki.contrib.rights.RightsReader;
 import org.xwiki.contrib.rights.RightsWriter;
 import org.xwiki.contrib.rights.SecurityRuleAbacus;
@@ -84,6 +85,9 @@ public class RightsAPIService implements ScriptService
     @Inject
     private SecurityRuleAbacus securityRuleAbacus;
 
+    @Inject
+    private RightsMetrics rightsMetrics;
+
     @Inject
     private AuthorizationManager authorization;
 
@@ -128,6 +132,39 @@ public class RightsAPIService implements ScriptService
         }
     }
 
+    /**
+     * @param ref the {@link EntityReference} for which the rules fingerprint will be computed
+     * @param withImplied whether implied rules should also be taken into account or only persisted rules
+     * @return the fingerprint of the rules stored for the passed entity, that can be used to detect changes
+     * @since 2.4
+     */
+    public String getRulesFingerprint(EntityReference ref, Boolean withImplied)
+    {
+        try {
+            return rightsReader.getRulesFingerprint(ref, withImplied);
+        } catch (AuthorizationException e) {
+            xcontextProvider.get().put(ERROR_MESSAGE, e.toString());
+            logger.error(e.toString(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @param ref the {@link EntityReference} for which the actual rules fingerprint will be computed
+     * @return the fingerprint of the rules that are actually applying for <code>ref</code>
+     * @since 2.4
+     */
+    public String getActualRulesFingerprint(EntityReference ref)
+    {
+        try {
+            return rightsReader.getActualRulesFingerprint(ref);
+        } catch (AuthorizationException e) {
+            xcontextProvider.get().put(ERROR_MESSAGE, e.toString());
+            logger.error(e.toString(), e);
+            return null;
+        }
+    }
+
     /**
      * Saves the passed rules, with the default recycling strategy.
      *
@@ -298,4 +335,33 @@ public class RightsAPIService implements ScriptService
     {
         return this.securityRuleAbacus.organizeRulesBySubjectAndState(rules);
     }
+
+    /**
+     * Compute an order-independent fingerprint of a set of rules, after normalization.
+     *
+     * @param rules A list of rules
+     * @return the fingerprint of the passed rules
+     * @since 2.4
+     */
+    public String computeFingerprint(List<ReadableSecurityRule> rules)
+    {
+        return this.securityRuleAbacus.computeFingerprint(rules);
+    }
+
+    /**
+     * Gets the metrics of the rights writes and of the notification of the rights updates, for example to monitor the
+     * time spent waiting for the locks of the documents storing rights or the rights updates waiting to be notified.
+     *
+     * @return the metrics, or {@code null} if the current user is not an administrator of the main wiki
+     * @since 2.4
+     */
+    public RightsMetrics getMetrics()
+    {
+        XWikiContext xcontext = xcontextProvider.get();
+        if (authorization.hasAccess(Right.ADMIN, xcontext.getUserReference(),
+            new WikiReference(xcontext.getMainXWiki()))) {
+            return this.rightsMetrics;
+        }
+        return null;
+    }
 }
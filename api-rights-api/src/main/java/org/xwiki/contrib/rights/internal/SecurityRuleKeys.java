@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Helper computing 128-bit fingerprints of sets of canonical rule keys (see
+ * {@link org.xwiki.contrib.rights.SecurityRuleOrdering#getSortKey}).
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+final class SecurityRuleKeys
+{
+    private static final char KEY_SEPARATOR = '\n';
+
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    private static final int HEX_RADIX = 16;
+
+    private static final int HALF_BYTE_BITS = 4;
+
+    private static final int HALF_BYTE_MASK = 0xF;
+
+    private SecurityRuleKeys()
+    {
+    }
+
+    /**
+     * @param keys canonical rule keys, in any order
+     * @return the hexadecimal representation of the 128-bit fingerprint of the passed keys, which does not depend on
+     *     their order
+     */
+    static String getFingerprint(List<String> keys)
+    {
+        List<String> sortedKeys = new ArrayList<>(keys);
+        Collections.sort(sortedKeys);
+        MessageDigest digest = getDigest();
+        for (String key : sortedKeys) {
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) KEY_SEPARATOR);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> HALF_BYTE_BITS) & HALF_BYTE_MASK, HEX_RADIX));
+            hex.append(Character.forDigit(b & HALF_BYTE_MASK, HEX_RADIX));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest getDigest()
+    {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5.
+            throw new IllegalStateException("Failed to get the digest used for rules fingerprints", e);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.contrib.rights.SecurityRuleOrdering;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+
+/**
+ * Applies a list of {@link SecurityRuleDiff} to the rules of an entity. The diffs are applied at the level of the
+ * [subject, state, right] grants they hold, so that they can be applied to rules that are grouped differently than the
+ * rules the diffs were computed from, and to rules that changed in the meantime:
+ * <ul>
+ * <li>the grants of the previous rule of a deleted or updated rule are removed, if they are still there</li>
+ * <li>the grants of the current rule of an added or updated rule are added, if they are not already there</li>
+ * </ul>
+ * The rules that are not touched by the diffs are kept as they are, the touched rules are split by subject and the
+ * added grants are added as rules normalized by subject.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+final class SecurityRulePatch
+{
+    private final List<ReadableSecurityRule> patchedRules = new ArrayList<>();
+
+    /**
+     * @param rules the rules to patch
+     * @param diffs the diffs to apply
+     */
+    SecurityRulePatch(List<ReadableSecurityRule> rules, List<SecurityRuleDiff> diffs)
+    {
+        Set<String> removedKeys = new HashSet<>();
+        Map<String, ReadableSecurityRule> addedGrants = new LinkedHashMap<>();
+        for (SecurityRuleDiff diff : diffs) {
+            if (diff.getPreviousRule() != null) {
+                getGrants(diff.getPreviousRule()).forEach(grant -> removedKeys.add(getKey(grant)));
+            }
+            if (diff.getCurrentRule() != null) {
+                getGrants(diff.getCurrentRule()).forEach(grant -> addedGrants.put(getKey(grant), grant));
+            }
+        }
+        // A grant both removed and added, e.g. a right kept by an update, stays.
+        removedKeys.removeAll(addedGrants.keySet());
+
+        Set<String> presentKeys = new HashSet<>();
+        for (ReadableSecurityRule rule : rules) {
+            List<ReadableSecurityRule> grants = getGrants(rule);
+            if (grants.stream().map(SecurityRulePatch::getKey).noneMatch(removedKeys::contains)) {
+                this.patchedRules.add(rule);
+                grants.forEach(grant -> presentKeys.add(getKey(grant)));
+            } else {
+                addRemainingRules(rule, removedKeys, presentKeys);
+            }
+        }
+
+        Map<String, WritableSecurityRuleImpl> addedRules = new LinkedHashMap<>();
+        for (Map.Entry<String, ReadableSecurityRule> entry : addedGrants.entrySet()) {
+            if (presentKeys.add(entry.getKey())) {
+                ReadableSecurityRule grant = entry.getValue();
+                WritableSecurityRuleImpl addedRule = addedRules.computeIfAbsent(getSubjectKey(grant),
+                    key -> new WritableSecurityRuleImpl(new ArrayList<>(grant.getGroups()),
+                        new ArrayList<>(grant.getUsers()), new RightSet(), grant.getState()));
+                addedRule.getRights().addAll(grant.getRights());
+            }
+        }
+        this.patchedRules.addAll(addedRules.values());
+    }
+
+    /**
+     * @return the patched rules
+     */
+    List<ReadableSecurityRule> getPatchedRules()
+    {
+        return this.patchedRules;
+    }
+
+    private void addRemainingRules(ReadableSecurityRule rule, Set<String> removedKeys, Set<String> presentKeys)
+    {
+        for (DocumentReference group : rule.getGroups()) {
+            addRemainingRule(Collections.singletonList(group), Collections.emptyList(), rule, removedKeys, presentKeys);
+        }
+        for (DocumentReference user : rule.getUsers()) {
+            addRemainingRule(Collections.emptyList(), Collections.singletonList(user), rule, removedKeys, presentKeys);
+        }
+    }
+
+    private void addRemainingRule(List<DocumentReference> groups, List<DocumentReference> users,
+        ReadableSecurityRule rule, Set<String> removedKeys, Set<String> presentKeys)
+    {
+        RightSet remainingRights = new RightSet();
+        for (Right right : rule.getRights()) {
+            String key = getKey(new WritableSecurityRuleImpl(groups, users, new RightSet(right), rule.getState()));
+            if (!removedKeys.contains(key)) {
+                remainingRights.add(right);
+                presentKeys.add(key);
+            }
+        }
+        if (!remainingRights.isEmpty()) {
+            this.patchedRules.add(new WritableSecurityRuleImpl(new ArrayList<>(groups), new ArrayList<>(users),
+                remainingRights, rule.getState()));
+        }
+    }
+
+    /**
+     * @return the rules holding a single subject and a single right that the passed rule is made of
+     */
+    private static List<ReadableSecurityRule> getGrants(ReadableSecurityRule rule)
+    {
+        List<ReadableSecurityRule> grants = new ArrayList<>();
+        for (Right right : rule.getRights()) {
+            for (DocumentReference group : rule.getGroups()) {
+                grants.add(new WritableSecurityRuleImpl(Collections.singletonList(group), Collections.emptyList(),
+                    new RightSet(right), rule.getState()));
+            }
+            for (DocumentReference user : rule.getUsers()) {
+                grants.add(new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(user),
+                    new RightSet(right), rule.getState()));
+            }
+        }
+        return grants;
+    }
+
+    private static String getKey(ReadableSecurityRule grant)
+    {
+        return SecurityRuleOrdering.getSortKey(grant);
+    }
+
+    private static String getSubjectKey(ReadableSecurityRule grant)
+    {
+        return SecurityRuleOrdering.getSortKey(new WritableSecurityRuleImpl(grant.getGroups(), grant.getUsers(),
+            new RightSet(), grant.getState()));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.contrib.rights.SecurityRuleOrdering;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+
+/**
+ * Splits the rules persisted on an entity between the rules that are redundant with the rules the entity inherits and
+ * the rules that are not. The inherited rules are expected to be computed the same way as
+ * {@link org.xwiki.contrib.rights.RightsReader#getActualRules(org.xwiki.model.reference.EntityReference)}:
+ * <ul>
+ * <li>for a right whose inheritance can be overridden, an allow rule on the entity hides all the inherited rules for
+ * that right, so the rules of the entity for that right are redundant only if they are exactly the inherited ones</li>
+ * <li>for any other right, a [subject, state] pair set on the entity is redundant if it is also inherited</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+final class SecurityRuleRedundancy
+{
+    private final Map<Right, Set<String>> inheritedKeys;
+
+    private final Map<Right, Set<String>> localKeys;
+
+    private final Set<Right> overriddenRights = new HashSet<>();
+
+    private final List<ReadableSecurityRule> redundantRules = new ArrayList<>();
+
+    private final List<ReadableSecurityRule> remainingRules = new ArrayList<>();
+
+    /**
+     * @param normalizedRules the rules persisted on the entity, normalized by subject
+     * @param inheritedRules the rules inherited by the entity
+     */
+    SecurityRuleRedundancy(List<ReadableSecurityRule> normalizedRules, List<ReadableSecurityRule> inheritedRules)
+    {
+        this.inheritedKeys = getKeysByRight(inheritedRules);
+        this.localKeys = getKeysByRight(normalizedRules);
+        for (ReadableSecurityRule rule : normalizedRules) {
+            if (rule.getState() == RuleState.ALLOW) {
+                for (Right right : rule.getRights()) {
+                    if (right.getInheritanceOverridePolicy()) {
+                        this.overriddenRights.add(right);
+                    }
+                }
+            }
+        }
+
+        for (ReadableSecurityRule rule : normalizedRules) {
+            RightSet redundantRights = new RightSet();
+            RightSet remainingRights = new RightSet();
+            for (Right right : rule.getRights()) {
+                if (isRedundant(rule, right)) {
+                    redundantRights.add(right);
+                } else {
+                    remainingRights.add(right);
+                }
+            }
+            addRule(this.redundantRules, rule, redundantRights);
+            addRule(this.remainingRules, rule, remainingRights);
+        }
+    }
+
+    /**
+     * @return the normalized rules holding the rights that are redundant with the inherited rules
+     */
+    List<ReadableSecurityRule> getRedundantRules()
+    {
+        return this.redundantRules;
+    }
+
+    /**
+     * @return the normalized rules holding the rights that are not redundant with the inherited rules
+     */
+    List<ReadableSecurityRule> getRemainingRules()
+    {
+        return this.remainingRules;
+    }
+
+    private boolean isRedundant(ReadableSecurityRule rule, Right right)
+    {
+        Set<String> inheritedRightKeys = this.inheritedKeys.getOrDefault(right, Collections.emptySet());
+        if (this.overriddenRights.contains(right)) {
+            // The inherited rules for this right are hidden by the rules of the entity, they can only be removed
+            // altogether, when they are the same as the inherited ones.
+            return inheritedRightKeys.equals(this.localKeys.get(right));
+        } else {
+            return inheritedRightKeys.containsAll(getKeys(rule, right));
+        }
+    }
+
+    private static void addRule(List<ReadableSecurityRule> rules, ReadableSecurityRule rule, RightSet rights)
+    {
+        if (!rights.isEmpty()) {
+            rules.add(new WritableSecurityRuleImpl(new ArrayList<>(rule.getGroups()), new ArrayList<>(rule.getUsers()),
+                rights, rule.getState()));
+        }
+    }
+
+    private static Map<Right, Set<String>> getKeysByRight(List<ReadableSecurityRule> rules)
+    {
+        Map<Right, Set<String>> keys = new HashMap<>();
+        for (ReadableSecurityRule rule : rules) {
+            for (Right right : rule.getRights()) {
+                keys.computeIfAbsent(right, key -> new HashSet<>()).addAll(getKeys(rule, right));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the keys of the [subject, state] pairs of the passed rule, for the passed right
+     */
+    private static List<String> getKeys(ReadableSecurityRule rule, Right right)
+    {
+        List<String> keys = new ArrayList<>();
+        for (DocumentReference group : rule.getGroups()) {
+            keys.add(SecurityRuleOrdering.getSortKey(new WritableSecurityRuleImpl(Collections.singletonList(group),
+                Collections.emptyList(), new RightSet(right), rule.getState())));
+        }
+        for (DocumentReference user : rule.getUsers()) {
+            keys.add(SecurityRuleOrdering.getSortKey(new WritableSecurityRuleImpl(Collections.emptyList(),
+                Collections.singletonList(user), new RightSet(right), rule.getState())));
+        }
+        return keys;
+    }
+}
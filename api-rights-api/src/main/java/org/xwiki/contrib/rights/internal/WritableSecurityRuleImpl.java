@@ -102,7 +102,7 @@ public class WritableSecurityRuleImpl implements WritableSecurityRule
     {
         this.groups = new ArrayList<>(rule.getGroups());
         this.users = new ArrayList<>(rule.getUsers());
-        this.rights = rule.getRights();
+        this.rights = new RightSet(rule.getRights());
         this.state = rule.getState();
         this.isPersisted = rule.isPersisted();
     }
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.stability.Unstable;
+
+/**
+ * An opt-in asynchronous alternative to {@link RightsWriter#saveRules(List, EntityReference)}, for callers saving the
+ * rules of the same references many times in a short time, such as rights editors or scripts updating rights in loops.
+ * The writes are queued per storage document (the document holding the rights objects of the reference) and
+ * successive writes of the same user to the same reference are coalesced into the latest one, so that the consecutive
+ * writes of a user to a storage document are saved at once, with the batch
+ * {@link RightsWriter#saveRules(java.util.Map)}.
+ * <p>
+ * The queued writes are flushed after a short delay (the {@code rights.api.asyncWriter.flushDelay} configuration
+ * property, in milliseconds, 100 by default), on demand with {@link #flush()}, and when the wiki is stopped, in the
+ * order of the writes. The coalesced writes of a user are saved in the context of the latest of them.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface AsyncRightsWriter
+{
+    /**
+     * Queues the passed rules to be saved on the passed reference, replacing the rules already queued for it. As with
+     * {@link RightsWriter#saveRules(List, EntityReference)}, the rules replace the rules persisted on the reference.
+     *
+     * @param rules the new rules of the passed reference, copied when queued
+     * @param reference the reference to save rules on, a document or a space or a wiki
+     * @return a future completed once the rules (or the rules of a later write to the same reference, that replaced
+     *     them) are saved, with the outcome of the save, or completed exceptionally if the save failed unexpectedly or
+     *     if the writer is already stopped
+     * @throws UnsupportedOperationException if access rules cannot be saved at the level of the passed reference
+     */
+    CompletableFuture<SaveRulesResult> saveRules(List<ReadableSecurityRule> rules, EntityReference reference)
+        throws UnsupportedOperationException;
+
+    /**
+     * Saves the queued writes without waiting for the flush delay.
+     *
+     * @return a future completed once all the writes queued before this call are saved, or completed exceptionally if
+     *     the writer is already stopped
+     */
+    CompletableFuture<Void> flush();
+}
@@ -0,0 +1,62 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Consolidates the notifications of the rights updates done by a bulk operation, like an import: the
+ * {@link RightUpdatedEvent}s of an entity are fired once, when the operation ends, with the diff between the rules
+ * before the operation and after it. The caches are still invalidated on each update, on all the members of the
+ * cluster. The XAR imports are bulk operations.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface BulkRightsUpdates
+{
+    /**
+     * Starts a bulk operation in the current execution context, to be used in a try-with-resources statement so that
+     * the updates are notified even if the operation fails. Bulk operations can be nested, the updates being notified
+     * when the outermost one is closed. Without an execution context, the updates are notified right away.
+     *
+     * @return the started bulk operation
+     */
+    Bulk begin();
+
+    /**
+     * A bulk operation started with {@link BulkRightsUpdates#begin()}.
+     *
+     * @version $Id$
+     * @since 2.4
+     */
+    interface Bulk extends AutoCloseable
+    {
+        /**
+         * Ends the bulk operation and notifies the rights updates done during it, if it is the outermost one. Closing
+         * it again has no effect.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.stability.Unstable;
+
+/**
+ * A change of the rules of an entity, as recorded by the {@link RightsChangeJournal}.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public class RightsChange
+{
+    private final long timestamp;
+
+    private final EntityReference entity;
+
+    private final List<SecurityRuleDiff> diffs;
+
+    /**
+     * @param timestamp the time of the change, in milliseconds since the epoch
+     * @param entity the entity whose rules changed
+     * @param diffs the diff of the rules of the entity
+     */
+    public RightsChange(long timestamp, EntityReference entity, List<SecurityRuleDiff> diffs)
+    {
+        this.timestamp = timestamp;
+        this.entity = entity;
+        this.diffs = diffs;
+    }
+
+    /**
+     * @return the time of the change, in milliseconds since the epoch
+     */
+    public long getTimestamp()
+    {
+        return this.timestamp;
+    }
+
+    /**
+     * @return the entity whose rules changed
+     */
+    public EntityReference getEntity()
+    {
+        return this.entity;
+    }
+
+    /**
+     * @return the diff of the rules of the entity
+     */
+    public List<SecurityRuleDiff> getDiffs()
+    {
+        return this.diffs;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+            .append("timestamp", this.timestamp)
+            .append("entity", this.entity)
+            .append("diffs", this.diffs)
+            .toString();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.stability.Unstable;
+
+/**
+ * An append-only journal of the changes of the rules of the wiki (see {@link RightUpdatedEvent}), kept in the
+ * permanent directory, so that the indexes derived from the rules can be updated after a restart, or answer what
+ * changed since a given time, without reading all the rules again.
+ * <p>
+ * The journal is disabled by default, and enabled with the {@code rights.api.journal.enabled} configuration property.
+ * The changes are written sequentially and flushed to the disk periodically (the
+ * {@code rights.api.journal.syncInterval} configuration property, in milliseconds, 1000 by default), so the changes
+ * of the last interval can be lost if the server crashes. Only the most recent changes are kept: once the current
+ * file of the journal reaches the {@code rights.api.journal.maxSize} configuration property (in bytes, 64 MB by
+ * default, 0 to keep all the changes), it replaces the previous file and a new file is started.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface RightsChangeJournal
+{
+    /**
+     * @return {@code true} if the journal is enabled, {@code false} otherwise
+     */
+    boolean isEnabled();
+
+    /**
+     * Records a change of the rules of an entity, timestamped with the current time. Does nothing if the journal is
+     * disabled.
+     *
+     * @param entity the entity whose rules changed
+     * @param diffs the diff of the rules of the entity
+     * @throws IOException if the change cannot be written
+     */
+    void append(EntityReference entity, List<SecurityRuleDiff> diffs) throws IOException;
+
+    /**
+     * Reads the changes recorded since the passed time, in the order they were recorded. The changes recorded while
+     * reading are not read.
+     *
+     * @param since the time from which to read the changes, in milliseconds since the epoch, inclusive
+     * @param consumer called with each change recorded since the passed time
+     * @throws IOException if the journal cannot be read
+     */
+    void replay(long since, Consumer<RightsChange> consumer) throws IOException;
+
+    /**
+     * @param since the time from which to read the changes, in milliseconds since the epoch, inclusive
+     * @return the changes recorded since the passed time, in the order they were recorded
+     * @throws IOException if the journal cannot be read
+     */
+    List<RightsChange> getChangesSince(long since) throws IOException;
+}
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.stability.Unstable;
+
+/**
+ * A record of a rights import feed (see {@link RightsImporter}): the rights granted or denied to a single user or
+ * group on an entity.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public class RightsImportRecord
+{
+    private final EntityReference entity;
+
+    private final DocumentReference subject;
+
+    private final boolean group;
+
+    private final RightSet rights;
+
+    private final RuleState state;
+
+    /**
+     * @param entity the entity the rights apply to, a document, a space or a wiki
+     * @param subject the user or group the rights are granted or denied to
+     * @param group {@code true} if the subject is a group, {@code false} if it is a user
+     * @param rights the granted or denied rights
+     * @param state {@link RuleState#ALLOW} to grant the rights, {@link RuleState#DENY} to deny them
+     */
+    public RightsImportRecord(EntityReference entity, DocumentReference subject, boolean group, RightSet rights,
+        RuleState state)
+    {
+        this.entity = entity;
+        this.subject = subject;
+        this.group = group;
+        this.rights = rights;
+        this.state = state;
+    }
+
+    /**
+     * @return the entity the rights apply to, a document, a space or a wiki
+     */
+    public EntityReference getEntity()
+    {
+        return this.entity;
+    }
+
+    /**
+     * @return the user or group the rights are granted or denied to
+     */
+    public DocumentReference getSubject()
+    {
+        return this.subject;
+    }
+
+    /**
+     * @return {@code true} if the subject is a group, {@code false} if it is a user
+     */
+    public boolean isGroup()
+    {
+        return this.group;
+    }
+
+    /**
+     * @return the granted or denied rights
+     */
+    public RightSet getRights()
+    {
+        return this.rights;
+    }
+
+    /**
+     * @return {@link RuleState#ALLOW} if the rights are granted, {@link RuleState#DENY} if they are denied
+     */
+    public RuleState getState()
+    {
+        return this.state;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this).append("entity", this.entity).append("subject", this.subject)
+            .append("group", this.group).append("rights", this.rights).append("state", this.state).toString();
+    }
+}
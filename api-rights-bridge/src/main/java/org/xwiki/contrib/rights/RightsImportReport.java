@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.stability.Unstable;
+
+/**
+ * The outcome of a rights import (see {@link RightsImporter}).
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public class RightsImportReport
+{
+    private final long recordCount;
+
+    private final long invalidRecordCount;
+
+    private final Map<SaveRulesResult, Integer> entityCounts;
+
+    private final List<EntityReference> failedEntities;
+
+    /**
+     * @param recordCount the number of records read from the feed, including the invalid ones
+     * @param invalidRecordCount the number of records that were skipped because they could not be understood
+     * @param entityCounts the number of imported entities, by outcome
+     * @param failedEntities the entities whose rules could not be saved
+     */
+    public RightsImportReport(long recordCount, long invalidRecordCount, Map<SaveRulesResult, Integer> entityCounts,
+        List<EntityReference> failedEntities)
+    {
+        this.recordCount = recordCount;
+        this.invalidRecordCount = invalidRecordCount;
+        this.entityCounts = new EnumMap<>(SaveRulesResult.class);
+        this.entityCounts.putAll(entityCounts);
+        this.failedEntities = Collections.unmodifiableList(failedEntities);
+    }
+
+    /**
+     * @return the number of records read from the feed, including the invalid ones
+     */
+    public long getRecordCount()
+    {
+        return this.recordCount;
+    }
+
+    /**
+     * @return the number of records that were skipped because they could not be understood, the reason being logged
+     */
+    public long getInvalidRecordCount()
+    {
+        return this.invalidRecordCount;
+    }
+
+    /**
+     * @param result an outcome of saving the rules of an entity
+     * @return the number of imported entities with the passed outcome. An entity appearing in several batches of the
+     *     feed is counted once: as failed if any of its batches failed, otherwise as saved if any of them changed its
+     *     rules.
+     */
+    public int getEntityCount(SaveRulesResult result)
+    {
+        return this.entityCounts.getOrDefault(result, 0);
+    }
+
+    /**
+     * @return the entities whose rules could not be saved, the reason being logged
+     */
+    public List<EntityReference> getFailedEntities()
+    {
+        return this.failedEntities;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Imports large rights feeds, for example rights migrated from another system. The feed is read as a stream: the
+ * records are buffered per storage document (the document holding the rights objects of the entity) in bounded
+ * batches, the rules of each entity are packed (see {@link SecurityRuleAbacus#packRules(java.util.List)}) and the
+ * batches are saved with {@link RightsWriter#saveRules(java.util.Map)}, so that the rules of the feed are never held in
+ * memory at once.
+ * <p>
+ * The imported rules replace the rules already persisted on the entities of the feed, "What you send is what you get".
+ * The records of an entity don't need to be contiguous in the feed, but feeds sorted by entity are imported faster.
+ * To tell the entities already imported by a previous batch, whose rules are merged with the new records, from the
+ * entities whose persisted rules are replaced, an import remembers the reference of each entity it saved until it
+ * ends. The memory used by an import thus grows with the number of distinct entities of the feed (not with the number
+ * of records), so feeds of many millions of entities should be split, each part holding all the records of its
+ * entities.
+ * <p>
+ * The rights updates of each batch are notified once the batch is saved (see {@link BulkRightsUpdates}). An import
+ * run inside a bulk operation started by the caller keeps the previous and current rules of each entity it saves until
+ * that bulk operation ends, so large feeds should not be imported inside one.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface RightsImporter
+{
+    /**
+     * Imports the passed records. This is the extension point for feed formats not supported by this API, such as
+     * JSON Lines: parse the feed lazily into an iterator of records and pass it here.
+     *
+     * @param records the records to import, consumed lazily
+     * @param batchSize the maximum number of entities buffered for a group of storage documents before they are saved
+     * @param concurrency the maximum number of batches saved in parallel. With {@code 1} the batches are saved in the
+     *     calling thread.
+     * @return the outcome of the import
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the batches to be saved
+     */
+    RightsImportReport importRules(Iterator<RightsImportRecord> records, int batchSize, int concurrency)
+        throws InterruptedException;
+
+    /**
+     * Imports a CSV feed with one record per line and the columns {@code entity,subject,rights,state}, for example:
+     *
+     * <pre>
+     * entity,subject,rights,state
+     * document:xwiki:Sandbox.WebHome,user:XWiki.JohnDoe,view|edit,allow
+     * space:xwiki:Sandbox,group:XWiki.XWikiAllGroup,edit,deny
+     * wiki:xwiki,group:XWiki.XWikiAdminGroup,admin,allow
+     * </pre>
+     *
+     * The entity is prefixed by its type ({@code wiki}, {@code space} or {@code document}) and is resolved relatively
+     * to the current wiki. The subject is prefixed by {@code user} or {@code group} and is resolved relatively to the
+     * wiki of the entity. The rights are separated by {@code |} or spaces. The header line is optional, blank lines and
+     * lines starting with {@code #} are ignored, and fields can be quoted. Invalid lines are logged and skipped.
+     *
+     * @param reader the CSV feed, read line by line
+     * @param batchSize the maximum number of entities buffered for a group of storage documents before they are saved
+     * @param concurrency the maximum number of batches saved in parallel. With {@code 1} the batches are saved in the
+     *     calling thread.
+     * @return the outcome of the import
+     * @throws IOException if the feed cannot be read
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the batches to be saved
+     */
+    RightsImportReport importCSV(Reader reader, int batchSize, int concurrency)
+        throws IOException, InterruptedException;
+}
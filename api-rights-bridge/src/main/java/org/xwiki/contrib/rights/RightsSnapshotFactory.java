@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.query.QueryException;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Creates {@link RightsSnapshot}s, to be compared with
+ * {@link SecurityRuleAbacus#computeSubtreeRuleDiff(RightsSnapshot, RightsSnapshot, java.util.function.BiConsumer)}.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface RightsSnapshotFactory
+{
+    /**
+     * Creates a snapshot of the rules currently persisted in the passed subtree. Only the references of the entities
+     * having rules are collected when the snapshot is created, the rules themselves are read from the wiki when the
+     * snapshot is walked.
+     *
+     * @param rootReference the root of the subtree, a space or a wiki
+     * @return a snapshot of the rules persisted on the passed entity and all its descendants
+     * @throws QueryException if the entities having rules cannot be listed
+     * @throws UnsupportedOperationException if the passed reference is not a space or a wiki
+     */
+    RightsSnapshot createLiveSnapshot(EntityReference rootReference)
+        throws QueryException, UnsupportedOperationException;
+
+    /**
+     * Creates a snapshot from rules that are already known, for example rules that were stored earlier.
+     *
+     * @param rules the persisted rules of the entities of the snapshot
+     * @param fingerprints the fingerprints of the rules of the entities, if they were stored along with the rules, so
+     *     that unchanged entities can be skipped without comparing their rules. Can be null.
+     * @return the snapshot of the passed rules
+     */
+    RightsSnapshot createSnapshot(Map<? extends EntityReference, List<ReadableSecurityRule>> rules,
+        Map<? extends EntityReference, String> fingerprints);
+}
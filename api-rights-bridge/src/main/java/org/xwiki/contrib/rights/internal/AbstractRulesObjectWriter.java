@@ -26,7 +26,6 @@ import org.xwiki.contrib.rights.RulesObjectWriter;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.security.authorization.ReadableSecurityRule;
-import org.xwiki.security.authorization.Right;
 import org.xwiki.security.authorization.RuleState;
 import org.xwiki.security.internal.XWikiConstants;
 
@@ -35,6 +34,7 @@ import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.BaseProperty;
+import com.xpn.xwiki.objects.classes.BaseClass;
 import com.xpn.xwiki.objects.classes.PropertyClass;
 
 /**
@@ -53,6 +53,23 @@ public abstract class AbstractRulesObjectWriter implements RulesObjectWriter
     @Named("compactwiki")
     private EntityReferenceSerializer<String> entityReferenceSerializer;
 
+    /**
+     * Resolves the metadata of the rights class once, so that it can be reused to write all the objects of a document
+     * (see {@link #copyRuleIntoBaseObject(BaseObject, ReadableSecurityRule, RightsClassMetadata, XWikiContext)}).
+     *
+     * @param document the document holding the rights objects
+     * @param rightsClass the class of the rights objects
+     * @param context the XWikiContext of this save
+     * @return the metadata of the rights class
+     * @throws XWikiException if the class cannot be loaded
+     */
+    RightsClassMetadata prepareRightsClass(XWikiDocument document, EntityReference rightsClass, XWikiContext context)
+        throws XWikiException
+    {
+        BaseClass xclass = context.getWiki().getXClass(document.resolveClassReference(rightsClass), context);
+        return new RightsClassMetadata(xclass, document.getDocumentReference(), this.entityReferenceSerializer);
+    }
+
     /**
      * Translates a {@link ReadableSecurityRule} into a {@link BaseObject}.
      * <p>
@@ -64,6 +81,23 @@ public abstract class AbstractRulesObjectWriter implements RulesObjectWriter
      * @param rule
      */
     void copyRuleIntoBaseObject(BaseObject right, ReadableSecurityRule rule, XWikiContext context)
+    {
+        copyRuleIntoBaseObject(right, rule, new RightsClassMetadata(right.getXClass(context),
+            right.getDocumentReference(), this.entityReferenceSerializer), context);
+    }
+
+    /**
+     * Translates a {@link ReadableSecurityRule} into a {@link BaseObject}, using the already resolved metadata of the
+     * class of the object.
+     *
+     * @param right the BaseObject to which the properties of the <code>rule</code> will be copied to
+     * @param rule the rule to copy
+     * @param metadata the metadata of the class of the object, see
+     *     {@link #prepareRightsClass(XWikiDocument, EntityReference, XWikiContext)}
+     * @param context the XWikiContext of this save
+     */
+    void copyRuleIntoBaseObject(BaseObject right, ReadableSecurityRule rule, RightsClassMetadata metadata,
+        XWikiContext context)
     {
         if (null == rule.getState()) {
             // By default, the rule is set to allow.
@@ -72,36 +106,54 @@ public abstract class AbstractRulesObjectWriter implements RulesObjectWriter
             right.setIntValue(XWikiConstants.ALLOW_FIELD_NAME,
                 rule.getState().getValue() == RuleState.DENY.getValue() ? 0 : 1);
         }
-        PropertyClass groups = (PropertyClass) right.getXClass(context).get(GROUPS_FIELD_RIGHTS_OBJECT);
-        PropertyClass users = (PropertyClass) right.getXClass(context).get(USERS_FIELD_RIGHTS_OBJECT);
-        PropertyClass levels = (PropertyClass) right.getXClass(context).get(LEVELS_FIELD_RIGHTS_OBJECT);
+        PropertyClass groups = metadata.getGroupsClass();
+        PropertyClass users = metadata.getUsersClass();
+        PropertyClass levels = metadata.getLevelsClass();
         if (null != groups) {
             BaseProperty<?> groupsProperty = groups.fromValue("");
             if (null != rule.getGroups()) {
-                groupsProperty = groups.fromStringArray(rule.getGroups().stream()
-                    .map(k -> entityReferenceSerializer.serialize(k, right.getDocumentReference()))
-                    .toArray(String[]::new));
+                groupsProperty = groups.fromStringArray(metadata.serializeSubjects(rule.getGroups()));
             }
-            right.set(GROUPS_FIELD_RIGHTS_OBJECT, groupsProperty.getValue(), context);
+            setValue(right, GROUPS_FIELD_RIGHTS_OBJECT, groups, groupsProperty.getValue());
         }
 
         if (null != users) {
             BaseProperty<?> usersProperty = users.fromString("");
             if (null != rule.getUsers()) {
-                usersProperty = users.fromStringArray(rule.getUsers().stream()
-                    .map(k -> entityReferenceSerializer.serialize(k, right.getDocumentReference()))
-                    .toArray(String[]::new));
+                usersProperty = users.fromStringArray(metadata.serializeSubjects(rule.getUsers()));
             }
-            right.set(USERS_FIELD_RIGHTS_OBJECT, usersProperty.getValue(), context);
+            setValue(right, USERS_FIELD_RIGHTS_OBJECT, users, usersProperty.getValue());
         }
 
         if (null != levels) {
             BaseProperty<?> levelsProperty = levels.fromString("");
             if (null != rule.getRights()) {
-                levelsProperty =
-                    levels.fromStringArray(rule.getRights().stream().map(Right::getName).toArray(String[]::new));
+                levelsProperty = levels.fromStringArray(metadata.getLevelNames(rule.getRights()));
+            }
+            setValue(right, LEVELS_FIELD_RIGHTS_OBJECT, levels, levelsProperty.getValue());
+        }
+    }
+
+    /**
+     * Same as {@link BaseObject#set(String, Object, XWikiContext)}, without loading the class of the object again.
+     */
+    private void setValue(BaseObject object, String name, PropertyClass propertyClass, Object value)
+    {
+        BaseProperty<?> property = (BaseProperty<?>) object.safeget(name);
+        if (value instanceof String) {
+            property = propertyClass.fromString((String) value);
+        } else {
+            if (property == null) {
+                property = propertyClass.newProperty();
+            }
+            if (property != null) {
+                property.setValue(value);
             }
-            right.set(LEVELS_FIELD_RIGHTS_OBJECT, levelsProperty.getValue(), context);
+        }
+
+        if (property != null) {
+            property.setOwnerDocument(object.getOwnerDocument());
+            object.safeput(name, property);
         }
     }
 
@@ -122,4 +174,16 @@ public abstract class AbstractRulesObjectWriter implements RulesObjectWriter
         BaseObject object = doc.newXObject(rightsClass, context);
         copyRuleIntoBaseObject(object, rule, context);
     }
+
+    /**
+     * @param rule for which the BaseObject will be created
+     * @param metadata the metadata of the rights class, see
+     *     {@link #prepareRightsClass(XWikiDocument, EntityReference, XWikiContext)}
+     */
+    void addNewRightObjectToDocument(ReadableSecurityRule rule, XWikiDocument doc, EntityReference rightsClass,
+        RightsClassMetadata metadata, XWikiContext context) throws XWikiException
+    {
+        BaseObject object = doc.newXObject(rightsClass, context);
+        copyRuleIntoBaseObject(object, rule, metadata, context);
+    }
 }
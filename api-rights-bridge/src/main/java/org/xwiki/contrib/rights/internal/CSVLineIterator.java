@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Reads the lines of a CSV feed lazily, one line at a time. Fields can be quoted, with doubled quotes inside quoted
+ * fields, but can't span several lines. Blank lines and lines starting with {@code #} are skipped.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+class CSVLineIterator implements Iterator<String[]>
+{
+    private static final char SEPARATOR = ',';
+
+    private static final char QUOTE = '"';
+
+    private static final String COMMENT = "#";
+
+    private final BufferedReader reader;
+
+    private String[] next;
+
+    private long lineNumber;
+
+    private long nextLineNumber;
+
+    /**
+     * @param reader the CSV feed
+     */
+    CSVLineIterator(Reader reader)
+    {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        try {
+            while (this.next == null) {
+                String line = this.reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+                this.nextLineNumber++;
+                if (!StringUtils.isBlank(line) && !line.trim().startsWith(COMMENT)) {
+                    this.next = parseLine(line);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String[] next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String[] fields = this.next;
+        this.next = null;
+        this.lineNumber = this.nextLineNumber;
+        return fields;
+    }
+
+    /**
+     * @return the number of the line returned by the last call to {@link #next()}, starting at 1
+     */
+    long getLineNumber()
+    {
+        return this.lineNumber;
+    }
+
+    static String[] parseLine(String line)
+    {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int index = 0;
+        while (index < line.length()) {
+            char c = line.charAt(index);
+            if (c == QUOTE && quoted && index + 1 < line.length() && line.charAt(index + 1) == QUOTE) {
+                // Escaped quote.
+                field.append(QUOTE);
+                index++;
+            } else if (c == QUOTE) {
+                quoted = !quoted;
+            } else if (c == SEPARATOR && !quoted) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+            index++;
+        }
+        fields.add(field.toString().trim());
+        return fields.toArray(new String[0]);
+    }
+}
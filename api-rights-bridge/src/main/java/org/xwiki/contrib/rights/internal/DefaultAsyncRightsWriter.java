@@ -0,0 +1,234 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.rights.AsyncRightsWriter;
+import org.xwiki.contrib.rights.RightsWriter;
+import org.xwiki.contrib.rights.SaveRulesResult;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default {@link AsyncRightsWriter}, flushing the queued writes in a single background thread so that the saves of a
+ * storage document are never concurrent and happen in the order of the writes. The consecutive writes of the same
+ * user on a storage document are coalesced, and saved in the context of the latest of them, so that the author of a
+ * save is always the user who made the writes.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+public class DefaultAsyncRightsWriter implements AsyncRightsWriter, Initializable, Disposable
+{
+    /**
+     * The configuration property holding the delay, in milliseconds, after which the queued writes are flushed.
+     */
+    static final String FLUSH_DELAY_PROPERTY = "rights.api.asyncWriter.flushDelay";
+
+    private static final long DEFAULT_FLUSH_DELAY = 100L;
+
+    private static final long DISPOSE_TIMEOUT = 30L;
+
+    @Inject
+    private RightsWriter rightsWriter;
+
+    @Inject
+    private ExecutionContextCloner contextCloner;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The queued writes, in the order of the writes. Also used to synchronize the access to the scheduled flush.
+     */
+    private final List<PendingDocument> pendingDocuments = new ArrayList<>();
+
+    /**
+     * The last queued writes of each storage document, into which the next writes of the same user are merged.
+     */
+    private final Map<DocumentReference, PendingDocument> lastPendingDocuments = new HashMap<>();
+
+    private boolean flushScheduled;
+
+    private boolean disposed;
+
+    private long flushDelay;
+
+    private ScheduledExecutorService executor;
+
+    @Override
+    public void initialize()
+    {
+        this.flushDelay = this.configuration.getProperty(FLUSH_DELAY_PROPERTY, DEFAULT_FLUSH_DELAY);
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("XWiki Rights Async Writer").daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        synchronized (this.pendingDocuments) {
+            if (this.disposed) {
+                return;
+            }
+            // The writes queued from now on would never be saved.
+            this.disposed = true;
+        }
+        this.executor.execute(this::flushPendingDocuments);
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                this.logger.warn("Timed out while saving the queued rights writes.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ComponentLifecycleException("Interrupted while saving the queued rights writes", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<SaveRulesResult> saveRules(List<ReadableSecurityRule> rules, EntityReference reference)
+        throws UnsupportedOperationException
+    {
+        RulesStorageTarget target = RulesStorageTarget.of(reference);
+        XWikiContext xcontext = this.xcontextProvider.get();
+        DocumentReference author = xcontext != null ? xcontext.getUserReference() : null;
+        ExecutionContext context = this.contextCloner.cloneCurrentContext();
+        CompletableFuture<SaveRulesResult> future = new CompletableFuture<>();
+
+        synchronized (this.pendingDocuments) {
+            if (this.disposed) {
+                future.completeExceptionally(
+                    new IllegalStateException("The asynchronous rights writer is disposed, the rules can't be saved."));
+                return future;
+            }
+            PendingDocument pendingDocument = this.lastPendingDocuments.get(target.getDocumentReference());
+            if (pendingDocument == null || !Objects.equals(pendingDocument.author, author)) {
+                // Merging the writes of another user would save them with the wrong author.
+                pendingDocument = new PendingDocument(author);
+                this.pendingDocuments.add(pendingDocument);
+                this.lastPendingDocuments.put(target.getDocumentReference(), pendingDocument);
+            }
+            pendingDocument.rules.put(reference, new ArrayList<>(rules));
+            pendingDocument.futures.computeIfAbsent(reference, key -> new ArrayList<>()).add(future);
+            pendingDocument.context = context;
+
+            if (!this.flushScheduled) {
+                this.executor.schedule(this::flushPendingDocuments, this.flushDelay, TimeUnit.MILLISECONDS);
+                this.flushScheduled = true;
+            }
+        }
+
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> flush()
+    {
+        try {
+            return CompletableFuture.runAsync(this::flushPendingDocuments, this.executor);
+        } catch (RejectedExecutionException e) {
+            // Disposed, the queued writes were already flushed.
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private void flushPendingDocuments()
+    {
+        List<PendingDocument> documents;
+        synchronized (this.pendingDocuments) {
+            documents = new ArrayList<>(this.pendingDocuments);
+            this.pendingDocuments.clear();
+            this.lastPendingDocuments.clear();
+            this.flushScheduled = false;
+        }
+
+        documents.forEach(this::save);
+    }
+
+    private void save(PendingDocument document)
+    {
+        try {
+            Map<EntityReference, SaveRulesResult> results =
+                this.contextCloner.runIn(document.context, () -> this.rightsWriter.saveRules(document.rules));
+            document.futures.forEach((reference, futures) -> futures
+                .forEach(future -> future.complete(results.getOrDefault(reference, SaveRulesResult.FAILED))));
+        } catch (RuntimeException e) {
+            this.logger.warn("Failed to save the queued rights writes of [{}]: [{}]", document.rules.keySet(),
+                ExceptionUtils.getRootCauseMessage(e));
+            document.futures.values().forEach(futures -> futures.forEach(future -> future.completeExceptionally(e)));
+        }
+    }
+
+    private static final class PendingDocument
+    {
+        private final DocumentReference author;
+
+        private final Map<EntityReference, List<ReadableSecurityRule>> rules = new LinkedHashMap<>();
+
+        private final Map<EntityReference, List<CompletableFuture<SaveRulesResult>>> futures = new LinkedHashMap<>();
+
+        private ExecutionContext context;
+
+        PendingDocument(DocumentReference author)
+        {
+            this.author = author;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.rights.RightsChange;
+import org.xwiki.contrib.rights.RightsChangeJournal;
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Default {@link RightsChangeJournal}, stored in files made of records holding the size of their payload, their
+ * timestamp, a CRC-32 checksum of these and of the payload, and their payload: the entity and the diff written with
+ * {@link SecurityRuleDiffEncoding}. The timestamps of the records never decrease, so a sparse in-memory index of the
+ * offsets of some records is enough to start reading close to the first change since a given time.
+ * <p>
+ * The changes are appended to the current file until it reaches the configured maximum size. It then replaces the
+ * previous file, which is deleted, and a new current file is started, so the journal keeps between one and two times
+ * the maximum size of the most recent changes. Each replay reads the files through its own channel, so that a roll over
+ * during a replay doesn't affect it, and through memory mapped windows of at most 64 MB. The windows cannot be unmapped
+ * explicitly: they are released by the garbage collector once the replay is done.
+ * <p>
+ * The files are only flushed to the disk periodically, so a crash can leave the end of the current file incomplete or
+ * filled with garbage, e.g. with zeros. The current file is truncated at the first record whose checksum doesn't match
+ * when it is loaded.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+public class DefaultRightsChangeJournal implements RightsChangeJournal, Initializable, Disposable
+{
+    /**
+     * The configuration property enabling the journal.
+     */
+    static final String ENABLED_PROPERTY = "rights.api.journal.enabled";
+
+    /**
+     * The configuration property holding the interval, in milliseconds, between two flushes of the journal to the
+     * disk.
+     */
+    static final String SYNC_INTERVAL_PROPERTY = "rights.api.journal.syncInterval";
+
+    /**
+     * The configuration property holding the size, in bytes, from which the current file of the journal is rolled
+     * over, or 0 to never roll it over.
+     */
+    static final String MAX_SIZE_PROPERTY = "rights.api.journal.maxSize";
+
+    /**
+     * The path of the current file of the journal, relative to the permanent directory.
+     */
+    static final String JOURNAL_PATH = "api-rights/changes.journal";
+
+    /**
+     * The path of the previous file of the journal, relative to the permanent directory.
+     */
+    static final String PREVIOUS_JOURNAL_PATH = "api-rights/changes.journal.previous";
+
+    private static final long DEFAULT_SYNC_INTERVAL = 1000L;
+
+    private static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The number of records between two entries of the sparse index.
+     */
+    private static final int INDEX_INTERVAL = 256;
+
+    /**
+     * The size of the payload, the timestamp and the checksum.
+     */
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final int CHECKSUM_OFFSET = Integer.BYTES + Long.BYTES;
+
+    private static final long DISPOSE_TIMEOUT = 10L;
+
+    private static final long MAX_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The channel used to write the current file, {@code null} when the journal is disabled.
+     */
+    private volatile FileChannel channel;
+
+    private ScheduledExecutorService syncExecutor;
+
+    private File file;
+
+    private File previousFile;
+
+    private long maxSize;
+
+    private Segment segment;
+
+    /**
+     * The records of the previous file, or {@code null} if there is none.
+     */
+    private Segment previousSegment;
+
+    private long lastTimestamp;
+
+    private volatile boolean dirty;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        if (!this.configuration.getProperty(ENABLED_PROPERTY, false)) {
+            return;
+        }
+
+        this.maxSize = this.configuration.getProperty(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+        this.file = new File(this.environment.getPermanentDirectory(), JOURNAL_PATH);
+        this.previousFile = new File(this.environment.getPermanentDirectory(), PREVIOUS_JOURNAL_PATH);
+        this.lastTimestamp = 0;
+        try {
+            this.file.getParentFile().mkdirs();
+            this.previousSegment = null;
+            if (this.previousFile.exists()) {
+                try (FileChannel previousChannel = FileChannel.open(this.previousFile.toPath(),
+                    StandardOpenOption.READ)) {
+                    this.previousSegment = load(previousChannel);
+                }
+            }
+            this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            this.segment = load(this.channel);
+            if (this.segment.size < this.channel.size()) {
+                this.logger.warn("Dropping the last [{}] bytes of the rights journal, which are not valid changes.",
+                    this.channel.size() - this.segment.size);
+                this.channel.truncate(this.segment.size);
+            }
+        } catch (IOException e) {
+            throw new InitializationException(String.format("Failed to open the rights journal [%s]", this.file), e);
+        }
+
+        long syncInterval = this.configuration.getProperty(SYNC_INTERVAL_PROPERTY, DEFAULT_SYNC_INTERVAL);
+        this.syncExecutor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("XWiki Rights Journal Sync").daemon(true).build());
+        this.syncExecutor.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.channel != null) {
+            // Interrupting the flush would close the channel, so wait for it instead.
+            this.syncExecutor.shutdown();
+            try {
+                this.syncExecutor.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.SECONDS);
+                synchronized (this) {
+                    this.channel.force(false);
+                    this.channel.close();
+                    this.channel = null;
+                }
+            } catch (IOException e) {
+                throw new ComponentLifecycleException("Failed to close the rights journal", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ComponentLifecycleException("Interrupted while closing the rights journal", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return this.channel != null;
+    }
+
+    @Override
+    public void append(EntityReference entity, List<SecurityRuleDiff> diffs) throws IOException
+    {
+        if (!isEnabled()) {
+            return;
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(payload)) {
+            SecurityRuleDiffEncoding.writeReference(output, entity);
+            SecurityRuleDiffEncoding.writeDiffs(output, diffs);
+        }
+
+        synchronized (this) {
+            // The journal can be disposed while the payload is encoded.
+            if (this.channel == null) {
+                return;
+            }
+            // The timestamps never decrease, even if the clock goes back.
+            long timestamp = Math.max(System.currentTimeMillis(), this.lastTimestamp);
+            byte[] payloadBytes = payload.toByteArray();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadBytes.length);
+            record.putInt(payloadBytes.length).putLong(timestamp)
+                .putInt(checksum(payloadBytes.length, timestamp, ByteBuffer.wrap(payloadBytes)))
+                .put(payloadBytes).flip();
+            long position = this.segment.size;
+            while (record.hasRemaining()) {
+                position += this.channel.write(record, position);
+            }
+            this.segment.addRecord(timestamp, this.segment.size, position);
+            this.lastTimestamp = timestamp;
+            this.dirty = true;
+            if (this.maxSize > 0 && this.segment.size >= this.maxSize) {
+                rollOver();
+            }
+        }
+    }
+
+    @Override
+    public void replay(long since, Consumer<RightsChange> consumer) throws IOException
+    {
+        List<FileChannel> channels = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            synchronized (this) {
+                if (!isEnabled()) {
+                    return;
+                }
+                // The previous file is only read if it holds changes since the passed time.
+                if (this.previousSegment != null && this.previousSegment.lastTimestamp >= since) {
+                    channels.add(FileChannel.open(this.previousFile.toPath(), StandardOpenOption.READ));
+                    ranges.add(new long[] { this.previousSegment.getIndexedOffset(since), this.previousSegment.size });
+                }
+                channels.add(FileChannel.open(this.file.toPath(), StandardOpenOption.READ));
+                ranges.add(new long[] { this.segment.getIndexedOffset(since), this.segment.size });
+            }
+
+            for (int i = 0; i < channels.size(); i++) {
+                scan(channels.get(i), ranges.get(i)[0], ranges.get(i)[1], (timestamp, offset, payload) -> {
+                    if (timestamp >= since) {
+                        consumer.accept(readChange(timestamp, payload));
+                    }
+                });
+            }
+        } finally {
+            for (FileChannel replayChannel : channels) {
+                replayChannel.close();
+            }
+        }
+    }
+
+    @Override
+    public List<RightsChange> getChangesSince(long since) throws IOException
+    {
+        List<RightsChange> changes = new ArrayList<>();
+        replay(since, changes::add);
+        return changes;
+    }
+
+    /**
+     * Rebuilds the index of a file, up to the last valid record, the following ones being e.g. not completely written
+     * before a crash.
+     */
+    private Segment load(FileChannel fileChannel) throws IOException
+    {
+        Segment loadedSegment = new Segment();
+        scan(fileChannel, 0, fileChannel.size(), (timestamp, offset, payload) ->
+            loadedSegment.addRecord(timestamp, offset, offset + RECORD_HEADER_SIZE + payload.remaining()));
+        this.lastTimestamp = Math.max(this.lastTimestamp, loadedSegment.lastTimestamp);
+        return loadedSegment;
+    }
+
+    /**
+     * Replaces the previous file with the current one and starts a new current file.
+     */
+    private void rollOver() throws IOException
+    {
+        this.channel.force(false);
+        try {
+            Files.move(this.file.toPath(), this.previousFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // E.g. on systems where a file being read cannot be moved: try again with the next change.
+            this.logger.warn("Failed to roll over the rights journal: [{}]", ExceptionUtils.getRootCauseMessage(e));
+            return;
+        }
+        this.channel.close();
+        this.previousSegment = this.segment;
+        this.segment = new Segment();
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        this.dirty = false;
+    }
+
+    /**
+     * Reads the complete and valid records between the passed offsets, stopping at the first invalid one.
+     *
+     * @return the offset of the end of the last valid record
+     */
+    private long scan(FileChannel fileChannel, long start, long end, RecordVisitor visitor) throws IOException
+    {
+        long position = start;
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        while (end - position >= RECORD_HEADER_SIZE) {
+            if (window == null || position + RECORD_HEADER_SIZE > windowStart + window.limit()) {
+                windowStart = position;
+                window = map(fileChannel, position, end, RECORD_HEADER_SIZE);
+            }
+            int recordOffset = (int) (position - windowStart);
+            int payloadSize = window.getInt(recordOffset);
+            long timestamp = window.getLong(recordOffset + Integer.BYTES);
+            int checksum = window.getInt(recordOffset + CHECKSUM_OFFSET);
+            long recordEnd = position + RECORD_HEADER_SIZE + payloadSize;
+            if (payloadSize < 0 || recordEnd > end) {
+                break;
+            }
+            if (recordEnd > windowStart + window.limit()) {
+                windowStart = position;
+                window = map(fileChannel, position, end, RECORD_HEADER_SIZE + payloadSize);
+                recordOffset = 0;
+            }
+            ByteBuffer payload = window.duplicate();
+            payload.position(recordOffset + RECORD_HEADER_SIZE).limit(recordOffset + RECORD_HEADER_SIZE + payloadSize);
+            if (checksum(payloadSize, timestamp, payload.slice()) != checksum) {
+                break;
+            }
+            visitor.visit(timestamp, position, payload.slice());
+            position = recordEnd;
+        }
+        return position;
+    }
+
+    private static int checksum(int payloadSize, long timestamp, ByteBuffer payload)
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(CHECKSUM_OFFSET);
+        header.putInt(payloadSize).putLong(timestamp).flip();
+        crc.update(header);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private MappedByteBuffer map(FileChannel fileChannel, long position, long end, long minSize) throws IOException
+    {
+        long windowSize = Math.min(end - position, Math.max(MAX_WINDOW_SIZE, minSize));
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+    }
+
+    private RightsChange readChange(long timestamp, ByteBuffer payload)
+    {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            EntityReference entity = SecurityRuleDiffEncoding.readReference(input);
+            return new RightsChange(timestamp, entity, SecurityRuleDiffEncoding.readDiffs(input));
+        } catch (IOException e) {
+            // Not expected when reading from memory.
+            throw new IllegalStateException("Failed to decode a rights journal record", e);
+        }
+    }
+
+    private void sync()
+    {
+        FileChannel currentChannel = this.channel;
+        if (this.dirty && currentChannel != null) {
+            this.dirty = false;
+            try {
+                currentChannel.force(false);
+            } catch (IOException e) {
+                this.dirty = true;
+                this.logger.warn("Failed to flush the rights journal to the disk: [{}]",
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor
+    {
+        void visit(long timestamp, long offset, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * The index of the records of a file of the journal.
+     */
+    private static final class Segment
+    {
+        /**
+         * The timestamps and offsets of one record every {@link #INDEX_INTERVAL} records.
+         */
+        private final List<long[]> index = new ArrayList<>();
+
+        /**
+         * The offset of the end of the last record.
+         */
+        private long size;
+
+        private long recordCount;
+
+        private long lastTimestamp;
+
+        void addRecord(long timestamp, long offset, long end)
+        {
+            if (this.recordCount % INDEX_INTERVAL == 0) {
+                this.index.add(new long[] { timestamp, offset });
+            }
+            this.recordCount++;
+            this.lastTimestamp = timestamp;
+            this.size = end;
+        }
+
+        /**
+         * @return the offset of the last indexed record older than the passed time, from which all the records since
+         *     the passed time can be read
+         */
+        long getIndexedOffset(long since)
+        {
+            int low = 0;
+            int high = this.index.size() - 1;
+            long offset = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long[] entry = this.index.get(middle);
+                if (entry[0] < since) {
+                    offset = entry[1];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.BulkRightsUpdates;
+import org.xwiki.contrib.rights.RightsImportRecord;
+import org.xwiki.contrib.rights.RightsImportReport;
+import org.xwiki.contrib.rights.RightsImporter;
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsWriter;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+
+/**
+ * Default {@link RightsImporter}, saving the imported rules with the default {@link RightsWriter}.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+public class DefaultRightsImporter implements RightsImporter
+{
+    private static final String HEADER = "entity";
+
+    private static final String USER_PREFIX = "user";
+
+    private static final String GROUP_PREFIX = "group";
+
+    private static final String PREFIX_SEPARATOR = ":";
+
+    private static final String RIGHTS_SEPARATORS = "| ";
+
+    private static final int FIELD_COUNT = 4;
+
+    @Inject
+    private RightsWriter rightsWriter;
+
+    @Inject
+    private RightsReader rightsReader;
+
+    @Inject
+    private SecurityRuleAbacus securityRuleAbacus;
+
+    @Inject
+    @Named("current")
+    private EntityReferenceResolver<String> entityReferenceResolver;
+
+    @Inject
+    @Named("user")
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @Inject
+    private ExecutionContextCloner contextCloner;
+
+    @Inject
+    private BulkRightsUpdates bulkRightsUpdates;
+
+    @Inject
+    private Logger logger;
+
+    @Override
+    public RightsImportReport importRules(Iterator<RightsImportRecord> records, int batchSize, int concurrency)
+        throws InterruptedException
+    {
+        RightsImportRun run = createRun(batchSize, concurrency);
+        try {
+            while (records.hasNext()) {
+                run.add(records.next());
+            }
+        } catch (RuntimeException | InterruptedException e) {
+            run.abort();
+            throw e;
+        }
+        return run.finish();
+    }
+
+    @Override
+    public RightsImportReport importCSV(Reader reader, int batchSize, int concurrency)
+        throws IOException, InterruptedException
+    {
+        return importCSV(new CSVLineIterator(reader), createRun(batchSize, concurrency));
+    }
+
+    private RightsImportReport importCSV(CSVLineIterator lines, RightsImportRun run)
+        throws IOException, InterruptedException
+    {
+        try {
+            boolean first = true;
+            while (lines.hasNext()) {
+                String[] fields = lines.next();
+                if (first && HEADER.equalsIgnoreCase(fields[0])) {
+                    continue;
+                }
+                first = false;
+                RightsImportRecord record;
+                try {
+                    record = parseRecord(fields);
+                } catch (IllegalArgumentException e) {
+                    run.invalidRecord(String.format("line %d: %s", lines.getLineNumber(), Arrays.toString(fields)),
+                        e.getMessage());
+                    continue;
+                }
+                run.add(record);
+            }
+        } catch (UncheckedIOException e) {
+            run.abort();
+            throw e.getCause();
+        } catch (RuntimeException | InterruptedException e) {
+            run.abort();
+            throw e;
+        }
+        return run.finish();
+    }
+
+    private RightsImportRun createRun(int batchSize, int concurrency)
+    {
+        return new RightsImportRun(this.rightsWriter, this.rightsReader, this.securityRuleAbacus,
+            this.bulkRightsUpdates, this.logger, batchSize, concurrency, this.contextCloner::wrap);
+    }
+
+    private RightsImportRecord parseRecord(String[] fields)
+    {
+        if (fields.length != FIELD_COUNT) {
+            throw new IllegalArgumentException(
+                String.format("Expected %d fields but got %d.", FIELD_COUNT, fields.length));
+        }
+
+        String entityType = StringUtils.substringBefore(fields[0], PREFIX_SEPARATOR);
+        EntityType type;
+        try {
+            type = EntityType.valueOf(entityType.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Unknown entity type [%s].", entityType));
+        }
+        EntityReference entity =
+            this.entityReferenceResolver.resolve(StringUtils.substringAfter(fields[0], PREFIX_SEPARATOR), type);
+
+        String subjectType = StringUtils.substringBefore(fields[1], PREFIX_SEPARATOR);
+        if (!USER_PREFIX.equals(subjectType) && !GROUP_PREFIX.equals(subjectType)) {
+            throw new IllegalArgumentException(String.format("Unknown subject type [%s].", subjectType));
+        }
+        DocumentReference subject = this.documentReferenceResolver.resolve(
+            StringUtils.substringAfter(fields[1], PREFIX_SEPARATOR),
+            entity.extractReference(EntityType.WIKI));
+
+        RightSet rights = new RightSet();
+        for (String rightName : StringUtils.split(fields[2], RIGHTS_SEPARATORS)) {
+            Right right = Right.toRight(rightName);
+            if (right == Right.ILLEGAL) {
+                throw new IllegalArgumentException(String.format("Unknown right [%s].", rightName));
+            }
+            rights.add(right);
+        }
+
+        RuleState state;
+        if (RuleState.ALLOW.name().equalsIgnoreCase(fields[3])) {
+            state = RuleState.ALLOW;
+        } else if (RuleState.DENY.name().equalsIgnoreCase(fields[3])) {
+            state = RuleState.DENY;
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown rule state [%s].", fields[3]));
+        }
+
+        return new RightsImportRecord(entity, subject, GROUP_PREFIX.equals(subjectType), rights, state);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.RightsMetrics;
+
+/**
+ * Default implementation of {@link RightsMetrics}, reading the metrics of the {@link StorageDocumentLocks} and of the
+ * {@link RightUpdatedEventExecutor}.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+public class DefaultRightsMetrics implements RightsMetrics
+{
+    @Inject
+    private StorageDocumentLocks storageDocumentLocks;
+
+    @Inject
+    private RightUpdatedEventExecutor eventExecutor;
+
+    @Override
+    public long getLockAcquisitionCount()
+    {
+        return this.storageDocumentLocks.getAcquisitionCount();
+    }
+
+    @Override
+    public long getContendedLockAcquisitionCount()
+    {
+        return this.storageDocumentLocks.getContendedAcquisitionCount();
+    }
+
+    @Override
+    public long getTotalLockWaitTime()
+    {
+        return this.storageDocumentLocks.getTotalWaitTime(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long getMaxLockWaitTime()
+    {
+        return this.storageDocumentLocks.getMaxWaitTime(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean isEventNotificationAsynchronous()
+    {
+        return this.eventExecutor.isAsynchronous();
+    }
+
+    @Override
+    public int getEventQueueDepth()
+    {
+        return this.eventExecutor.getQueueDepth();
+    }
+
+    @Override
+    public int getMaxEventQueueDepth()
+    {
+        return this.eventExecutor.getMaxQueueDepth();
+    }
+
+    @Override
+    public long getNotifiedUpdateCount()
+    {
+        return this.eventExecutor.getExecutedTaskCount();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsSnapshot;
+import org.xwiki.contrib.rights.RightsSnapshotFactory;
+import org.xwiki.contrib.rights.RulesObjectWriter;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+import com.xpn.xwiki.internal.mandatory.XWikiGlobalRightsDocumentInitializer;
+import com.xpn.xwiki.internal.mandatory.XWikiRightsDocumentInitializer;
+
+/**
+ * Default implementation of {@link RightsSnapshotFactory}.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+public class DefaultRightsSnapshotFactory implements RightsSnapshotFactory
+{
+    private static final String RIGHTS_DOCUMENTS_STATEMENT = "select distinct doc.fullName, obj.className "
+        + "from XWikiDocument doc, BaseObject obj where obj.name = doc.fullName "
+        + "and (obj.className = :localClass or obj.className = :globalClass)";
+
+    private static final String SPACE_CONSTRAINT = " and (doc.space = :space or doc.space like :spacePrefix)";
+
+    private static final String SPACE_PARAMETER = "space";
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localEntityReferenceSerializer;
+
+    @Inject
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @Inject
+    private RightsReader rightsReader;
+
+    @Override
+    public RightsSnapshot createLiveSnapshot(EntityReference rootReference)
+        throws QueryException, UnsupportedOperationException
+    {
+        WikiReference wikiReference;
+        Query query;
+        switch (rootReference.getType()) {
+            case WIKI:
+                wikiReference = new WikiReference(rootReference);
+                query = this.queryManager.createQuery(RIGHTS_DOCUMENTS_STATEMENT, Query.HQL);
+                break;
+            case SPACE:
+                wikiReference = new WikiReference(rootReference.extractReference(EntityType.WIKI));
+                query = this.queryManager.createQuery(RIGHTS_DOCUMENTS_STATEMENT + SPACE_CONSTRAINT, Query.HQL);
+                String localSpace = this.localEntityReferenceSerializer.serialize(rootReference);
+                query.bindValue(SPACE_PARAMETER, localSpace);
+                query.bindValue("spacePrefix").literal(localSpace + '.').anyChars();
+                break;
+            default:
+                throw new UnsupportedOperationException("Could not create a rights snapshot for the given reference.");
+        }
+        query.setWiki(wikiReference.getName());
+        query.bindValue("localClass", XWikiRightsDocumentInitializer.CLASS_REFERENCE_STRING);
+        query.bindValue("globalClass", XWikiGlobalRightsDocumentInitializer.CLASS_REFERENCE_STRING);
+
+        SortedSet<EntityReference> entities = new TreeSet<>();
+        for (Object[] result : query.<Object[]>execute()) {
+            DocumentReference documentReference =
+                this.documentReferenceResolver.resolve((String) result[0], wikiReference);
+            boolean isGlobalRight = XWikiGlobalRightsDocumentInitializer.CLASS_REFERENCE_STRING.equals(result[1]);
+            EntityReference entity = getRulesEntity(documentReference, isGlobalRight);
+            if (entity != null && (entity.equals(rootReference) || entity.hasParent(rootReference))) {
+                entities.add(entity);
+            }
+        }
+
+        return new LiveRightsSnapshot(entities, this.rightsReader);
+    }
+
+    @Override
+    public RightsSnapshot createSnapshot(Map<? extends EntityReference, List<ReadableSecurityRule>> rules,
+        Map<? extends EntityReference, String> fingerprints)
+    {
+        return new MapRightsSnapshot(rules, fingerprints);
+    }
+
+    /**
+     * @param documentReference a document holding rights objects
+     * @param isGlobalRight whether the objects are global rights objects
+     * @return the entity on which the rules read from the objects apply, or null if such objects are not rules
+     */
+    private EntityReference getRulesEntity(DocumentReference documentReference, boolean isGlobalRight)
+    {
+        if (!isGlobalRight) {
+            return documentReference;
+        } else if (RulesObjectWriter.XWIKI_PREFERENCES.equals(documentReference.getName())) {
+            return documentReference.getWikiReference();
+        } else if (RulesObjectWriter.XWIKI_WEB_PREFERENCES.equals(documentReference.getName())) {
+            return documentReference.getLastSpaceReference();
+        } else {
+            // Global rights objects are ignored on other documents
+            return null;
+        }
+    }
+}
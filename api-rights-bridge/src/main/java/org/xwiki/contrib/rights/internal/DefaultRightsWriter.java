@@ -19,7 +19,15 @@
  */
 package org.xwiki.contrib.rights.internal;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -27,14 +35,25 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.contrib.rights.BulkRightsUpdates;
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsSnapshotFactory;
 import org.xwiki.contrib.rights.RulesObjectWriter;
+import org.xwiki.contrib.rights.SaveRulesResult;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.contrib.rights.SecurityRuleOrdering;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
-import org.xwiki.model.reference.SpaceReference;
-import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.QueryException;
+import org.xwiki.security.authorization.AuthorizationException;
 import org.xwiki.security.authorization.ReadableSecurityRule;
 
 import com.xpn.xwiki.XWiki;
@@ -61,18 +80,57 @@ public class DefaultRightsWriter extends AbstractRightsWriter
     @Named("recycling")
     private RulesObjectWriter objectsWriter;
 
+    @Inject
+    @Named("diffing")
+    private RulesObjectWriter diffingObjectsWriter;
+
     @Inject
     private ComponentManager cm;
 
+    @Inject
+    private RightsReader rightsReader;
+
+    @Inject
+    private SecurityRuleAbacus securityRuleAbacus;
+
+    @Inject
+    private RightsSnapshotFactory snapshotFactory;
+
+    /**
+     * Resolves the subjects of the stored rules the same way as {@link DefaultSecurityEntryReader}, so that the rules
+     * read here match the rules read by the rights reader.
+     */
+    @Inject
+    @Named("user")
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @Inject
+    private StorageDocumentLocks storageDocumentLocks;
+
+    /**
+     * Used to notify the rights updates of a save once the lock of its storage document is released, so that the
+     * listeners writing rights don't take the lock of another storage document while holding it.
+     */
+    @Inject
+    private BulkRightsUpdates bulkRightsUpdates;
+
+    @Inject
+    private PersistedRulesCache persistedRulesCache;
+
+    @Inject
+    private Logger logger;
+
     @Inject
     private Provider<XWikiContext> xcontextProvider;
 
     @Override
-    public void saveRules(List<ReadableSecurityRule> rules, EntityReference reference, String persistenceStrategyName)
-        throws XWikiException, UnsupportedOperationException, ComponentLookupException
+    public SaveRulesResult saveRules(List<ReadableSecurityRule> rules, EntityReference reference,
+        String persistenceStrategyName) throws XWikiException, UnsupportedOperationException, ComponentLookupException
     {
         RulesObjectWriter writer = cm.getInstance(RulesObjectWriter.class, persistenceStrategyName);
-        saveRules(rules, reference, writer);
+        // The caller asks for the rules to be stored the way of this strategy, e.g. packed, so the save cannot be
+        // skipped even if the stored objects already hold the same rules.
+        return saveRules(rules, reference, writer, false);
     }
 
     /**
@@ -81,64 +139,338 @@ public class DefaultRightsWriter extends AbstractRightsWriter
      * @see org.xwiki.contrib.rights.RightsWriter#saveRules(java.util.List, org.xwiki.model.reference.EntityReference)
      */
     @Override
-    public void saveRules(List<ReadableSecurityRule> rules, EntityReference reference)
+    public SaveRulesResult saveRules(List<ReadableSecurityRule> rules, EntityReference reference)
         throws XWikiException, UnsupportedOperationException
     {
-        saveRules(rules, reference, objectsWriter);
+        return saveRules(rules, reference, objectsWriter, true);
+    }
+
+    @Override
+    public Map<EntityReference, List<ReadableSecurityRule>> removeRedundantRules(EntityReference reference)
+        throws XWikiException, AuthorizationException, QueryException, UnsupportedOperationException
+    {
+        Map<EntityReference, List<ReadableSecurityRule>> removedRules = new LinkedHashMap<>();
+        if (reference != null) {
+            Iterator<EntityReference> entities;
+            if (reference.getType() == EntityType.DOCUMENT) {
+                entities = Collections.singletonList(reference).iterator();
+            } else {
+                // Removing redundant rules doesn't change the actual rules of an entity, so the rules inherited by the
+                // descendants of an entity don't change when its rules are cleaned.
+                entities = this.snapshotFactory.createLiveSnapshot(reference).getEntities();
+            }
+            // Group the entities by storage document, so that each document is saved only once.
+            Map<DocumentReference, List<RulesStorageTarget>> targetsByDocument = new LinkedHashMap<>();
+            while (entities.hasNext()) {
+                RulesStorageTarget target = RulesStorageTarget.of(entities.next());
+                targetsByDocument.computeIfAbsent(target.getDocumentReference(), key -> new ArrayList<>())
+                    .add(target);
+            }
+            for (Map.Entry<DocumentReference, List<RulesStorageTarget>> entry : targetsByDocument.entrySet()) {
+                removeRedundantRules(entry.getKey(), entry.getValue(), removedRules);
+            }
+        }
+        return removedRules;
+    }
+
+    private void removeRedundantRules(DocumentReference rightsStorageDocReference, List<RulesStorageTarget> targets,
+        Map<EntityReference, List<ReadableSecurityRule>> removedRules) throws XWikiException, AuthorizationException
+    {
+        try (BulkRightsUpdates.Bulk bulk = this.bulkRightsUpdates.begin()) {
+            Lock lock = this.storageDocumentLocks.lock(rightsStorageDocReference);
+            try {
+                Map<RulesStorageTarget, List<ReadableSecurityRule>> remainingRules = new LinkedHashMap<>();
+                Map<EntityReference, List<ReadableSecurityRule>> documentRemovedRules = new LinkedHashMap<>();
+                for (RulesStorageTarget target : targets) {
+                    EntityReference reference = target.getEntityReference();
+                    List<ReadableSecurityRule> rules = this.rightsReader.getRules(reference, false);
+                    List<ReadableSecurityRule> inheritedRules = this.rightsReader.getInheritedRules(reference);
+                    List<ReadableSecurityRule> redundantRules =
+                        this.securityRuleAbacus.getRedundantRules(rules, inheritedRules);
+                    if (!redundantRules.isEmpty()) {
+                        remainingRules.put(target, this.securityRuleAbacus
+                            .packRules(this.securityRuleAbacus.removeRedundantRules(rules, inheritedRules)));
+                        documentRemovedRules.put(reference, redundantRules);
+                    }
+                }
+                if (!remainingRules.isEmpty()) {
+                    saveLockedRules(rightsStorageDocReference, remainingRules, this.objectsWriter, null, true);
+                    removedRules.putAll(documentRemovedRules);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Map<EntityReference, SaveRulesResult> saveRules(Map<EntityReference, List<ReadableSecurityRule>> rules)
+    {
+        // Group the rules by storage document, so that each document is saved only once.
+        Map<DocumentReference, Map<RulesStorageTarget, List<ReadableSecurityRule>>> rulesByDocument =
+            new LinkedHashMap<>();
+        Map<RulesStorageTarget, EntityReference> references = new HashMap<>();
+        Map<EntityReference, SaveRulesResult> results = new LinkedHashMap<>();
+        for (Map.Entry<EntityReference, List<ReadableSecurityRule>> entry : rules.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                try {
+                    RulesStorageTarget target = RulesStorageTarget.of(entry.getKey());
+                    rulesByDocument.computeIfAbsent(target.getDocumentReference(), key -> new LinkedHashMap<>())
+                        .put(target, entry.getValue());
+                    references.put(target, entry.getKey());
+                } catch (UnsupportedOperationException e) {
+                    this.logger.warn("Failed to save the rules of [{}]: [{}]", entry.getKey(),
+                        ExceptionUtils.getRootCauseMessage(e));
+                    results.put(entry.getKey(), SaveRulesResult.FAILED);
+                }
+            }
+        }
+
+        for (Map.Entry<DocumentReference, Map<RulesStorageTarget, List<ReadableSecurityRule>>> entry : rulesByDocument
+            .entrySet()) {
+            SaveRulesResult result;
+            try {
+                result = saveRules(entry.getKey(), entry.getValue(), this.objectsWriter, null, true);
+            } catch (XWikiException e) {
+                this.logger.warn("Failed to save the rules stored in [{}]: [{}]", entry.getKey(),
+                    ExceptionUtils.getRootCauseMessage(e));
+                result = SaveRulesResult.FAILED;
+            }
+            for (RulesStorageTarget target : entry.getValue().keySet()) {
+                results.put(references.get(target), result);
+            }
+        }
+        return results;
     }
 
-    private void saveRules(List<ReadableSecurityRule> rules, EntityReference reference, RulesObjectWriter rulesWriter)
+    @Override
+    public SaveRulesResult applyDiff(EntityReference reference, List<SecurityRuleDiff> diffs)
         throws XWikiException, UnsupportedOperationException
     {
-        // By deleting the objects, the object number will continue from the number of the deleted object.
-        if (reference != null && rules != null) {
-            DocumentReference rightsStorageDocReference;
-            EntityReference rightsClassReference;
-            boolean storageDocIsPrefsDoc = false;
-            switch (reference.getType()) {
-                case WIKI:
-                    rightsStorageDocReference = new DocumentReference(RulesObjectWriter.XWIKI_PREFERENCES,
-                        new SpaceReference(XWIKI_SPACE, new WikiReference(reference)));
-                    rightsClassReference = XWIKI_GLOBAL_RIGHTS_CLASS;
-                    storageDocIsPrefsDoc = true;
-                    break;
-                case SPACE:
-                    rightsStorageDocReference = new DocumentReference(RulesObjectWriter.XWIKI_WEB_PREFERENCES,
-                        new SpaceReference(reference));
-                    rightsClassReference = XWIKI_GLOBAL_RIGHTS_CLASS;
-                    storageDocIsPrefsDoc = true;
-                    break;
-                case DOCUMENT:
-                    // The current reference corresponds to a terminal page.
-                    rightsStorageDocReference = new DocumentReference(reference);
-                    rightsClassReference = XWIKI_RIGHTS_CLASS;
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Could not set rights for the given reference.");
+        RulesStorageTarget target = RulesStorageTarget.of(reference);
+        try (BulkRightsUpdates.Bulk bulk = this.bulkRightsUpdates.begin()) {
+            // Hold the lock of the document between reading the stored rules and saving the patched ones, so that a
+            // concurrent write cannot be lost.
+            Lock lock = this.storageDocumentLocks.lock(target.getDocumentReference());
+            try {
+                XWikiDocument storedDoc = getXWiki().getDocument(target.getDocumentReference(), getXContext());
+                List<ReadableSecurityRule> rules = this.securityRuleAbacus
+                    .applyRuleDiff(target.readRules(storedDoc, this.documentReferenceResolver, true), diffs);
+                // The diffing writer only writes the objects of the rules touched by the diffs.
+                return saveLockedRules(target.getDocumentReference(), Collections.singletonMap(target, rules),
+                    this.diffingObjectsWriter, null, true);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public SaveRulesResult saveRulesIfMatch(List<ReadableSecurityRule> rules, EntityReference reference,
+        String expectedFingerprint) throws XWikiException, UnsupportedOperationException
+    {
+        if (reference == null || rules == null) {
+            return SaveRulesResult.UNCHANGED;
+        }
+        RulesStorageTarget target = RulesStorageTarget.of(reference);
+        return saveRules(target.getDocumentReference(), Collections.singletonMap(target, rules), this.objectsWriter,
+            expectedFingerprint, true);
+    }
+
+    private SaveRulesResult saveRules(List<ReadableSecurityRule> rules, EntityReference reference,
+        RulesObjectWriter rulesWriter, boolean skipStored) throws XWikiException, UnsupportedOperationException
+    {
+        if (reference == null || rules == null) {
+            return SaveRulesResult.UNCHANGED;
+        }
+        RulesStorageTarget target = RulesStorageTarget.of(reference);
+        SaveRulesResult result = saveRules(target.getDocumentReference(), Collections.singletonMap(target, rules),
+            rulesWriter, null, skipStored);
+        if (result == SaveRulesResult.UNCHANGED) {
+            this.logger.debug("Skipped saving the rules of [{}] since they are already stored.", reference);
+        }
+        return result;
+    }
+
+    /**
+     * @param expectedFingerprint the fingerprint of the rules expected to be stored for the targets, or {@code null}
+     *     to save whatever rules are stored
+     * @param skipStored {@code true} to skip the save when the stored objects already hold the passed rules, one
+     *     object per rule, which is what the default and the diffing writers would write, {@code false} to always let
+     *     the writer rewrite the objects
+     * @return {@link SaveRulesResult#SAVED} if the document was saved, {@link SaveRulesResult#UNCHANGED} if the passed
+     *     rules are already stored, {@link SaveRulesResult#CONFLICT} if the stored rules are not the expected ones
+     */
+    private SaveRulesResult saveRules(DocumentReference rightsStorageDocReference,
+        Map<RulesStorageTarget, List<ReadableSecurityRule>> rulesByTarget, RulesObjectWriter rulesWriter,
+        String expectedFingerprint, boolean skipStored) throws XWikiException
+    {
+        try (BulkRightsUpdates.Bulk bulk = this.bulkRightsUpdates.begin()) {
+            Lock lock = this.storageDocumentLocks.lock(rightsStorageDocReference);
+            try {
+                return saveLockedRules(rightsStorageDocReference, rulesByTarget, rulesWriter, expectedFingerprint,
+                    skipStored);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private SaveRulesResult saveLockedRules(DocumentReference rightsStorageDocReference,
+        Map<RulesStorageTarget, List<ReadableSecurityRule>> rulesByTarget, RulesObjectWriter rulesWriter,
+        String expectedFingerprint, boolean skipStored) throws XWikiException
+    {
+        XWikiContext context = getXContext();
+        XWikiDocument storedDoc = getXWiki().getDocument(rightsStorageDocReference, context);
+        // Saving the same rules would only create a new version of the document and flush the rights cache.
+        if (skipStored && isAlreadyStored(storedDoc, rulesByTarget)) {
+            return SaveRulesResult.UNCHANGED;
+        }
+        if (expectedFingerprint != null && !isExpectedStored(storedDoc, rulesByTarget, expectedFingerprint)) {
+            return SaveRulesResult.CONFLICT;
+        }
+
+        // get document to perform changes on
+        XWikiDocument rightsStorageDoc = getDocumentToWrite(storedDoc);
+
+        // write objects according to the chosen strategy
+        boolean hasRules = false;
+        boolean storageDocIsPrefsDoc = false;
+        for (Map.Entry<RulesStorageTarget, List<ReadableSecurityRule>> entry : rulesByTarget.entrySet()) {
+            rulesWriter.persistRulesToObjects(entry.getValue(), rightsStorageDoc, entry.getKey().getClassReference(),
+                context);
+            hasRules |= !CollectionUtils.isEmpty(entry.getValue());
+            storageDocIsPrefsDoc |= entry.getKey().isPreferencesDocument();
+        }
+
+        // In the end, save the document
+        rightsStorageDoc.setAuthorReference(context.getUserReference());
+
+        // if the document is newly created now and it's a storage preferences document, initialize it as hidden
+        // (all preferences documents are hidden).
+        // Note: if the caller is explicitly saving rights on a WebPreferences document with a direct document
+        // reference to it, the document will not be set as hidden, it's the caller's responsibility; this rule here
+        // only covers for the case when the prefs document is created for the storage needs.
+        if (rightsStorageDoc.isNew() && storageDocIsPrefsDoc) {
+            rightsStorageDoc.setHidden(true);
+        }
+        // Save document only if exist or if there are some rules
+        if (hasRules || !rightsStorageDoc.isNew()) {
+            saveDocument(rightsStorageDoc, rulesByTarget.keySet(), context);
+            return SaveRulesResult.SAVED;
+        }
+        return SaveRulesResult.UNCHANGED;
+    }
+
+    /**
+     * Saves the document and caches the rules just saved instead of letting the next read go back to the document. The
+     * versions of the cached rules are taken before the save, so that a concurrent save of the document outside of
+     * this writer (which doesn't hold the lock) keeps the rules from being cached.
+     */
+    private void saveDocument(XWikiDocument rightsStorageDoc, Set<RulesStorageTarget> targets, XWikiContext context)
+        throws XWikiException
+    {
+        Map<RulesStorageTarget, Long> cacheVersions = new HashMap<>();
+        for (RulesStorageTarget target : targets) {
+            cacheVersions.put(target, this.persistedRulesCache.beginUpdate(target.getEntityReference()));
+        }
+        boolean saved = false;
+        try {
+            getXWiki().saveDocument(rightsStorageDoc, context);
+            saved = true;
+        } finally {
+            for (Map.Entry<RulesStorageTarget, Long> entry : cacheVersions.entrySet()) {
+                RulesStorageTarget target = entry.getKey();
+                List<ReadableSecurityRule> savedRules = null;
+                // The reader marks the local rules of a preferences document as not editable, so let it read them.
+                if (saved && (target.isPreferencesDocument()
+                    || !isGlobalRightsDocument(target.getDocumentReference()))) {
+                    // Read the saved rules the same way the rights reader does, skipping the malformed objects.
+                    savedRules = target.readRules(rightsStorageDoc, this.documentReferenceResolver, true);
+                }
+                this.persistedRulesCache.endUpdate(target.getEntityReference(), savedRules, entry.getValue());
+            }
+        }
+    }
+
+    private boolean isGlobalRightsDocument(DocumentReference documentReference)
+    {
+        return RulesObjectWriter.XWIKI_WEB_PREFERENCES.equals(documentReference.getName())
+            || (RulesObjectWriter.XWIKI_PREFERENCES.equals(documentReference.getName())
+            && XWIKI_SPACE.equals(documentReference.getParent().getName()));
+    }
+
+    /**
+     * The stored document can be the instance held by the document cache, which must never be modified. A document
+     * that doesn't exist yet has nothing to keep, so a new instance is enough. An existing document is cloned, since a
+     * document can only be saved as a whole: the platform doesn't provide a private instance of a document without
+     * copying its objects, and loading it again from the store would copy it too, on top of a database request. The
+     * content is an immutable string shared by the clone, so the copy mostly depends on the number of objects. This is
+     * only done once it is known that the document needs to be saved, at most once per document for a batch of rules.
+     */
+    private XWikiDocument getDocumentToWrite(XWikiDocument storedDoc)
+    {
+        if (storedDoc.isNew()) {
+            return new XWikiDocument(storedDoc.getDocumentReference(), storedDoc.getLocale());
+        }
+        return storedDoc.clone();
+    }
+
+    private boolean isExpectedStored(XWikiDocument storedDoc,
+        Map<RulesStorageTarget, List<ReadableSecurityRule>> rulesByTarget, String expectedFingerprint)
+    {
+        for (RulesStorageTarget target : rulesByTarget.keySet()) {
+            // Read the stored rules the same way the rights reader does, skipping the malformed objects.
+            List<ReadableSecurityRule> storedRules = target.readRules(storedDoc, this.documentReferenceResolver, true);
+            if (!expectedFingerprint.equals(this.securityRuleAbacus.computeFingerprint(storedRules))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isAlreadyStored(XWikiDocument storedDoc,
+        Map<RulesStorageTarget, List<ReadableSecurityRule>> rulesByTarget)
+    {
+        for (Map.Entry<RulesStorageTarget, List<ReadableSecurityRule>> entry : rulesByTarget.entrySet()) {
+            // Rules without rights or subjects are still written as objects, so they always need a save.
+            if (!isWellFormed(entry.getValue())) {
+                return false;
             }
-            // get document to perform changes on
-            XWikiContext context = getXContext();
-            XWikiDocument rightsStorageDoc = getXWiki().getDocument(rightsStorageDocReference, context).clone();
-
-            // write objects according to the chosen strategy
-            rulesWriter.persistRulesToObjects(rules, rightsStorageDoc, rightsClassReference, context);
-
-            // In the end, save the document
-            rightsStorageDoc.setAuthorReference(context.getUserReference());
-
-            // if the document is newly created now and it's a storage preferences document, initialize it as hidden
-            // (all preferences documents are hidden).
-            // Note: if the caller is explicitly saving rights on a WebPreferences document with a direct document
-            // reference to it, the document will not be set as hidden, it's the caller's responsibility; this rule here
-            // only covers for the case when the prefs document is created for the storage needs.
-            if (rightsStorageDoc.isNew() && storageDocIsPrefsDoc) {
-                rightsStorageDoc.setHidden(true);
+            List<ReadableSecurityRule> storedRules =
+                entry.getKey().readRules(storedDoc, this.documentReferenceResolver);
+            // Compare the objects one by one, not only the meaning of the rules, so that a save changing how the rules
+            // are split in objects is not skipped.
+            if (storedRules == null || !getObjectKeys(storedRules).equals(getObjectKeys(entry.getValue()))) {
+                return false;
             }
-            // Save document only if exist or if there are some rules
-            if (!(CollectionUtils.isEmpty(rules) && rightsStorageDoc.isNew())) {
-                getXWiki().saveDocument(rightsStorageDoc, context);
+        }
+        return true;
+    }
+
+    /**
+     * @return the keys of the objects holding the passed rules, one object per rule, in an order that doesn't depend on
+     *     the order of the rules
+     */
+    private List<String> getObjectKeys(List<ReadableSecurityRule> rules)
+    {
+        List<String> keys = new ArrayList<>(rules.size());
+        for (ReadableSecurityRule rule : rules) {
+            keys.add(SecurityRuleOrdering.getSortKey(rule));
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private boolean isWellFormed(List<ReadableSecurityRule> rules)
+    {
+        for (ReadableSecurityRule rule : rules) {
+            if (CollectionUtils.isEmpty(rule.getRights())
+                || (CollectionUtils.isEmpty(rule.getUsers()) && CollectionUtils.isEmpty(rule.getGroups()))) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.SecurityRuleOrdering;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Writer that only touches the objects that need to change: the stored objects that hold exactly one of the passed
+ * rules (regardless of the order of their subjects and rights) are left untouched, the other stored objects are
+ * recycled to hold the remaining rules, and objects are only added or removed when the number of rules changes.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+@Named("diffing")
+public class DiffingRulesObjectWriter extends AbstractRulesObjectWriter
+{
+    @Inject
+    @Named("user")
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @Override
+    public void persistRulesToObjects(List<ReadableSecurityRule> rules, XWikiDocument document,
+        EntityReference classReference, XWikiContext context) throws XWikiException
+    {
+        // Index the stored objects by the key of the rule they hold.
+        WikiReference wikiReference = document.getDocumentReference().getWikiReference();
+        Map<String, Deque<BaseObject>> storedObjects = new HashMap<>();
+        List<BaseObject> recyclableObjects = new ArrayList<>();
+        for (BaseObject object : document.getXObjects(classReference)) {
+            if (object != null) {
+                String key = getKey(object, wikiReference);
+                if (key != null) {
+                    storedObjects.computeIfAbsent(key, k -> new ArrayDeque<>()).add(object);
+                } else {
+                    recyclableObjects.add(object);
+                }
+            }
+        }
+
+        // Keep the objects that already hold a rule.
+        List<ReadableSecurityRule> remainingRules = new ArrayList<>();
+        for (ReadableSecurityRule rule : rules) {
+            Deque<BaseObject> matchingObjects = storedObjects.get(SecurityRuleOrdering.getSortKey(rule));
+            if (matchingObjects == null || matchingObjects.poll() == null) {
+                remainingRules.add(rule);
+            }
+        }
+        for (Deque<BaseObject> unmatchedObjects : storedObjects.values()) {
+            recyclableObjects.addAll(unmatchedObjects);
+        }
+        // Recycle the objects in the order of their numbers, to keep the numbers of new objects low.
+        recyclableObjects.sort((object1, object2) -> Integer.compare(object1.getNumber(), object2.getNumber()));
+
+        RightsClassMetadata metadata = prepareRightsClass(document, classReference, context);
+        Iterator<BaseObject> recyclableObjectsIterator = recyclableObjects.iterator();
+        for (ReadableSecurityRule rule : remainingRules) {
+            if (recyclableObjectsIterator.hasNext()) {
+                copyRuleIntoBaseObject(recyclableObjectsIterator.next(), rule, metadata, context);
+            } else {
+                addNewRightObjectToDocument(rule, document, classReference, metadata, context);
+            }
+        }
+        while (recyclableObjectsIterator.hasNext()) {
+            document.removeXObject(recyclableObjectsIterator.next());
+        }
+    }
+
+    /**
+     * @return the key of the rule held by the passed object, or {@code null} if the object doesn't hold a valid rule
+     */
+    private String getKey(BaseObject object, WikiReference wikiReference)
+    {
+        try {
+            return SecurityRuleOrdering.getSortKey(
+                XWikiSecurityRule.createNewRule(object, this.documentReferenceResolver, wikiReference, false));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
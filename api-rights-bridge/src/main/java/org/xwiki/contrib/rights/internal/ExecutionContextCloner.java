@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Runs rights work in background threads, in a copy of the execution context of the thread that submitted it. XWiki
+ * contexts cannot be shared between threads, so the XWiki context is cloned as well. Work that only needs the current
+ * wiki and user can run in a new execution context instead, which is cheaper for the submitting thread.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = ExecutionContextCloner.class)
+@Singleton
+public class ExecutionContextCloner
+{
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /**
+     * @return a copy of the current execution context, holding a clone of the current XWiki context
+     */
+    public ExecutionContext cloneCurrentContext()
+    {
+        ExecutionContext context;
+        try {
+            context = this.executionContextManager.clone(this.execution.getContext());
+        } catch (ExecutionContextException e) {
+            throw new IllegalStateException("Failed to clone the current execution context", e);
+        }
+        XWikiContext xcontext = this.xcontextProvider.get();
+        if (xcontext != null) {
+            xcontext.clone().declareInExecutionContext(context);
+        }
+        return context;
+    }
+
+    /**
+     * Runs the passed task in the passed execution context, in the current thread.
+     *
+     * @param <T> the type of the result of the task
+     * @param context a context created by {@link #cloneCurrentContext()}
+     * @param task the task to run
+     * @return the result of the task
+     */
+    public <T> T runIn(ExecutionContext context, Supplier<T> task)
+    {
+        this.execution.setContext(context);
+        try {
+            return task.get();
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    /**
+     * @param task a task to run in another thread
+     * @return a task running the passed one in a copy of the current execution context, taken now
+     */
+    public Runnable wrap(Runnable task)
+    {
+        ExecutionContext context = cloneCurrentContext();
+        return () -> runIn(context, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * @param task a task to run in another thread
+     * @return a task running the passed one in a new execution context, initialized when the task runs, with the
+     *     current wiki and user of the current XWiki context, taken now
+     */
+    public Runnable wrapInNewContext(Runnable task)
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        String wikiId = xcontext != null ? xcontext.getWikiId() : null;
+        DocumentReference userReference = xcontext != null ? xcontext.getUserReference() : null;
+        return () -> {
+            try {
+                this.executionContextManager.initialize(new ExecutionContext());
+            } catch (ExecutionContextException e) {
+                throw new IllegalStateException("Failed to initialize a new execution context", e);
+            }
+            try {
+                XWikiContext newXContext = this.xcontextProvider.get();
+                if (newXContext != null) {
+                    if (wikiId != null) {
+                        newXContext.setWikiId(wikiId);
+                    }
+                    newXContext.setUserReference(userReference);
+                }
+                task.run();
+            } finally {
+                this.execution.removeContext();
+            }
+        };
+    }
+}
@@ -51,8 +51,9 @@ public class IncrementingObjectNumbersRulesWriter extends AbstractRulesObjectWri
         XWikiContext context) throws XWikiException
     {
         d.removeXObjects(rightsClass);
+        RightsClassMetadata metadata = prepareRightsClass(d, rightsClass, context);
         for (ReadableSecurityRule rule : rules) {
-            addNewRightObjectToDocument(rule, d, rightsClass, context);
+            addNewRightObjectToDocument(rule, d, rightsClass, metadata, context);
         }
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+
+/**
+ * The diff sent along with a {@link org.xwiki.contrib.rights.RightUpdatedEvent}, only computed the first time a
+ * listener reads it, so that rights updates cost nothing more than the cache invalidation when no listener needs the
+ * diff.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+final class LazySecurityRuleDiffList extends AbstractList<SecurityRuleDiff>
+{
+    private Supplier<List<SecurityRuleDiff>> diffSupplier;
+
+    private volatile List<SecurityRuleDiff> diffs;
+
+    /**
+     * @param diffSupplier computes the diff, called at most once
+     */
+    LazySecurityRuleDiffList(Supplier<List<SecurityRuleDiff>> diffSupplier)
+    {
+        this.diffSupplier = diffSupplier;
+    }
+
+    @Override
+    public SecurityRuleDiff get(int index)
+    {
+        return getDiffs().get(index);
+    }
+
+    @Override
+    public int size()
+    {
+        return getDiffs().size();
+    }
+
+    private List<SecurityRuleDiff> getDiffs()
+    {
+        List<SecurityRuleDiff> result = this.diffs;
+        if (result == null) {
+            synchronized (this) {
+                result = this.diffs;
+                if (result == null) {
+                    result = this.diffSupplier.get();
+                    this.diffs = result;
+                    // Release the rules the diff was computed from.
+                    this.diffSupplier = null;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsSnapshot;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.AuthorizationException;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+/**
+ * A {@link RightsSnapshot} of the rules currently persisted in the wiki. Only the references of the entities are held
+ * in memory, the rules and their fingerprints are read using the {@link RightsReader} when they are asked for.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+class LiveRightsSnapshot implements RightsSnapshot
+{
+    private final SortedSet<EntityReference> entities;
+
+    private final RightsReader rightsReader;
+
+    /**
+     * @param entities the references of the entities that have persisted rules
+     * @param rightsReader the reader used to read the rules of the entities
+     */
+    LiveRightsSnapshot(SortedSet<EntityReference> entities, RightsReader rightsReader)
+    {
+        this.entities = entities;
+        this.rightsReader = rightsReader;
+    }
+
+    @Override
+    public Iterator<EntityReference> getEntities()
+    {
+        return Collections.unmodifiableSortedSet(this.entities).iterator();
+    }
+
+    @Override
+    public List<ReadableSecurityRule> getRules(EntityReference entityReference) throws AuthorizationException
+    {
+        return this.rightsReader.getRules(entityReference, false);
+    }
+
+    @Override
+    public String getFingerprint(EntityReference entityReference) throws AuthorizationException
+    {
+        // The persisted rules are cached by the reader, so reading them again to compare them is cheap.
+        return this.rightsReader.getRulesFingerprint(entityReference, false);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.RulesObjectWriter;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Persistence strategy that packs the rules (see {@link SecurityRuleAbacus#packRules(List)}) before writing them, so
+ * that the passed rules are stored with as few objects as possible. The packed rules are then written by recycling the
+ * existing objects.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+@Named("packing")
+public class PackingRulesObjectWriter implements RulesObjectWriter
+{
+    @Inject
+    private SecurityRuleAbacus securityRuleAbacus;
+
+    @Inject
+    @Named("recycling")
+    private RulesObjectWriter recyclingObjectsWriter;
+
+    @Override
+    public void persistRulesToObjects(List<ReadableSecurityRule> rules, XWikiDocument d, EntityReference rightsClass,
+        XWikiContext context) throws XWikiException
+    {
+        this.recyclingObjectsWriter.persistRulesToObjects(this.securityRuleAbacus.packRules(rules), d, rightsClass,
+            context);
+    }
+}
@@ -58,22 +58,23 @@ public class RecyclingObjectsRulesWriter extends AbstractRulesObjectWriter
 
         // collect all non null BaseObjects that can be recycled so that we recycle them
         List<BaseObject> recyclableObjects = storedObjects.stream().filter(k -> k != null).collect(Collectors.toList());
+        RightsClassMetadata metadata = prepareRightsClass(document, classReference, context);
 
         if (rules.size() > recyclableObjects.size()) {
             // more rules than recyclable objects -> recycle the objects and then create new ones until all rules are
             // persisted
             for (int i = 0; i < recyclableObjects.size(); ++i) {
-                copyRuleIntoBaseObject(recyclableObjects.get(i), rules.get(i), context);
+                copyRuleIntoBaseObject(recyclableObjects.get(i), rules.get(i), metadata, context);
             }
             for (int i = recyclableObjects.size(); i < rules.size(); ++i) {
                 // Create new objects in the document.
-                addNewRightObjectToDocument(rules.get(i), document, classReference, context);
+                addNewRightObjectToDocument(rules.get(i), document, classReference, metadata, context);
             }
         } else {
             // less or same number of rules to save than recyclable objects: fill the recyclable objects and remove the
             // rest of recyclableObjects
             for (int i = 0; i < rules.size(); ++i) {
-                copyRuleIntoBaseObject(recyclableObjects.get(i), rules.get(i), context);
+                copyRuleIntoBaseObject(recyclableObjects.get(i), rules.get(i), metadata, context);
             }
 
             for (int i = rules.size(); i < recyclableObjects.size(); ++i) {
@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Event sent to the other members of the cluster when the rules of an entity are updated, so that they can invalidate
+ * their caches and notify their {@link org.xwiki.contrib.rights.RightUpdatedEvent} listeners without computing the
+ * diff again. The diff is only computed when the event is serialized, i.e. when the remote observation is enabled.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+public class RemoteRightUpdatedEvent implements Event, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private transient EntityReference entity;
+
+    private transient List<SecurityRuleDiff> diffs;
+
+    /**
+     * Creates an event matching any rights update.
+     */
+    public RemoteRightUpdatedEvent()
+    {
+        this(null, Collections.emptyList());
+    }
+
+    /**
+     * @param entity the entity whose rules were updated
+     * @param diffs the diff of the rules of the entity
+     */
+    public RemoteRightUpdatedEvent(EntityReference entity, List<SecurityRuleDiff> diffs)
+    {
+        this.entity = entity;
+        this.diffs = diffs;
+    }
+
+    /**
+     * @return the entity whose rules were updated
+     */
+    public EntityReference getEntity()
+    {
+        return this.entity;
+    }
+
+    /**
+     * @return the diff of the rules of the entity
+     */
+    public List<SecurityRuleDiff> getDiffs()
+    {
+        return this.diffs;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        return otherEvent instanceof RemoteRightUpdatedEvent;
+    }
+
+    private void writeObject(ObjectOutputStream output) throws IOException
+    {
+        output.defaultWriteObject();
+        SecurityRuleDiffEncoding.writeReference(output, this.entity);
+        SecurityRuleDiffEncoding.writeDiffs(output, this.diffs);
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException
+    {
+        input.defaultReadObject();
+        this.entity = SecurityRuleDiffEncoding.readReference(input);
+        this.diffs = SecurityRuleDiffEncoding.readDiffs(input);
+    }
+}
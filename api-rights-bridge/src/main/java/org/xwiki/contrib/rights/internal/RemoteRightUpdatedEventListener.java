@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Collections;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.RightUpdatedEvent;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.SecurityReferenceFactory;
+import org.xwiki.security.authorization.cache.SecurityCache;
+
+/**
+ * Handles the {@link RemoteRightUpdatedEvent}s received from the other members of the cluster: invalidates the
+ * cached rights of the updated entity and of its descendants and triggers the {@link RightUpdatedEvent} with the
+ * received diff, unless it is empty.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Named(RemoteRightUpdatedEventListener.NAME)
+@Singleton
+public class RemoteRightUpdatedEventListener extends AbstractEventListener
+{
+    static final String NAME = "org.xwiki.contrib.rights.internal.RemoteRightUpdatedEventListener";
+
+    @Inject
+    private ObservationManager observationManager;
+
+    @Inject
+    private SecurityReferenceFactory securityReferenceFactory;
+
+    @Inject
+    private SecurityCache securityCache;
+
+    @Inject
+    private PersistedRulesCache persistedRulesCache;
+
+    @Inject
+    private ActualRulesCache actualRulesCache;
+
+    @Inject
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    /**
+     * Default constructor.
+     */
+    public RemoteRightUpdatedEventListener()
+    {
+        super(NAME, Collections.singletonList(new RemoteRightUpdatedEvent()));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // The local updates are handled by the RightObjectEventListener.
+        if (this.remoteObservationManagerContext.isRemoteState()) {
+            RemoteRightUpdatedEvent remoteEvent = (RemoteRightUpdatedEvent) event;
+            SecurityReference securityReference =
+                this.securityReferenceFactory.newEntityReference(remoteEvent.getEntity());
+            // The update is sent whenever the stored rules changed, even if they only were regrouped, which changes
+            // the cached persisted rules but not their meaning.
+            this.securityCache.remove(securityReference);
+            this.persistedRulesCache.remove(remoteEvent.getEntity());
+            this.actualRulesCache.invalidate(securityReference);
+            if (!remoteEvent.getDiffs().isEmpty()) {
+                this.observationManager.notify(new RightUpdatedEvent(securityReference, remoteEvent.getDiffs()),
+                    securityReference, remoteEvent.getDiffs());
+            }
+        }
+    }
+}
@@ -20,7 +20,9 @@
 package org.xwiki.contrib.rights.internal;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
@@ -28,16 +30,14 @@ import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.contrib.rights.RightUpdatedEvent;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 import org.xwiki.contrib.rights.RulesObjectWriter;
-import org.xwiki.contrib.rights.SecurityRuleAbacus;
-import org.xwiki.contrib.rights.SecurityRuleDiff;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.WikiReference;
 import org.xwiki.observation.AbstractEventListener;
-import org.xwiki.observation.ObservationManager;
 import org.xwiki.observation.event.Event;
 import org.xwiki.observation.remote.RemoteObservationManagerContext;
 import org.xwiki.security.SecurityReference;
@@ -66,24 +66,43 @@ public class RightObjectEventListener extends AbstractEventListener
 {
     static final String NAME = "org.xwiki.contrib.rights.internal.RightObjectEventListener";
 
-    @Inject
-    private ObservationManager observationManager;
+    /**
+     * The execution context property holding the last processed document save, see {@link ProcessedSave}.
+     */
+    private static final String PROCESSED_SAVE_PROPERTY = "rights.api.processedRightsSave";
 
+    /**
+     * Resolves the subjects of the rules the same way as {@link DefaultSecurityEntryReader}, so that rules are only
+     * considered unchanged when the security cache would compute the same rules.
+     */
     @Inject
-    private DocumentReferenceResolver<String> documentReferenceResolver;
+    @Named("user")
+    private DocumentReferenceResolver<String> userReferenceResolver;
 
     @Inject
     private SecurityReferenceFactory securityReferenceFactory;
 
     @Inject
-    private SecurityRuleAbacus securityRuleAbacus;
+    private SecurityCache securityCache;
 
     @Inject
-    private SecurityCache securityCache;
+    private PersistedRulesCache persistedRulesCache;
+
+    @Inject
+    private ActualRulesCache actualRulesCache;
 
     @Inject
     private RemoteObservationManagerContext remoteObservationManagerContext;
 
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private RightsUpdateNotifier updateNotifier;
+
+    @Inject
+    private RightsUpdateBatcher updateBatcher;
+
     /**
      * Default constructor.
      */
@@ -122,20 +141,59 @@ public class RightObjectEventListener extends AbstractEventListener
                 // handle rule update from page
                 sourceEntityReference = sourceDocumentReference;
             }
-            securityCache.remove(securityReferenceFactory.newEntityReference(sourceEntityReference));
-
             XWikiDocument currentDocument = (XWikiDocument) source;
+            if (isAlreadyProcessed(currentDocument, isGlobalRight)) {
+                return;
+            }
+
             XWikiDocument previousDocument = currentDocument.getOriginalDocument();
 
+            // The rules are read now since the documents can be modified once saved.
             List<ReadableSecurityRule> previousRules = this.getRules(previousDocument, isGlobalRight);
             List<ReadableSecurityRule> currentRules = this.getRules(currentDocument, isGlobalRight);
-
-            List<SecurityRuleDiff> securityRuleDiffs =
-                this.securityRuleAbacus.computeRuleDiff(previousRules, currentRules);
             SecurityReference securityReference =
                 this.securityReferenceFactory.newEntityReference(sourceEntityReference);
-            this.observationManager.notify(new RightUpdatedEvent(), securityReference, securityRuleDiffs);
+
+            // Removing an entry from the security cache or the actual rules cache also removes the entries of all its
+            // descendants, so only do it when the rules actually changed. Same rules always give an empty diff, so
+            // there is no need to compute it.
+            if (!previousRules.equals(currentRules)) {
+                this.securityCache.remove(securityReference);
+                this.persistedRulesCache.remove(sourceEntityReference);
+                this.actualRulesCache.invalidate(securityReference);
+                // The other members of the cluster invalidate their caches too, so only the local notification can
+                // be deferred.
+                this.updateNotifier.notifyRemoteUpdate(sourceEntityReference, previousRules, currentRules);
+            }
+            if (!this.updateBatcher.defer(sourceEntityReference, isGlobalRight, securityReference, previousRules,
+                currentRules))
+            {
+                this.updateNotifier.notifyUpdate(sourceEntityReference, securityReference, previousRules,
+                    currentRules);
+            }
+        }
+    }
+
+    /**
+     * Only the last processed save is remembered, since the object events of a save are fired one after the other, so
+     * that the documents of a request saving many documents are not retained.
+     *
+     * @return {@code true} if the rights objects of the passed class were already processed for this save of the
+     *     passed document
+     */
+    private boolean isAlreadyProcessed(XWikiDocument document, boolean isGlobalRight)
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            // Without a context to remember the processed saves, process each event.
+            return false;
+        }
+        ProcessedSave processedSave = (ProcessedSave) context.getProperty(PROCESSED_SAVE_PROPERTY);
+        if (processedSave == null || !processedSave.isSameSave(document)) {
+            processedSave = new ProcessedSave(document);
+            context.setProperty(PROCESSED_SAVE_PROPERTY, processedSave);
         }
+        return !processedSave.globalRightClasses.add(isGlobalRight);
     }
 
     private List<ReadableSecurityRule> getRules(XWikiDocument document, boolean globalOnly)
@@ -150,11 +208,36 @@ public class RightObjectEventListener extends AbstractEventListener
         for (BaseObject xObject : xObjects) {
             if (xObject != null) {
                 XWikiSecurityRule newRule =
-                    XWikiSecurityRule.createNewRule(xObject, this.documentReferenceResolver, wikiReference, false);
+                    XWikiSecurityRule.createNewRule(xObject, this.userReferenceResolver, wikiReference, false);
                 securityRules.add(newRule);
             }
         }
         return securityRules;
     }
 
+    /**
+     * The rights classes of a document save that were already processed. Saving a document fires one
+     * {@link XObjectEvent} per changed rights object, but the whole set of rights objects of a class is diffed when the
+     * first event is received, so the next events of the same save and class have nothing to add.
+     */
+    private static final class ProcessedSave
+    {
+        private final XWikiDocument document;
+
+        private final XWikiDocument originalDocument;
+
+        private final Set<Boolean> globalRightClasses = new HashSet<>();
+
+        ProcessedSave(XWikiDocument document)
+        {
+            this.document = document;
+            this.originalDocument = document.getOriginalDocument();
+        }
+
+        boolean isSameSave(XWikiDocument otherDocument)
+        {
+            // The original document is reset after each save, so it tells two saves of the same instance apart.
+            return this.document == otherDocument && this.originalDocument == otherDocument.getOriginalDocument();
+        }
+    }
 }
@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Runs the computation and the notification of the {@link org.xwiki.contrib.rights.RightUpdatedEvent}s out of the
+ * thread saving the documents, when enabled in the configuration. The tasks of an entity are always run by the same
+ * thread, so that the events of an entity are fired in the order of its changes. When the queue of a thread is full,
+ * the submitting thread waits for some room instead of dropping or reordering the task. The tasks run in a new execution
+ * context holding the wiki and the user of the submitting thread, so that submitting them doesn't copy the whole
+ * context of the thread saving the documents.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = RightUpdatedEventExecutor.class)
+@Singleton
+public class RightUpdatedEventExecutor implements Initializable, Disposable
+{
+    /**
+     * The configuration property enabling the asynchronous notification of the rights updates.
+     */
+    static final String ASYNC_PROPERTY = "rights.api.events.async";
+
+    /**
+     * The configuration property holding the maximum number of tasks waiting to be run by each thread.
+     */
+    static final String QUEUE_SIZE_PROPERTY = "rights.api.events.queueSize";
+
+    /**
+     * The configuration property holding the number of threads running the tasks.
+     */
+    static final String THREADS_PROPERTY = "rights.api.events.threads";
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final int DEFAULT_THREADS = 2;
+
+    private static final long DISPOSE_TIMEOUT = 30L;
+
+    @Inject
+    private ExecutionContextCloner contextCloner;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The single thread executors running the tasks, or {@code null} when the tasks are run synchronously.
+     */
+    private ThreadPoolExecutor[] stripes;
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private final AtomicLong executedTaskCount = new AtomicLong();
+
+    /**
+     * Set while a thread of the executor runs a task.
+     */
+    private final ThreadLocal<Boolean> runningTask = new ThreadLocal<>();
+
+    @Override
+    public void initialize()
+    {
+        if (this.configuration.getProperty(ASYNC_PROPERTY, false)) {
+            int queueSize = Math.max(1, this.configuration.getProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+            int threads = Math.max(1, this.configuration.getProperty(THREADS_PROPERTY, DEFAULT_THREADS));
+            ThreadFactory threadFactory = new BasicThreadFactory.Builder()
+                .namingPattern("XWiki Rights Events %d").daemon(true).build();
+            this.stripes = new ThreadPoolExecutor[threads];
+            for (int i = 0; i < threads; i++) {
+                this.stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), threadFactory, this::waitForRoom);
+            }
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.stripes != null) {
+            for (ThreadPoolExecutor stripe : this.stripes) {
+                stripe.shutdown();
+            }
+            try {
+                for (ThreadPoolExecutor stripe : this.stripes) {
+                    if (!stripe.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                        this.logger.warn("Timed out while notifying the queued rights updates.");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ComponentLifecycleException("Interrupted while notifying the queued rights updates", e);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the tasks are run in background threads, {@code false} if they are run by the thread
+     *     submitting them
+     */
+    public boolean isAsynchronous()
+    {
+        return this.stripes != null;
+    }
+
+    /**
+     * Runs the passed task, in a background thread if {@link #isAsynchronous() asynchronous}, in the current thread
+     * otherwise. The tasks submitted by a task, e.g. by a listener saving rights, are run right away in the current
+     * thread, since it could otherwise wait forever for some room in its own queue.
+     *
+     * @param entity the entity whose rules update is handled by the task
+     * @param task the task to run
+     */
+    public void execute(EntityReference entity, Runnable task)
+    {
+        if (this.stripes == null || this.runningTask.get() != null) {
+            run(entity, task);
+        } else {
+            Runnable contextualTask = this.contextCloner.wrapInNewContext(() -> runInThread(entity, task));
+            ThreadPoolExecutor stripe = this.stripes[Math.floorMod(entity.hashCode(), this.stripes.length)];
+            stripe.execute(contextualTask);
+            this.maxQueueDepth.accumulateAndGet(stripe.getQueue().size(), Math::max);
+        }
+    }
+
+    /**
+     * @return the number of tasks currently waiting to be run
+     */
+    public int getQueueDepth()
+    {
+        int queueDepth = 0;
+        if (this.stripes != null) {
+            for (ThreadPoolExecutor stripe : this.stripes) {
+                queueDepth += stripe.getQueue().size();
+            }
+        }
+        return queueDepth;
+    }
+
+    /**
+     * @return the maximum number of tasks that were waiting to be run by a same thread
+     */
+    public int getMaxQueueDepth()
+    {
+        return this.maxQueueDepth.get();
+    }
+
+    /**
+     * @return the number of tasks that were run
+     */
+    public long getExecutedTaskCount()
+    {
+        return this.executedTaskCount.get();
+    }
+
+    private void runInThread(EntityReference entity, Runnable task)
+    {
+        this.runningTask.set(Boolean.TRUE);
+        try {
+            run(entity, task);
+        } finally {
+            this.runningTask.remove();
+        }
+    }
+
+    private void run(EntityReference entity, Runnable task)
+    {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            if (this.stripes == null) {
+                throw e;
+            }
+            this.logger.warn("Failed to notify the rights update of [{}]: [{}]", entity,
+                ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            this.executedTaskCount.incrementAndGet();
+        }
+    }
+
+    private void waitForRoom(Runnable task, ThreadPoolExecutor stripe)
+    {
+        if (stripe.isShutdown()) {
+            throw new RejectedExecutionException("The rights updates are not notified anymore");
+        }
+        try {
+            stripe.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to notify a rights update", e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.RightUpdatedEvent;
+import org.xwiki.contrib.rights.RightsChangeJournal;
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Records the {@link RightUpdatedEvent}s in the {@link RightsChangeJournal}, when it is enabled.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Named(RightsChangeJournalListener.NAME)
+@Singleton
+public class RightsChangeJournalListener extends AbstractEventListener
+{
+    static final String NAME = "org.xwiki.contrib.rights.internal.RightsChangeJournalListener";
+
+    @Inject
+    private RightsChangeJournal journal;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Default constructor.
+     */
+    public RightsChangeJournalListener()
+    {
+        super(NAME, Collections.singletonList(new RightUpdatedEvent()));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Checked first so that the diff is not computed when the journal is disabled.
+        if (this.journal.isEnabled()) {
+            List<SecurityRuleDiff> diffs = (List<SecurityRuleDiff>) data;
+            if (!diffs.isEmpty()) {
+                try {
+                    this.journal.append((EntityReference) source, diffs);
+                } catch (IOException e) {
+                    this.logger.warn("Failed to record the rights change of [{}] in the journal: [{}]", source,
+                        ExceptionUtils.getRootCauseMessage(e));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+
+import com.xpn.xwiki.objects.classes.BaseClass;
+import com.xpn.xwiki.objects.classes.PropertyClass;
+
+/**
+ * The metadata of a rights class, resolved once to write all the rights objects of a document during a save. It also
+ * remembers the serialized subjects and level names, since the same subjects and rights usually appear in many objects.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+final class RightsClassMetadata
+{
+    private final PropertyClass groupsClass;
+
+    private final PropertyClass usersClass;
+
+    private final PropertyClass levelsClass;
+
+    private final DocumentReference documentReference;
+
+    private final EntityReferenceSerializer<String> serializer;
+
+    private final Map<DocumentReference, String> serializedSubjects = new HashMap<>();
+
+    private final Map<RightSet, String[]> levelNames = new HashMap<>();
+
+    /**
+     * @param rightsClass the rights class
+     * @param documentReference the document holding the objects, the subjects are serialized relative to it
+     * @param serializer the serializer used for the subjects
+     */
+    RightsClassMetadata(BaseClass rightsClass, DocumentReference documentReference,
+        EntityReferenceSerializer<String> serializer)
+    {
+        this.groupsClass = (PropertyClass) rightsClass.get(AbstractRulesObjectWriter.GROUPS_FIELD_RIGHTS_OBJECT);
+        this.usersClass = (PropertyClass) rightsClass.get(AbstractRulesObjectWriter.USERS_FIELD_RIGHTS_OBJECT);
+        this.levelsClass = (PropertyClass) rightsClass.get(AbstractRulesObjectWriter.LEVELS_FIELD_RIGHTS_OBJECT);
+        this.documentReference = documentReference;
+        this.serializer = serializer;
+    }
+
+    /**
+     * @return the definition of the groups property, or {@code null} if the class doesn't have it
+     */
+    PropertyClass getGroupsClass()
+    {
+        return this.groupsClass;
+    }
+
+    /**
+     * @return the definition of the users property, or {@code null} if the class doesn't have it
+     */
+    PropertyClass getUsersClass()
+    {
+        return this.usersClass;
+    }
+
+    /**
+     * @return the definition of the levels property, or {@code null} if the class doesn't have it
+     */
+    PropertyClass getLevelsClass()
+    {
+        return this.levelsClass;
+    }
+
+    /**
+     * @param subjects users or groups
+     * @return the passed subjects, serialized relative to the document holding the objects
+     */
+    String[] serializeSubjects(List<DocumentReference> subjects)
+    {
+        String[] result = new String[subjects.size()];
+        for (int i = 0; i < result.length; i++) {
+            DocumentReference subject = subjects.get(i);
+            String serializedSubject = this.serializedSubjects.get(subject);
+            if (serializedSubject == null) {
+                serializedSubject = this.serializer.serialize(subject, this.documentReference);
+                this.serializedSubjects.put(subject, serializedSubject);
+            }
+            result[i] = serializedSubject;
+        }
+        return result;
+    }
+
+    /**
+     * @param rights the rights of a rule
+     * @return the names of the passed rights, to be stored in the levels property
+     */
+    String[] getLevelNames(RightSet rights)
+    {
+        String[] names = this.levelNames.get(rights);
+        if (names == null) {
+            names = rights.stream().map(Right::getName).toArray(String[]::new);
+            // Copy the rights since the rule might be modified after the save
+            this.levelNames.put(new RightSet(rights), names);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.contrib.rights.BulkRightsUpdates;
+import org.xwiki.contrib.rights.RightsImportRecord;
+import org.xwiki.contrib.rights.RightsImportReport;
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsWriter;
+import org.xwiki.contrib.rights.SaveRulesResult;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.AuthorizationException;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+/**
+ * A single run of {@link DefaultRightsImporter}. The storage documents are spread over stripes, each stripe buffering
+ * the rules of its entities until the batch is full. When several batches can be saved in parallel, each stripe saves
+ * its batches in its own thread, in order, so that a storage document is never saved concurrently and an entity
+ * appearing in several batches is merged with the rules saved by the previous batches. Each batch is saved as a bulk
+ * operation (see {@link BulkRightsUpdates}), so that the rights updates are consolidated without keeping the rules of
+ * the previous batches in memory.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+class RightsImportRun
+{
+    private static final String THREAD_NAME_PATTERN = "XWiki Rights Import %d";
+
+    private final RightsWriter rightsWriter;
+
+    private final RightsReader rightsReader;
+
+    private final SecurityRuleAbacus securityRuleAbacus;
+
+    private final BulkRightsUpdates bulkRightsUpdates;
+
+    private final Logger logger;
+
+    private final int batchSize;
+
+    private final List<Stripe> stripes = new ArrayList<>();
+
+    private final UnaryOperator<Runnable> contextWrapper;
+
+    private final Semaphore pendingBatches;
+
+    /**
+     * The entities submitted by the previous batches, with the outcome of their saves so far ({@code null} until their
+     * first batch is saved), the only state of the run growing with the size of the feed (see
+     * {@link org.xwiki.contrib.rights.RightsImporter}).
+     */
+    private final Map<EntityReference, SaveRulesResult> entityResults = new LinkedHashMap<>();
+
+    private long recordCount;
+
+    private long invalidRecordCount;
+
+    /**
+     * @param rightsWriter used to create and save the rules
+     * @param rightsReader used to read the rules saved by previous batches
+     * @param securityRuleAbacus used to pack the rules of the entities
+     * @param bulkRightsUpdates used to consolidate the rights updates of each batch
+     * @param logger used to log the invalid records and the failures
+     * @param batchSize the maximum number of entities buffered per stripe
+     * @param concurrency the number of stripes
+     * @param contextWrapper wraps the saving of a batch so that it runs in its own execution context, called in the
+     *     importing thread when the batch is submitted. Only used when {@code concurrency} is greater than 1.
+     */
+    RightsImportRun(RightsWriter rightsWriter, RightsReader rightsReader, SecurityRuleAbacus securityRuleAbacus,
+        BulkRightsUpdates bulkRightsUpdates, Logger logger, int batchSize, int concurrency,
+        UnaryOperator<Runnable> contextWrapper)
+    {
+        this.rightsWriter = rightsWriter;
+        this.rightsReader = rightsReader;
+        this.securityRuleAbacus = securityRuleAbacus;
+        this.bulkRightsUpdates = bulkRightsUpdates;
+        this.logger = logger;
+        this.batchSize = Math.max(1, batchSize);
+        this.contextWrapper = contextWrapper;
+        int stripeCount = Math.max(1, concurrency);
+        // Bound the number of batches waiting to be saved, so that a slow database doesn't make the buffers grow.
+        this.pendingBatches = new Semaphore(2 * stripeCount);
+        BasicThreadFactory threadFactory =
+            new BasicThreadFactory.Builder().namingPattern(THREAD_NAME_PATTERN).daemon(true).build();
+        for (int i = 0; i < stripeCount; i++) {
+            ExecutorService executor = stripeCount > 1 ? Executors.newSingleThreadExecutor(threadFactory) : null;
+            this.stripes.add(new Stripe(executor));
+        }
+    }
+
+    /**
+     * Buffers the passed record, saving the batch of its stripe if it is full.
+     *
+     * @param record the record to import
+     * @throws InterruptedException if interrupted while waiting for a previous batch to be saved
+     */
+    void add(RightsImportRecord record) throws InterruptedException
+    {
+        RulesStorageTarget target;
+        try {
+            target = RulesStorageTarget.of(checkRecord(record));
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            invalidRecord(record, e.getMessage());
+            return;
+        }
+        this.recordCount++;
+
+        Stripe stripe = this.stripes.get(Math.floorMod(target.getDocumentReference().hashCode(), this.stripes.size()));
+        EntityReference entity = record.getEntity();
+        List<ReadableSecurityRule> entityRules = stripe.rules.get(entity);
+        if (entityRules == null) {
+            entityRules = new ArrayList<>();
+            stripe.rules.put(entity, entityRules);
+            if (isFlushed(entity)) {
+                stripe.mergedEntities.add(entity);
+            }
+        }
+        List<DocumentReference> subject = Collections.singletonList(record.getSubject());
+        List<DocumentReference> noSubject = Collections.emptyList();
+        entityRules.add(this.rightsWriter.createRule(record.isGroup() ? subject : noSubject,
+            record.isGroup() ? noSubject : subject, new ArrayList<>(record.getRights()), record.getState()));
+
+        if (stripe.rules.size() >= this.batchSize) {
+            flush(stripe);
+        }
+    }
+
+    /**
+     * Counts a record that was skipped because it could not be understood.
+     *
+     * @param record a description of the record
+     * @param reason why the record was skipped
+     */
+    void invalidRecord(Object record, String reason)
+    {
+        this.recordCount++;
+        this.invalidRecordCount++;
+        this.logger.warn("Skipping invalid rights import record [{}]: [{}]", record, reason);
+    }
+
+    /**
+     * Saves the remaining batches and waits for all the batches to be saved.
+     *
+     * @return the outcome of the import
+     * @throws InterruptedException if interrupted while waiting for the batches to be saved
+     */
+    RightsImportReport finish() throws InterruptedException
+    {
+        try {
+            for (Stripe stripe : this.stripes) {
+                if (!stripe.rules.isEmpty()) {
+                    flush(stripe);
+                }
+            }
+        } finally {
+            shutdown();
+        }
+
+        // Each entity is counted once, with the outcome of all the batches it appeared in.
+        Map<SaveRulesResult, Integer> entityCounts = new EnumMap<>(SaveRulesResult.class);
+        List<EntityReference> failedEntities = new ArrayList<>();
+        synchronized (this.entityResults) {
+            for (Map.Entry<EntityReference, SaveRulesResult> entry : this.entityResults.entrySet()) {
+                entityCounts.merge(entry.getValue(), 1, Integer::sum);
+                if (entry.getValue() == SaveRulesResult.FAILED) {
+                    failedEntities.add(entry.getKey());
+                }
+            }
+        }
+        return new RightsImportReport(this.recordCount, this.invalidRecordCount, entityCounts, failedEntities);
+    }
+
+    /**
+     * Stops the import without waiting for the pending batches, when the feed cannot be read until its end.
+     */
+    void abort()
+    {
+        for (Stripe stripe : this.stripes) {
+            if (stripe.executor != null) {
+                stripe.executor.shutdownNow();
+            }
+        }
+    }
+
+    private void shutdown() throws InterruptedException
+    {
+        for (Stripe stripe : this.stripes) {
+            if (stripe.executor != null) {
+                stripe.executor.shutdown();
+            }
+        }
+        for (Stripe stripe : this.stripes) {
+            if (stripe.executor != null) {
+                stripe.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private EntityReference checkRecord(RightsImportRecord record)
+    {
+        if (record == null || record.getEntity() == null || record.getSubject() == null || record.getState() == null
+            || record.getRights() == null || record.getRights().isEmpty()) {
+            throw new IllegalArgumentException("The record is incomplete.");
+        }
+        return record.getEntity();
+    }
+
+    private void flush(Stripe stripe) throws InterruptedException
+    {
+        Map<EntityReference, List<ReadableSecurityRule>> batch = stripe.rules;
+        Set<EntityReference> mergedEntities = stripe.mergedEntities;
+        stripe.rules = new LinkedHashMap<>();
+        stripe.mergedEntities = new HashSet<>();
+        synchronized (this.entityResults) {
+            for (EntityReference entity : batch.keySet()) {
+                if (!this.entityResults.containsKey(entity)) {
+                    this.entityResults.put(entity, null);
+                }
+            }
+        }
+
+        if (stripe.executor == null) {
+            save(batch, mergedEntities);
+        } else {
+            this.pendingBatches.acquire();
+            Runnable task = this.contextWrapper.apply(() -> save(batch, mergedEntities));
+            stripe.executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    this.pendingBatches.release();
+                }
+            });
+        }
+    }
+
+    private void save(Map<EntityReference, List<ReadableSecurityRule>> batch, Set<EntityReference> mergedEntities)
+    {
+        Map<EntityReference, List<ReadableSecurityRule>> packedRules = new LinkedHashMap<>();
+        for (Map.Entry<EntityReference, List<ReadableSecurityRule>> entry : batch.entrySet()) {
+            List<ReadableSecurityRule> entityRules = entry.getValue();
+            if (mergedEntities.contains(entry.getKey())) {
+                // The entity was already imported by a previous batch of the same stripe, which is saved by now.
+                if (getResult(entry.getKey()) == SaveRulesResult.FAILED) {
+                    // Merging with the rules persisted before the import would add to them instead of replacing them.
+                    this.logger.warn("Skipping the rights imported for [{}] since a previous batch failed to save it",
+                        entry.getKey());
+                    continue;
+                }
+                try {
+                    entityRules = new ArrayList<>(this.rightsReader.getRules(entry.getKey(), false));
+                    entityRules.addAll(entry.getValue());
+                } catch (AuthorizationException e) {
+                    this.logger.warn("Failed to read the rules already imported for [{}]: [{}]", entry.getKey(),
+                        ExceptionUtils.getRootCauseMessage(e));
+                    count(entry.getKey(), SaveRulesResult.FAILED);
+                    continue;
+                }
+            }
+            packedRules.put(entry.getKey(), this.securityRuleAbacus.packRules(entityRules));
+        }
+
+        // The updates of the batch are notified once it is saved, an import being too large to be a single bulk
+        // operation.
+        try (BulkRightsUpdates.Bulk bulk = this.bulkRightsUpdates.begin()) {
+            this.rightsWriter.saveRules(packedRules).forEach(this::count);
+        } catch (RuntimeException e) {
+            this.logger.warn("Failed to save a batch of imported rights: [{}]", ExceptionUtils.getRootCauseMessage(e));
+            packedRules.keySet().forEach(entity -> count(entity, SaveRulesResult.FAILED));
+        }
+    }
+
+    private boolean isFlushed(EntityReference entity)
+    {
+        synchronized (this.entityResults) {
+            return this.entityResults.containsKey(entity);
+        }
+    }
+
+    private SaveRulesResult getResult(EntityReference entity)
+    {
+        synchronized (this.entityResults) {
+            return this.entityResults.get(entity);
+        }
+    }
+
+    private void count(EntityReference entity, SaveRulesResult result)
+    {
+        synchronized (this.entityResults) {
+            // A failure is final, otherwise the entity is saved when any of its batches changed its rules.
+            this.entityResults.merge(entity, result, RightsImportRun::combine);
+        }
+    }
+
+    private static SaveRulesResult combine(SaveRulesResult previous, SaveRulesResult result)
+    {
+        if (previous == SaveRulesResult.FAILED || result == SaveRulesResult.FAILED) {
+            return SaveRulesResult.FAILED;
+        } else if (previous == SaveRulesResult.SAVED || result == SaveRulesResult.SAVED) {
+            return SaveRulesResult.SAVED;
+        }
+        return result;
+    }
+
+    private static final class Stripe
+    {
+        private final ExecutorService executor;
+
+        private Map<EntityReference, List<ReadableSecurityRule>> rules = new LinkedHashMap<>();
+
+        private Set<EntityReference> mergedEntities = new HashSet<>();
+
+        Stripe(ExecutorService executor)
+        {
+            this.executor = executor;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+/**
+ * Consolidates the notifications of the rights updates, during a bulk operation (e.g. an import) marked with
+ * {@link #beginBulk()} and {@link #endBulk()} (see {@link org.xwiki.contrib.rights.BulkRightsUpdates}), and, when the
+ * {@code rights.api.events.debounceDelay} configuration property is set, over a window of that many milliseconds.
+ * Successive updates of the rules of an entity are notified once, with the diff between the rules before the first
+ * update and the rules after the last one. Only the local notifications are delayed: the caches are still invalidated
+ * on each update, and each update is still sent right away to the other members of the cluster so that they
+ * invalidate their caches too.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = RightsUpdateBatcher.class)
+@Singleton
+public class RightsUpdateBatcher implements Initializable, Disposable
+{
+    /**
+     * The configuration property holding the delay, in milliseconds, during which the rights updates are consolidated
+     * before being notified. The updates are notified right away when not set.
+     */
+    static final String DEBOUNCE_DELAY_PROPERTY = "rights.api.events.debounceDelay";
+
+    /**
+     * The execution context property holding the updates of the current bulk operation.
+     */
+    private static final String BULK_PROPERTY = "rights.api.bulkRightsUpdates";
+
+    private static final long DISPOSE_TIMEOUT = 30L;
+
+    @Inject
+    private RightsUpdateNotifier notifier;
+
+    @Inject
+    private ExecutionContextCloner contextCloner;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The updates waiting for the end of the debounce delay. Also used to synchronize the access to the scheduled
+     * flush.
+     */
+    private final Map<Pair<EntityReference, Boolean>, PendingUpdate> debouncedUpdates = new LinkedHashMap<>();
+
+    private boolean flushScheduled;
+
+    private long debounceDelay;
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void initialize()
+    {
+        this.debounceDelay = this.configuration.getProperty(DEBOUNCE_DELAY_PROPERTY, 0L);
+        if (this.debounceDelay > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder().namingPattern("XWiki Rights Updates Debouncer").daemon(true).build());
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.scheduler != null) {
+            this.scheduler.execute(this::flushDebouncedUpdates);
+            this.scheduler.shutdown();
+            try {
+                if (!this.scheduler.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                    this.logger.warn("Timed out while notifying the debounced rights updates.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ComponentLifecycleException("Interrupted while notifying the debounced rights updates", e);
+            }
+        }
+    }
+
+    /**
+     * Starts a bulk operation in the current execution context: the rights updates are notified when it ends. Bulk
+     * operations can be nested, the updates being notified when the outermost one ends. The bulk operation is
+     * inherited by the copies of the execution context, so that the updates done by background threads working for it
+     * are notified with the others.
+     *
+     * @return {@code true} if the bulk operation was started, {@code false} if there is no execution context, in
+     *     which case the updates are notified right away and {@link #endBulk()} must not be called
+     */
+    public boolean beginBulk()
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return false;
+        }
+        BulkUpdates bulk = (BulkUpdates) context.getProperty(BULK_PROPERTY);
+        if (bulk == null) {
+            bulk = new BulkUpdates();
+            context.newProperty(BULK_PROPERTY).inherited().initial(bulk).declare();
+        }
+        synchronized (bulk) {
+            bulk.depth++;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a bulk operation started with {@link #beginBulk()} in the current execution context, and notifies the rights
+     * updates if it is the outermost one.
+     *
+     * @throws IllegalStateException if no bulk operation was started in the current execution context
+     */
+    public void endBulk() throws IllegalStateException
+    {
+        ExecutionContext context = this.execution.getContext();
+        BulkUpdates bulk = context != null ? (BulkUpdates) context.getProperty(BULK_PROPERTY) : null;
+        if (bulk == null) {
+            throw new IllegalStateException("No bulk rights update was started in the current execution context");
+        }
+        Map<Pair<EntityReference, Boolean>, PendingUpdate> updates = null;
+        synchronized (bulk) {
+            if (bulk.depth == 0) {
+                throw new IllegalStateException(
+                    "The bulk rights update of the current execution context already ended");
+            }
+            bulk.depth--;
+            if (bulk.depth == 0) {
+                updates = new LinkedHashMap<>(bulk.updates);
+                bulk.updates.clear();
+            }
+        }
+        if (updates != null) {
+            context.removeProperty(BULK_PROPERTY);
+            notifyUpdates(updates);
+        }
+    }
+
+    /**
+     * Holds the notification of a rights update, if a bulk operation is running or if the updates are debounced.
+     *
+     * @param entityReference the entity whose rules were updated
+     * @param globalRights {@code true} if the updated rules are global rules, {@code false} otherwise
+     * @param securityReference the security reference of the entity
+     * @param previousRules the rules of the entity before the update
+     * @param currentRules the rules of the entity after the update
+     * @return {@code true} if the notification is held, {@code false} if it has to be done right away
+     */
+    public boolean defer(EntityReference entityReference, boolean globalRights, SecurityReference securityReference,
+        List<ReadableSecurityRule> previousRules, List<ReadableSecurityRule> currentRules)
+    {
+        ExecutionContext context = this.execution.getContext();
+        BulkUpdates bulk = context != null ? (BulkUpdates) context.getProperty(BULK_PROPERTY) : null;
+        if (bulk != null) {
+            synchronized (bulk) {
+                // A copy of the execution context can hold a bulk operation that already ended.
+                if (bulk.depth > 0) {
+                    merge(bulk.updates, entityReference, globalRights, securityReference, previousRules,
+                        currentRules);
+                    return true;
+                }
+            }
+        }
+        if (this.scheduler != null) {
+            synchronized (this.debouncedUpdates) {
+                merge(this.debouncedUpdates, entityReference, globalRights, securityReference, previousRules,
+                    currentRules);
+                if (!this.flushScheduled) {
+                    // The updates are notified in the context of the first one.
+                    ExecutionContext flushContext = this.contextCloner.cloneCurrentContext();
+                    this.scheduler.schedule(() -> this.contextCloner.runIn(flushContext, () -> {
+                        flushDebouncedUpdates();
+                        return null;
+                    }), this.debounceDelay, TimeUnit.MILLISECONDS);
+                    this.flushScheduled = true;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void merge(Map<Pair<EntityReference, Boolean>, PendingUpdate> updates, EntityReference entityReference,
+        boolean globalRights, SecurityReference securityReference, List<ReadableSecurityRule> previousRules,
+        List<ReadableSecurityRule> currentRules)
+    {
+        // The rules objects of both classes can be stored in the same document, for the same entity.
+        PendingUpdate update = updates.computeIfAbsent(Pair.of(entityReference, globalRights),
+            key -> new PendingUpdate(entityReference, securityReference, previousRules));
+        update.currentRules = currentRules;
+    }
+
+    private void flushDebouncedUpdates()
+    {
+        Map<Pair<EntityReference, Boolean>, PendingUpdate> updates;
+        synchronized (this.debouncedUpdates) {
+            updates = new LinkedHashMap<>(this.debouncedUpdates);
+            this.debouncedUpdates.clear();
+            this.flushScheduled = false;
+        }
+        notifyUpdates(updates);
+    }
+
+    private void notifyUpdates(Map<Pair<EntityReference, Boolean>, PendingUpdate> updates)
+    {
+        for (PendingUpdate update : updates.values()) {
+            try {
+                this.notifier.notifyUpdate(update.entityReference, update.securityReference, update.previousRules,
+                    update.currentRules);
+            } catch (RuntimeException e) {
+                this.logger.warn("Failed to notify the rights update of [{}]: [{}]", update.entityReference,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    private static final class BulkUpdates
+    {
+        private final Map<Pair<EntityReference, Boolean>, PendingUpdate> updates = new LinkedHashMap<>();
+
+        private int depth;
+    }
+
+    private static final class PendingUpdate
+    {
+        private final EntityReference entityReference;
+
+        private final SecurityReference securityReference;
+
+        private final List<ReadableSecurityRule> previousRules;
+
+        private List<ReadableSecurityRule> currentRules;
+
+        PendingUpdate(EntityReference entityReference, SecurityReference securityReference,
+            List<ReadableSecurityRule> previousRules)
+        {
+            this.entityReference = entityReference;
+            this.securityReference = securityReference;
+            this.previousRules = previousRules;
+        }
+    }
+}
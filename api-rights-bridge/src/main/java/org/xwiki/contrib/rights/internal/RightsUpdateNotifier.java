@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.rights.RightUpdatedEvent;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+/**
+ * Fires the {@link RightUpdatedEvent} of an update of the rules of an entity, through the
+ * {@link RightUpdatedEventExecutor}, and sends the update to the other members of the cluster.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = RightsUpdateNotifier.class)
+@Singleton
+public class RightsUpdateNotifier
+{
+    @Inject
+    private ObservationManager observationManager;
+
+    @Inject
+    private SecurityRuleAbacus securityRuleAbacus;
+
+    @Inject
+    private RightUpdatedEventExecutor eventExecutor;
+
+    /**
+     * Fires the {@link RightUpdatedEvent} of an update on the local member of the cluster.
+     *
+     * @param entityReference the entity whose rules were updated
+     * @param securityReference the security reference of the entity
+     * @param previousRules the rules of the entity before the update
+     * @param currentRules the rules of the entity after the update
+     */
+    public void notifyUpdate(EntityReference entityReference, SecurityReference securityReference,
+        List<ReadableSecurityRule> previousRules, List<ReadableSecurityRule> currentRules)
+    {
+        if (this.eventExecutor.isAsynchronous()) {
+            this.eventExecutor.execute(entityReference,
+                () -> fireEvents(securityReference, previousRules, currentRules));
+        } else {
+            fireEvents(securityReference, previousRules, currentRules);
+        }
+    }
+
+    /**
+     * Sends an update to the other members of the cluster, if any, right away: they invalidate their caches when they
+     * receive it, so it is never delayed like the local notification can be.
+     *
+     * @param entityReference the entity whose rules were updated
+     * @param previousRules the rules of the entity before the update
+     * @param currentRules the rules of the entity after the update
+     */
+    public void notifyRemoteUpdate(EntityReference entityReference, List<ReadableSecurityRule> previousRules,
+        List<ReadableSecurityRule> currentRules)
+    {
+        // Same rules always give an empty diff, which is not worth sending.
+        if (!previousRules.equals(currentRules)) {
+            this.observationManager.notify(new RemoteRightUpdatedEvent(entityReference, getDiffs(previousRules,
+                currentRules)), null, null);
+        }
+    }
+
+    private void fireEvents(SecurityReference securityReference, List<ReadableSecurityRule> previousRules,
+        List<ReadableSecurityRule> currentRules)
+    {
+        List<SecurityRuleDiff> securityRuleDiffs = getDiffs(previousRules, currentRules);
+        this.observationManager.notify(new RightUpdatedEvent(securityReference, securityRuleDiffs), securityReference,
+            securityRuleDiffs);
+    }
+
+    private List<SecurityRuleDiff> getDiffs(List<ReadableSecurityRule> previousRules,
+        List<ReadableSecurityRule> currentRules)
+    {
+        // The diff is only computed if it is read.
+        return new LazySecurityRuleDiffList(() -> this.securityRuleAbacus.computeRuleDiff(previousRules, currentRules));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.xwiki.contrib.rights.RulesObjectWriter;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Where the rules of an entity are persisted: the document holding the rights objects and the class of these objects.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+final class RulesStorageTarget
+{
+    private final EntityReference entityReference;
+
+    private final DocumentReference documentReference;
+
+    private final EntityReference classReference;
+
+    private final boolean preferencesDocument;
+
+    private RulesStorageTarget(EntityReference entityReference, DocumentReference documentReference,
+        EntityReference classReference, boolean preferencesDocument)
+    {
+        this.entityReference = entityReference;
+        this.documentReference = documentReference;
+        this.classReference = classReference;
+        this.preferencesDocument = preferencesDocument;
+    }
+
+    /**
+     * @param reference the reference to save rules on, a document or a space or a wiki
+     * @return where the rules of the passed reference are persisted
+     * @throws UnsupportedOperationException if access rules cannot be saved at the level of the passed reference
+     */
+    static RulesStorageTarget of(EntityReference reference) throws UnsupportedOperationException
+    {
+        switch (reference.getType()) {
+            case WIKI:
+                WikiReference wikiReference = new WikiReference(reference);
+                return new RulesStorageTarget(wikiReference, new DocumentReference(RulesObjectWriter.XWIKI_PREFERENCES,
+                    new SpaceReference(DefaultRightsWriter.XWIKI_SPACE, wikiReference)),
+                    DefaultRightsWriter.XWIKI_GLOBAL_RIGHTS_CLASS, true);
+            case SPACE:
+                SpaceReference spaceReference = new SpaceReference(reference);
+                return new RulesStorageTarget(spaceReference,
+                    new DocumentReference(RulesObjectWriter.XWIKI_WEB_PREFERENCES, spaceReference),
+                    DefaultRightsWriter.XWIKI_GLOBAL_RIGHTS_CLASS, true);
+            case DOCUMENT:
+                // The current reference corresponds to a terminal page.
+                DocumentReference pageReference = new DocumentReference(reference);
+                return new RulesStorageTarget(pageReference, pageReference,
+                    DefaultRightsWriter.XWIKI_RIGHTS_CLASS, false);
+            default:
+                throw new UnsupportedOperationException("Could not set rights for the given reference.");
+        }
+    }
+
+    /**
+     * @return the entity the rules apply to, a wiki or a space or a document
+     */
+    EntityReference getEntityReference()
+    {
+        return this.entityReference;
+    }
+
+    /**
+     * @return the reference of the document holding the rights objects
+     */
+    DocumentReference getDocumentReference()
+    {
+        return this.documentReference;
+    }
+
+    /**
+     * @return the class of the rights objects
+     */
+    EntityReference getClassReference()
+    {
+        return this.classReference;
+    }
+
+    /**
+     * @return {@code true} if the document holding the rights objects is a preferences document, which is only created
+     *     to store rights
+     */
+    boolean isPreferencesDocument()
+    {
+        return this.preferencesDocument;
+    }
+
+    /**
+     * @param document the document holding the rights objects
+     * @param resolver the resolver used for the users and groups of the objects
+     * @return the rules stored in the passed document for this target, or {@code null} if some of the objects cannot be
+     *     turned into rules
+     */
+    List<ReadableSecurityRule> readRules(XWikiDocument document, DocumentReferenceResolver<String> resolver)
+    {
+        return readRules(document, resolver, false);
+    }
+
+    /**
+     * @param document the document holding the rights objects
+     * @param resolver the resolver used for the users and groups of the objects
+     * @param skipMalformed {@code true} to ignore the objects that cannot be turned into rules, like the security
+     *     cache does, {@code false} to return {@code null} when there are such objects
+     * @return the rules stored in the passed document for this target
+     */
+    List<ReadableSecurityRule> readRules(XWikiDocument document, DocumentReferenceResolver<String> resolver,
+        boolean skipMalformed)
+    {
+        List<ReadableSecurityRule> rules = new ArrayList<>();
+        WikiReference wikiReference = document.getDocumentReference().getWikiReference();
+        for (BaseObject object : document.getXObjects(this.classReference)) {
+            if (object != null) {
+                try {
+                    rules.add(XWikiSecurityRule.createNewRule(object, resolver, wikiReference, false));
+                } catch (IllegalArgumentException e) {
+                    if (!skipMalformed) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return rules;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RulesStorageTarget that = (RulesStorageTarget) o;
+        return new EqualsBuilder()
+            .append(this.documentReference, that.documentReference)
+            .append(this.classReference, that.classReference)
+            .isEquals();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return new HashCodeBuilder(17, 37)
+            .append(this.documentReference)
+            .append(this.classReference)
+            .toHashCode();
+    }
+}
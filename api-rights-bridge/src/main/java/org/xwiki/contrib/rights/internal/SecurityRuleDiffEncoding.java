@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+
+/**
+ * Compact binary encoding of {@link SecurityRuleDiff}s, used to send them to the other cluster members and to store
+ * them. References are written as the names of their elements, rights as their names and enumerations as their
+ * ordinal, so all the members sharing the encoded diffs must run the same version of this extension.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+final class SecurityRuleDiffEncoding
+{
+    private static final EntityType[] ENTITY_TYPES = EntityType.values();
+
+    private static final SecurityRuleDiff.ChangeType[] CHANGE_TYPES = SecurityRuleDiff.ChangeType.values();
+
+    private static final SecurityRuleDiff.PropertyType[] PROPERTY_TYPES = SecurityRuleDiff.PropertyType.values();
+
+    private static final RuleState[] RULE_STATES = RuleState.values();
+
+    private SecurityRuleDiffEncoding()
+    {
+    }
+
+    /**
+     * @param output where to write the diffs
+     * @param diffs the diffs to write
+     * @throws IOException if the diffs cannot be written
+     */
+    static void writeDiffs(DataOutput output, List<SecurityRuleDiff> diffs) throws IOException
+    {
+        output.writeInt(diffs.size());
+        for (SecurityRuleDiff diff : diffs) {
+            output.writeByte(diff.getChangeType().ordinal());
+            output.writeByte(diff.getChangedProperties().size());
+            for (SecurityRuleDiff.PropertyType property : diff.getChangedProperties()) {
+                output.writeByte(property.ordinal());
+            }
+            writeRule(output, diff.getPreviousRule());
+            writeRule(output, diff.getCurrentRule());
+        }
+    }
+
+    /**
+     * @param input where to read the diffs from
+     * @return the diffs written by {@link #writeDiffs(DataOutput, List)}
+     * @throws IOException if the diffs cannot be read
+     */
+    static List<SecurityRuleDiff> readDiffs(DataInput input) throws IOException
+    {
+        int size = input.readInt();
+        List<SecurityRuleDiff> diffs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            SecurityRuleDiff.ChangeType changeType = CHANGE_TYPES[input.readByte()];
+            int propertyCount = input.readByte();
+            Set<SecurityRuleDiff.PropertyType> properties = EnumSet.noneOf(SecurityRuleDiff.PropertyType.class);
+            for (int j = 0; j < propertyCount; j++) {
+                properties.add(PROPERTY_TYPES[input.readByte()]);
+            }
+            ReadableSecurityRule previousRule = readRule(input);
+            ReadableSecurityRule currentRule = readRule(input);
+            diffs.add(new DefaultSecurityRuleDiff(changeType, previousRule, currentRule, properties));
+        }
+        return Collections.unmodifiableList(diffs);
+    }
+
+    /**
+     * @param output where to write the reference
+     * @param reference the reference to write, can be {@code null}
+     * @throws IOException if the reference cannot be written
+     */
+    static void writeReference(DataOutput output, EntityReference reference) throws IOException
+    {
+        List<EntityReference> elements = reference != null ? reference.getReversedReferenceChain()
+            : Collections.emptyList();
+        output.writeByte(elements.size());
+        for (EntityReference element : elements) {
+            output.writeByte(element.getType().ordinal());
+            output.writeUTF(element.getName());
+        }
+    }
+
+    /**
+     * @param input where to read the reference from
+     * @return the reference written by {@link #writeReference(DataOutput, EntityReference)}
+     * @throws IOException if the reference cannot be read
+     */
+    static EntityReference readReference(DataInput input) throws IOException
+    {
+        int size = input.readByte();
+        EntityReference reference = null;
+        for (int i = 0; i < size; i++) {
+            EntityType type = ENTITY_TYPES[input.readByte()];
+            reference = new EntityReference(input.readUTF(), type, reference);
+        }
+        return reference;
+    }
+
+    private static void writeRule(DataOutput output, ReadableSecurityRule rule) throws IOException
+    {
+        output.writeBoolean(rule != null);
+        if (rule != null) {
+            output.writeByte(rule.getState().ordinal());
+            output.writeByte(rule.getRights().size());
+            for (Right right : rule.getRights()) {
+                output.writeUTF(right.getName());
+            }
+            writeReferences(output, rule.getGroups());
+            writeReferences(output, rule.getUsers());
+        }
+    }
+
+    private static ReadableSecurityRule readRule(DataInput input) throws IOException
+    {
+        if (!input.readBoolean()) {
+            return null;
+        }
+        RuleState state = RULE_STATES[input.readByte()];
+        int rightCount = input.readByte();
+        RightSet rights = new RightSet();
+        for (int i = 0; i < rightCount; i++) {
+            rights.add(Right.toRight(input.readUTF()));
+        }
+        List<DocumentReference> groups = readReferences(input);
+        List<DocumentReference> users = readReferences(input);
+        return new WritableSecurityRuleImpl(groups, users, rights, state);
+    }
+
+    private static void writeReferences(DataOutput output, List<DocumentReference> references) throws IOException
+    {
+        output.writeInt(references.size());
+        for (DocumentReference reference : references) {
+            writeReference(output, reference);
+        }
+    }
+
+    private static List<DocumentReference> readReferences(DataInput input) throws IOException
+    {
+        int size = input.readInt();
+        List<DocumentReference> references = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            EntityReference reference = readReference(input);
+            references.add(reference != null ? new DocumentReference(reference) : null);
+        }
+        return references;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Striped locks serializing the writes to the documents storing rights, so that concurrent writes to the same storage
+ * document (e.g. to a space and to its WebPreferences page) don't overwrite each other, while writes to different
+ * documents proceed in parallel, unless their documents happen to share a stripe. The locks are reentrant, so that a
+ * write holding the lock of a document can call another write to the same document.
+ * <p>
+ * A thread holding the lock of a document cannot take the lock of another document, since two threads doing so in
+ * opposite orders would wait for each other forever. The rights writer releases the lock before notifying the rights
+ * updates, but the listeners of the document events run while the document is saved: those writing rights to other
+ * documents have to go through the {@link org.xwiki.contrib.rights.AsyncRightsWriter}.
+ * <p>
+ * The time spent waiting for the locks is measured and exposed through the getters of this component.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = StorageDocumentLocks.class)
+@Singleton
+public class StorageDocumentLocks
+{
+    /**
+     * The number of stripes, a power of 2.
+     */
+    static final int STRIPE_COUNT = 64;
+
+    private static final int HASH_SPREAD_SHIFT = 16;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+
+    private final LongAdder acquisitionCount = new LongAdder();
+
+    private final LongAdder contendedAcquisitionCount = new LongAdder();
+
+    private final LongAdder totalWaitNanos = new LongAdder();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Default constructor.
+     */
+    public StorageDocumentLocks()
+    {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquires the lock of the passed storage document, waiting for it if needed. The caller must release it with
+     * {@link Lock#unlock()} in a {@code finally} block.
+     *
+     * @param documentReference the reference of the document storing rights, without locale
+     * @return the acquired lock
+     * @throws IllegalStateException if the current thread holds the lock of another document
+     */
+    public Lock lock(DocumentReference documentReference) throws IllegalStateException
+    {
+        ReentrantLock lock = getStripe(documentReference);
+        if (!lock.isHeldByCurrentThread()) {
+            for (ReentrantLock stripe : this.stripes) {
+                if (stripe.isHeldByCurrentThread()) {
+                    throw new IllegalStateException(String.format("Cannot write the rights stored in [%s] while "
+                        + "writing the rights stored in another document, use the asynchronous rights writer instead",
+                        documentReference));
+                }
+            }
+        }
+        this.acquisitionCount.increment();
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            long waitNanos = System.nanoTime() - start;
+            this.contendedAcquisitionCount.increment();
+            this.totalWaitNanos.add(waitNanos);
+            this.maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+        return lock;
+    }
+
+    /**
+     * @return the number of times a storage document lock was acquired
+     */
+    public long getAcquisitionCount()
+    {
+        return this.acquisitionCount.sum();
+    }
+
+    /**
+     * @return the number of times a storage document lock was held by another thread when it was requested
+     */
+    public long getContendedAcquisitionCount()
+    {
+        return this.contendedAcquisitionCount.sum();
+    }
+
+    /**
+     * @param unit the unit of the returned time
+     * @return the total time spent waiting for storage document locks
+     */
+    public long getTotalWaitTime(TimeUnit unit)
+    {
+        return unit.convert(this.totalWaitNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit the unit of the returned time
+     * @return the longest time spent waiting for a storage document lock
+     */
+    public long getMaxWaitTime(TimeUnit unit)
+    {
+        return unit.convert(this.maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    ReentrantLock getStripe(DocumentReference documentReference)
+    {
+        int hash = documentReference.hashCode();
+        return this.stripes[(hash ^ (hash >>> HASH_SPREAD_SHIFT)) & (STRIPE_COUNT - 1)];
+    }
+}
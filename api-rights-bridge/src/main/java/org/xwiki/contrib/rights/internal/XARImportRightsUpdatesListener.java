@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.rights.BulkRightsUpdates;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.internal.event.XARImportedEvent;
+import com.xpn.xwiki.internal.event.XARImportingEvent;
+
+/**
+ * Runs the XAR imports as bulk operations (see {@link BulkRightsUpdates}), so that the rights updates of an import are
+ * notified once, when it ends.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Named(XARImportRightsUpdatesListener.NAME)
+@Singleton
+public class XARImportRightsUpdatesListener extends AbstractEventListener
+{
+    static final String NAME = "org.xwiki.contrib.rights.internal.XARImportRightsUpdatesListener";
+
+    /**
+     * The execution context property holding the bulk operations of the running XAR imports, the innermost first.
+     */
+    private static final String BULKS_PROPERTY = "rights.api.xarImportBulks";
+
+    @Inject
+    private BulkRightsUpdates bulkRightsUpdates;
+
+    @Inject
+    private Execution execution;
+
+    /**
+     * Default constructor.
+     */
+    public XARImportRightsUpdatesListener()
+    {
+        super(NAME, Arrays.asList(new XARImportingEvent(), new XARImportedEvent()));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onEvent(Event event, Object source, Object data)
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return;
+        }
+        Deque<BulkRightsUpdates.Bulk> bulks = (Deque<BulkRightsUpdates.Bulk>) context.getProperty(BULKS_PROPERTY);
+        if (event instanceof XARImportingEvent) {
+            if (bulks == null) {
+                bulks = new ArrayDeque<>();
+                context.setProperty(BULKS_PROPERTY, bulks);
+            }
+            bulks.push(this.bulkRightsUpdates.begin());
+        } else if (bulks != null) {
+            // Without bulk operation, the import started before this listener was registered.
+            BulkRightsUpdates.Bulk bulk = bulks.pop();
+            if (bulks.isEmpty()) {
+                context.removeProperty(BULKS_PROPERTY);
+            }
+            bulk.close();
+        }
+    }
+}
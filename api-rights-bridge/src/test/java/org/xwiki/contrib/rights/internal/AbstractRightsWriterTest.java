@@ -22,7 +22,9 @@ package org.xwiki.contrib.rights.internal;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.internal.XWikiConstants;
 
@@ -31,6 +33,8 @@ import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.test.MockitoOldcore;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
 
 /**
  * Superclass for the test classes for the rights writer, with helper functions and variables.
@@ -58,6 +62,21 @@ public class AbstractRightsWriterTest
         }
     }
 
+    /**
+     * Makes the passed mock of the resolver of the rule subjects resolve them like the default resolver.
+     *
+     * @param mockedOldCore the mocked old core providing the default resolver
+     * @param userReferenceResolver the mocked resolver of the rule subjects
+     */
+    void mockUserReferenceResolver(MockitoOldcore mockedOldCore,
+        DocumentReferenceResolver<String> userReferenceResolver) throws ComponentLookupException
+    {
+        DocumentReferenceResolver<String> resolver =
+            mockedOldCore.getMocker().getInstance(DocumentReferenceResolver.TYPE_STRING);
+        when(userReferenceResolver.resolve(any(), any())).thenAnswer(
+            invocation -> resolver.resolve(invocation.getArgument(0), invocation.getArgument(1)));
+    }
+
     /**
      * Helper function to get the non null objects.
      *
@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.rights.RightsWriter;
+import org.xwiki.contrib.rights.SaveRulesResult;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link DefaultAsyncRightsWriter}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultAsyncRightsWriterTest
+{
+    private static final SpaceReference SPACE = new SpaceReference("xwiki", "Space");
+
+    private static final DocumentReference PAGE = new DocumentReference("Page", SPACE);
+
+    private static final DocumentReference WEB_PREFERENCES = new DocumentReference("WebPreferences", SPACE);
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "User");
+
+    private static final DocumentReference OTHER_USER = new DocumentReference("xwiki", "XWiki", "OtherUser");
+
+    @MockComponent
+    private RightsWriter rightsWriter;
+
+    @MockComponent
+    private ExecutionContextCloner contextCloner;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @MockComponent
+    private Provider<XWikiContext> xcontextProvider;
+
+    private XWikiContext xcontext;
+
+    @InjectMockComponents
+    private DefaultAsyncRightsWriter asyncWriter;
+
+    @BeforeComponent
+    void configure()
+    {
+        // Only flush on demand.
+        when(this.configuration.getProperty(DefaultAsyncRightsWriter.FLUSH_DELAY_PROPERTY, 100L)).thenReturn(60000L);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        this.xcontext = mock(XWikiContext.class);
+        when(this.xcontextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getUserReference()).thenReturn(USER);
+        when(this.contextCloner.runIn(any(), any()))
+            .thenAnswer(invocation -> invocation.<Supplier<?>>getArgument(1).get());
+        when(this.rightsWriter.saveRules(anyMap())).thenAnswer(invocation -> {
+            Map<EntityReference, SaveRulesResult> results = new LinkedHashMap<>();
+            invocation.<Map<EntityReference, ?>>getArgument(0).keySet()
+                .forEach(entity -> results.put(entity, SaveRulesResult.SAVED));
+            return results;
+        });
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void coalesceWrites() throws Exception
+    {
+        List<ReadableSecurityRule> viewRules = Collections.singletonList(rule(Right.VIEW));
+        List<ReadableSecurityRule> editRules = Collections.singletonList(rule(Right.EDIT));
+
+        CompletableFuture<SaveRulesResult> firstPageWrite = this.asyncWriter.saveRules(viewRules, PAGE);
+        CompletableFuture<SaveRulesResult> spaceWrite = this.asyncWriter.saveRules(viewRules, SPACE);
+        CompletableFuture<SaveRulesResult> secondPageWrite = this.asyncWriter.saveRules(editRules, PAGE);
+        CompletableFuture<SaveRulesResult> webPreferencesWrite =
+            this.asyncWriter.saveRules(editRules, WEB_PREFERENCES);
+
+        this.asyncWriter.flush().get();
+
+        assertEquals(SaveRulesResult.SAVED, firstPageWrite.get());
+        assertEquals(SaveRulesResult.SAVED, secondPageWrite.get());
+        assertEquals(SaveRulesResult.SAVED, spaceWrite.get());
+        assertEquals(SaveRulesResult.SAVED, webPreferencesWrite.get());
+
+        // One save per storage document, with the latest rules of each reference.
+        ArgumentCaptor<Map<EntityReference, List<ReadableSecurityRule>>> saves = ArgumentCaptor.forClass(Map.class);
+        verify(this.rightsWriter, times(2)).saveRules(saves.capture());
+        assertEquals(Collections.singletonMap(PAGE, editRules), saves.getAllValues().get(0));
+        assertEquals(Arrays.asList(SPACE, WEB_PREFERENCES),
+            Arrays.asList(saves.getAllValues().get(1).keySet().toArray()));
+        assertEquals(viewRules, saves.getAllValues().get(1).get(SPACE));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void coalesceWritesPerUser() throws Exception
+    {
+        List<ReadableSecurityRule> viewRules = Collections.singletonList(rule(Right.VIEW));
+        List<ReadableSecurityRule> editRules = Collections.singletonList(rule(Right.EDIT));
+        ExecutionContext userContext = new ExecutionContext();
+        ExecutionContext otherUserContext = new ExecutionContext();
+        ExecutionContext lastUserContext = new ExecutionContext();
+        when(this.contextCloner.cloneCurrentContext()).thenReturn(userContext, otherUserContext, lastUserContext);
+
+        this.asyncWriter.saveRules(viewRules, PAGE);
+        when(this.xcontext.getUserReference()).thenReturn(OTHER_USER);
+        this.asyncWriter.saveRules(editRules, PAGE);
+        when(this.xcontext.getUserReference()).thenReturn(USER);
+        this.asyncWriter.saveRules(viewRules, PAGE);
+
+        this.asyncWriter.flush().get();
+
+        // The writes of another user in between are not merged, and the saves happen in the order of the writes.
+        ArgumentCaptor<Map<EntityReference, List<ReadableSecurityRule>>> saves = ArgumentCaptor.forClass(Map.class);
+        verify(this.rightsWriter, times(3)).saveRules(saves.capture());
+        assertEquals(Collections.singletonMap(PAGE, viewRules), saves.getAllValues().get(0));
+        assertEquals(Collections.singletonMap(PAGE, editRules), saves.getAllValues().get(1));
+        assertEquals(Collections.singletonMap(PAGE, viewRules), saves.getAllValues().get(2));
+        InOrder inOrder = inOrder(this.contextCloner);
+        inOrder.verify(this.contextCloner).runIn(same(userContext), any());
+        inOrder.verify(this.contextCloner).runIn(same(otherUserContext), any());
+        inOrder.verify(this.contextCloner).runIn(same(lastUserContext), any());
+    }
+
+    @Test
+    void saveRulesAfterDispose() throws Exception
+    {
+        this.asyncWriter.dispose();
+
+        CompletableFuture<SaveRulesResult> write =
+            this.asyncWriter.saveRules(Collections.singletonList(rule(Right.VIEW)), PAGE);
+
+        ExecutionException exception = assertThrows(ExecutionException.class, write::get);
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+        assertTrue(this.asyncWriter.flush().isCompletedExceptionally());
+        verify(this.rightsWriter, never()).saveRules(anyMap());
+    }
+
+    private ReadableSecurityRule rule(Right right)
+    {
+        return new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(USER),
+            new RightSet(right), RuleState.ALLOW);
+    }
+}
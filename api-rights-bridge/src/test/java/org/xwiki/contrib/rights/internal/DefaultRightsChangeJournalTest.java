@@ -0,0 +1,244 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.inject.Named;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.rights.RightsChange;
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link DefaultRightsChangeJournal}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultRightsChangeJournalTest
+{
+    private static final SpaceReference SPACE = new SpaceReference("xwiki", "Space");
+
+    private static final DocumentReference PAGE = new DocumentReference("Page", SPACE);
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "User");
+
+    private static final long MAX_SIZE = 64L * 1024 * 1024;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @InjectMockComponents
+    private DefaultRightsChangeJournal journal;
+
+    private File permanentDirectory;
+
+    @BeforeComponent
+    void configure() throws IOException
+    {
+        this.permanentDirectory = Files.createTempDirectory("rights-journal").toFile();
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        when(this.configuration.getProperty(DefaultRightsChangeJournal.ENABLED_PROPERTY, false)).thenReturn(true);
+        // Only flush when disposed.
+        when(this.configuration.getProperty(DefaultRightsChangeJournal.SYNC_INTERVAL_PROPERTY, 1000L))
+            .thenReturn(60000L);
+        when(this.configuration.getProperty(DefaultRightsChangeJournal.MAX_SIZE_PROPERTY, MAX_SIZE))
+            .thenReturn(MAX_SIZE);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception
+    {
+        this.journal.dispose();
+        FileUtils.deleteDirectory(this.permanentDirectory);
+    }
+
+    @Test
+    void appendAndReplay() throws Exception
+    {
+        assertTrue(this.journal.isEnabled());
+
+        List<List<SecurityRuleDiff>> appendedDiffs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            List<SecurityRuleDiff> diffs = diffs(i);
+            this.journal.append(i % 2 == 0 ? PAGE : SPACE, diffs);
+            appendedDiffs.add(diffs);
+        }
+
+        List<RightsChange> changes = this.journal.getChangesSince(0);
+        assertEquals(appendedDiffs, changes.stream().map(RightsChange::getDiffs).collect(Collectors.toList()));
+        assertEquals(PAGE, changes.get(0).getEntity());
+        assertEquals(SPACE, changes.get(1).getEntity());
+
+        long since = changes.get(700).getTimestamp();
+        List<RightsChange> expected =
+            changes.stream().filter(change -> change.getTimestamp() >= since).collect(Collectors.toList());
+        assertEquals(toString(expected), toString(this.journal.getChangesSince(since)));
+        assertEquals(Collections.emptyList(), this.journal.getChangesSince(changes.get(999).getTimestamp() + 1));
+    }
+
+    @Test
+    void reloadAfterIncompleteWrite() throws Exception
+    {
+        this.journal.append(PAGE, diffs(0));
+        this.journal.append(SPACE, diffs(1));
+        this.journal.dispose();
+
+        // Simulate a crash in the middle of the write of a record.
+        File file = new File(this.permanentDirectory, DefaultRightsChangeJournal.JOURNAL_PATH);
+        Files.write(file.toPath(), new byte[] { 0, 0, 1, 0, 0, 0 }, StandardOpenOption.APPEND);
+
+        this.journal.initialize();
+        this.journal.append(PAGE, diffs(2));
+
+        List<RightsChange> changes = this.journal.getChangesSince(0);
+        assertEquals(3, changes.size());
+        assertEquals(diffs(1), changes.get(1).getDiffs());
+        assertEquals(diffs(2), changes.get(2).getDiffs());
+        assertEquals(PAGE, changes.get(2).getEntity());
+    }
+
+    @Test
+    void reloadAfterZeroFilledTail() throws Exception
+    {
+        this.journal.append(PAGE, diffs(0));
+        this.journal.dispose();
+
+        // Simulate a crash after the file was extended but before the records were written.
+        File file = new File(this.permanentDirectory, DefaultRightsChangeJournal.JOURNAL_PATH);
+        long validSize = file.length();
+        Files.write(file.toPath(), new byte[64], StandardOpenOption.APPEND);
+
+        this.journal.initialize();
+
+        assertEquals(validSize, file.length());
+        this.journal.append(SPACE, diffs(1));
+        List<RightsChange> changes = this.journal.getChangesSince(0);
+        assertEquals(2, changes.size());
+        assertEquals(diffs(0), changes.get(0).getDiffs());
+        assertEquals(SPACE, changes.get(1).getEntity());
+    }
+
+    @Test
+    void reloadAfterCorruptedRecord() throws Exception
+    {
+        File file = new File(this.permanentDirectory, DefaultRightsChangeJournal.JOURNAL_PATH);
+        this.journal.append(PAGE, diffs(0));
+        this.journal.dispose();
+        long validSize = file.length();
+        this.journal.initialize();
+        this.journal.append(SPACE, diffs(1));
+        this.journal.dispose();
+        long corruptedRecordEnd = file.length();
+        this.journal.initialize();
+        this.journal.append(PAGE, diffs(2));
+        this.journal.dispose();
+
+        // Corrupt the last byte of the payload of the second record.
+        byte[] content = Files.readAllBytes(file.toPath());
+        content[(int) corruptedRecordEnd - 1] ^= 1;
+        Files.write(file.toPath(), content);
+
+        this.journal.initialize();
+
+        // The journal is truncated at the first invalid record.
+        assertEquals(validSize, file.length());
+        List<RightsChange> changes = this.journal.getChangesSince(0);
+        assertEquals(1, changes.size());
+        assertEquals(diffs(0), changes.get(0).getDiffs());
+    }
+
+    @Test
+    void rollOver() throws Exception
+    {
+        File file = new File(this.permanentDirectory, DefaultRightsChangeJournal.JOURNAL_PATH);
+        File previousFile = new File(this.permanentDirectory, DefaultRightsChangeJournal.PREVIOUS_JOURNAL_PATH);
+        this.journal.append(PAGE, diffs(0));
+        this.journal.dispose();
+        // Roll over every 3 records, which all have the same size.
+        when(this.configuration.getProperty(DefaultRightsChangeJournal.MAX_SIZE_PROPERTY, MAX_SIZE))
+            .thenReturn(3 * file.length());
+        this.journal.initialize();
+
+        for (int i = 1; i < 8; i++) {
+            this.journal.append(PAGE, diffs(i));
+        }
+
+        // The first file was dropped when the second one was rolled over.
+        assertTrue(previousFile.exists());
+        List<RightsChange> changes = this.journal.getChangesSince(0);
+        assertEquals(IntStream.range(3, 8).mapToObj(this::diffs).collect(Collectors.toList()),
+            changes.stream().map(RightsChange::getDiffs).collect(Collectors.toList()));
+        long since = changes.get(4).getTimestamp();
+        assertEquals(toString(changes.stream().filter(change -> change.getTimestamp() >= since)
+            .collect(Collectors.toList())), toString(this.journal.getChangesSince(since)));
+
+        // Both files are loaded again.
+        this.journal.dispose();
+        this.journal.initialize();
+        assertEquals(toString(changes), toString(this.journal.getChangesSince(0)));
+    }
+
+    private List<SecurityRuleDiff> diffs(int index)
+    {
+        DocumentReference group = new DocumentReference("xwiki", "XWiki", "Group" + index);
+        return Collections.singletonList(new DefaultSecurityRuleDiff(SecurityRuleDiff.ChangeType.RULE_ADDED, null,
+            new WritableSecurityRuleImpl(Collections.singletonList(group), Collections.singletonList(USER),
+                new RightSet(Right.VIEW), index % 2 == 0 ? RuleState.ALLOW : RuleState.DENY),
+            Collections.emptySet()));
+    }
+
+    private List<String> toString(List<RightsChange> changes)
+    {
+        return changes.stream().map(change -> change.getTimestamp() + " " + change.getEntity() + " "
+            + change.getDiffs()).collect(Collectors.toList());
+    }
+}
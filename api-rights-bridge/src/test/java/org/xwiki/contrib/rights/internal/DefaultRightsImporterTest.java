@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.xwiki.contrib.rights.BulkRightsUpdates;
+import org.xwiki.contrib.rights.RightsImportReport;
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsWriter;
+import org.xwiki.contrib.rights.SaveRulesResult;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.test.MockitoOldcore;
+import com.xpn.xwiki.test.junit5.mockito.InjectMockitoOldcore;
+import com.xpn.xwiki.test.junit5.mockito.OldcoreTest;
+import com.xpn.xwiki.test.reference.ReferenceComponentList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link DefaultRightsImporter}.
+ *
+ * @version $Id$
+ */
+@OldcoreTest
+@ReferenceComponentList
+@ComponentList({DefaultSecurityRuleAbacus.class})
+class DefaultRightsImporterTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private static final SpaceReference SPACE = new SpaceReference("Space", WIKI);
+
+    private static final DocumentReference PAGE = new DocumentReference("Page", SPACE);
+
+    private static final DocumentReference USER_A = new DocumentReference("xwiki", "XWiki", "UserA");
+
+    private static final DocumentReference USER_B = new DocumentReference("xwiki", "XWiki", "UserB");
+
+    @MockComponent
+    private RightsWriter rightsWriter;
+
+    @MockComponent
+    private RightsReader rightsReader;
+
+    @MockComponent
+    private BulkRightsUpdates bulkRightsUpdates;
+
+    private final BulkRightsUpdates.Bulk bulk = mock(BulkRightsUpdates.Bulk.class);
+
+    @MockComponent
+    @Named("user")
+    private DocumentReferenceResolver<String> userReferenceResolver;
+
+    @InjectMockitoOldcore
+    private MockitoOldcore oldcore;
+
+    @InjectMockComponents
+    private DefaultRightsImporter importer;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        DocumentReferenceResolver<String> resolver =
+            this.oldcore.getMocker().getInstance(DocumentReferenceResolver.TYPE_STRING);
+        when(this.userReferenceResolver.resolve(any(), any())).thenAnswer(
+            invocation -> resolver.resolve(invocation.getArgument(0), invocation.getArgument(1)));
+        when(this.bulkRightsUpdates.begin()).thenReturn(this.bulk);
+        when(this.rightsWriter.createRule(any(), any(), any(), any())).thenAnswer(
+            invocation -> new WritableSecurityRuleImpl(invocation.getArgument(0), invocation.getArgument(1),
+                new RightSet(invocation.<List<Right>>getArgument(2)), invocation.getArgument(3)));
+        when(this.rightsWriter.saveRules(anyMap())).thenAnswer(invocation -> {
+            Map<EntityReference, SaveRulesResult> results = new LinkedHashMap<>();
+            invocation.<Map<EntityReference, ?>>getArgument(0).keySet()
+                .forEach(entity -> results.put(entity, SaveRulesResult.SAVED));
+            return results;
+        });
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void importCSV() throws Exception
+    {
+        String feed = "entity,subject,rights,state\n"
+            + "# Migrated rights\n"
+            + "document:xwiki:Space.Page,user:XWiki.UserA,view|edit,allow\n"
+            + "document:xwiki:Space.Page,group:XWiki.GroupA,view,deny\n"
+            + "space:xwiki:Space,user:XWiki.UserA,nosuchright,allow\n"
+            + "\n"
+            + "space:xwiki:Space,\"group:XWiki.GroupA\",comment,allow\n"
+            + "wiki:xwiki,group:XWiki.XWikiAdminGroup,admin,allow\n"
+            + "document:xwiki:Space.Page,user:XWiki.UserB,view,allow\n";
+        when(this.rightsReader.getRules(PAGE, false)).thenReturn(Collections.singletonList(
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(USER_A),
+                new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW)));
+
+        RightsImportReport report = this.importer.importCSV(new StringReader(feed), 2, 1);
+
+        assertEquals(6, report.getRecordCount());
+        assertEquals(1, report.getInvalidRecordCount());
+        // The page is saved by both batches but counted once.
+        assertEquals(3, report.getEntityCount(SaveRulesResult.SAVED));
+        assertEquals(0, report.getEntityCount(SaveRulesResult.FAILED));
+        assertTrue(report.getFailedEntities().isEmpty());
+
+        ArgumentCaptor<Map<EntityReference, List<ReadableSecurityRule>>> batches = ArgumentCaptor.forClass(Map.class);
+        verify(this.rightsWriter, times(2)).saveRules(batches.capture());
+
+        // Each batch is a bulk operation, ended once the batch is saved.
+        InOrder bulkOrder = inOrder(this.bulkRightsUpdates, this.rightsWriter, this.bulk);
+        for (int i = 0; i < 2; i++) {
+            bulkOrder.verify(this.bulkRightsUpdates).begin();
+            bulkOrder.verify(this.rightsWriter).saveRules(anyMap());
+            bulkOrder.verify(this.bulk).close();
+        }
+
+        Map<EntityReference, List<ReadableSecurityRule>> firstBatch = batches.getAllValues().get(0);
+        assertEquals(Arrays.asList(PAGE, SPACE), Arrays.asList(firstBatch.keySet().toArray()));
+        assertEquals(2, firstBatch.get(PAGE).size());
+        assertEquals(1, firstBatch.get(SPACE).size());
+
+        // The page appears again after its first batch was saved, so its new rules are merged with the saved ones.
+        Map<EntityReference, List<ReadableSecurityRule>> secondBatch = batches.getAllValues().get(1);
+        assertEquals(Arrays.asList(WIKI, PAGE), Arrays.asList(secondBatch.keySet().toArray()));
+        Set<DocumentReference> pageUsers = new HashSet<>();
+        secondBatch.get(PAGE).forEach(rule -> pageUsers.addAll(rule.getUsers()));
+        assertEquals(new HashSet<>(Arrays.asList(USER_A, USER_B)), pageUsers);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void importCSVAfterFailedBatch() throws Exception
+    {
+        String feed = "entity,subject,rights,state\n"
+            + "document:xwiki:Space.Page,user:XWiki.UserA,view,allow\n"
+            + "space:xwiki:Space,user:XWiki.UserA,comment,allow\n"
+            + "wiki:xwiki,user:XWiki.UserA,view,allow\n"
+            + "document:xwiki:Space.Page,user:XWiki.UserB,view,allow\n";
+        when(this.rightsWriter.saveRules(anyMap())).thenAnswer(invocation -> {
+            Map<EntityReference, SaveRulesResult> results = new LinkedHashMap<>();
+            invocation.<Map<EntityReference, ?>>getArgument(0).keySet().forEach(entity -> results.put(entity,
+                PAGE.equals(entity) ? SaveRulesResult.FAILED : SaveRulesResult.SAVED));
+            return results;
+        });
+
+        RightsImportReport report = this.importer.importCSV(new StringReader(feed), 2, 1);
+
+        assertEquals(2, report.getEntityCount(SaveRulesResult.SAVED));
+        assertEquals(1, report.getEntityCount(SaveRulesResult.FAILED));
+        assertEquals(Collections.singletonList(PAGE), report.getFailedEntities());
+
+        // The rules of the page are not merged with the ones persisted before the import, which they must replace.
+        verify(this.rightsReader, never()).getRules(any(), anyBoolean());
+        ArgumentCaptor<Map<EntityReference, List<ReadableSecurityRule>>> batches = ArgumentCaptor.forClass(Map.class);
+        verify(this.rightsWriter, times(2)).saveRules(batches.capture());
+        assertEquals(Collections.singleton(WIKI), batches.getAllValues().get(1).keySet());
+    }
+
+    @Test
+    void parseLine()
+    {
+        assertEquals(Arrays.asList("a", "b,c", "d \"e\"", ""),
+            Arrays.asList(CSVLineIterator.parseLine("a, \"b,c\",\"d \"\"e\"\"\",")));
+    }
+}
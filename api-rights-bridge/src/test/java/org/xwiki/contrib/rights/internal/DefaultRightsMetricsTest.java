@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link DefaultRightsMetrics}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultRightsMetricsTest
+{
+    @MockComponent
+    private StorageDocumentLocks storageDocumentLocks;
+
+    @MockComponent
+    private RightUpdatedEventExecutor eventExecutor;
+
+    @InjectMockComponents
+    private DefaultRightsMetrics rightsMetrics;
+
+    @Test
+    void lockMetrics()
+    {
+        when(this.storageDocumentLocks.getAcquisitionCount()).thenReturn(10L);
+        when(this.storageDocumentLocks.getContendedAcquisitionCount()).thenReturn(2L);
+        when(this.storageDocumentLocks.getTotalWaitTime(TimeUnit.MILLISECONDS)).thenReturn(30L);
+        when(this.storageDocumentLocks.getMaxWaitTime(TimeUnit.MILLISECONDS)).thenReturn(20L);
+
+        assertEquals(10L, this.rightsMetrics.getLockAcquisitionCount());
+        assertEquals(2L, this.rightsMetrics.getContendedLockAcquisitionCount());
+        assertEquals(30L, this.rightsMetrics.getTotalLockWaitTime());
+        assertEquals(20L, this.rightsMetrics.getMaxLockWaitTime());
+    }
+
+    @Test
+    void eventMetrics()
+    {
+        when(this.eventExecutor.isAsynchronous()).thenReturn(true);
+        when(this.eventExecutor.getQueueDepth()).thenReturn(3);
+        when(this.eventExecutor.getMaxQueueDepth()).thenReturn(5);
+        when(this.eventExecutor.getExecutedTaskCount()).thenReturn(42L);
+
+        assertTrue(this.rightsMetrics.isEventNotificationAsynchronous());
+        assertEquals(3, this.rightsMetrics.getEventQueueDepth());
+        assertEquals(5, this.rightsMetrics.getMaxEventQueueDepth());
+        assertEquals(42L, this.rightsMetrics.getNotifiedUpdateCount());
+    }
+}
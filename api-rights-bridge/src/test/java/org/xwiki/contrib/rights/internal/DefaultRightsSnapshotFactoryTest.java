@@ -0,0 +1,202 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsSnapshot;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.internal.mandatory.XWikiGlobalRightsDocumentInitializer;
+import com.xpn.xwiki.internal.mandatory.XWikiRightsDocumentInitializer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link DefaultRightsSnapshotFactory}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultRightsSnapshotFactoryTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private static final SpaceReference SPACE = new SpaceReference("Space", WIKI);
+
+    private static final String LOCAL_CLASS = XWikiRightsDocumentInitializer.CLASS_REFERENCE_STRING;
+
+    private static final String GLOBAL_CLASS = XWikiGlobalRightsDocumentInitializer.CLASS_REFERENCE_STRING;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localEntityReferenceSerializer;
+
+    @MockComponent
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @MockComponent
+    private RightsReader rightsReader;
+
+    @InjectMockComponents
+    private DefaultRightsSnapshotFactory snapshotFactory;
+
+    private final Query query = mock(Query.class, RETURNS_DEEP_STUBS);
+
+    private final List<Object[]> results = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.queryManager.createQuery(anyString(), eq(Query.HQL)))
+            .thenReturn(this.query);
+        when(this.query.<Object[]>execute()).thenReturn(this.results);
+        when(this.localEntityReferenceSerializer.serialize(SPACE)).thenReturn("Space");
+    }
+
+    @Test
+    void createLiveSnapshotOfSpace() throws Exception
+    {
+        DocumentReference page = addResult("Space.Page", LOCAL_CLASS);
+        addResult("Space.WebPreferences", GLOBAL_CLASS);
+        addResult("Space.Nested.WebPreferences", GLOBAL_CLASS);
+        // Global rights objects only hold rules on preferences documents.
+        addResult("Space.Other", GLOBAL_CLASS);
+
+        RightsSnapshot snapshot = this.snapshotFactory.createLiveSnapshot(SPACE);
+
+        ArgumentCaptor<String> statement = ArgumentCaptor.forClass(String.class);
+        verify(this.queryManager).createQuery(statement.capture(), eq(Query.HQL));
+        assertTrue(statement.getValue().contains(":space"));
+        verify(this.query).setWiki("xwiki");
+        verify(this.query).bindValue("space", "Space");
+        verify(this.query).bindValue("localClass", LOCAL_CLASS);
+        verify(this.query).bindValue("globalClass", GLOBAL_CLASS);
+
+        assertEquals(Arrays.asList(SPACE, new SpaceReference("Nested", SPACE), page),
+            toList(snapshot.getEntities()));
+    }
+
+    @Test
+    void createLiveSnapshotOfWiki() throws Exception
+    {
+        addResult("XWiki.XWikiPreferences", GLOBAL_CLASS);
+        DocumentReference page = addResult("Space.Page", LOCAL_CLASS);
+
+        RightsSnapshot snapshot = this.snapshotFactory.createLiveSnapshot(WIKI);
+
+        ArgumentCaptor<String> statement = ArgumentCaptor.forClass(String.class);
+        verify(this.queryManager).createQuery(statement.capture(), eq(Query.HQL));
+        assertFalse(statement.getValue().contains(":space"));
+        verify(this.query).setWiki("xwiki");
+
+        assertEquals(Arrays.asList(WIKI, page), toList(snapshot.getEntities()));
+    }
+
+    @Test
+    void createLiveSnapshotFiltersSubtree() throws Exception
+    {
+        SpaceReference xwikiSpace = new SpaceReference("XWiki", WIKI);
+        when(this.localEntityReferenceSerializer.serialize(xwikiSpace)).thenReturn("XWiki");
+        // The rules of the wiki preferences apply on the wiki, which is not part of the space.
+        addResult("XWiki.XWikiPreferences", GLOBAL_CLASS);
+        DocumentReference page = addResult("XWiki.Page", LOCAL_CLASS);
+
+        RightsSnapshot snapshot = this.snapshotFactory.createLiveSnapshot(xwikiSpace);
+
+        assertEquals(Collections.singletonList(page), toList(snapshot.getEntities()));
+    }
+
+    @Test
+    void createLiveSnapshotOfDocument()
+    {
+        DocumentReference page = new DocumentReference("Page", SPACE);
+
+        assertThrows(UnsupportedOperationException.class, () -> this.snapshotFactory.createLiveSnapshot(page));
+
+        verifyNoInteractions(this.queryManager);
+    }
+
+    @Test
+    void liveSnapshotReadsRules() throws Exception
+    {
+        DocumentReference page = addResult("Space.Page", LOCAL_CLASS);
+        List<ReadableSecurityRule> rules = Collections.singletonList(mock(ReadableSecurityRule.class));
+        when(this.rightsReader.getRules(page, false)).thenReturn(rules);
+        when(this.rightsReader.getRulesFingerprint(page, false)).thenReturn("fingerprint");
+
+        RightsSnapshot snapshot = this.snapshotFactory.createLiveSnapshot(SPACE);
+
+        assertSame(rules, snapshot.getRules(page));
+        assertEquals("fingerprint", snapshot.getFingerprint(page));
+    }
+
+    private DocumentReference addResult(String fullName, String className)
+    {
+        DocumentReference documentReference = new DocumentReference(WIKI.getName(),
+            Arrays.asList(fullName.substring(0, fullName.lastIndexOf('.')).split("\\.")),
+            fullName.substring(fullName.lastIndexOf('.') + 1));
+        when(this.documentReferenceResolver.resolve(fullName, WIKI)).thenReturn(documentReference);
+        this.results.add(new Object[] { fullName, className });
+        return documentReference;
+    }
+
+    private List<EntityReference> toList(Iterator<EntityReference> entities)
+    {
+        List<EntityReference> list = new ArrayList<>();
+        entities.forEachRemaining(list::add);
+        return list;
+    }
+}
@@ -19,19 +19,32 @@
  */
 package org.xwiki.contrib.rights.internal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Named;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.xwiki.contrib.rights.BulkRightsUpdates;
+import org.xwiki.contrib.rights.RightsReader;
+import org.xwiki.contrib.rights.RightsSnapshot;
+import org.xwiki.contrib.rights.RightsSnapshotFactory;
 import org.xwiki.contrib.rights.RulesObjectWriter;
+import org.xwiki.contrib.rights.SaveRulesResult;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
+import org.xwiki.contrib.rights.SecurityRuleDiff;
 import org.xwiki.contrib.rights.WritableSecurityRule;
 import org.xwiki.job.event.status.JobProgressManager;
 import org.xwiki.localization.ContextualLocalizationManager;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.ObjectReference;
 import org.xwiki.model.reference.SpaceReference;
@@ -67,8 +80,19 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @version $Id$
@@ -76,7 +100,8 @@ import static org.mockito.Mockito.mock;
 @OldcoreTest
 @ReferenceComponentList
 @ComponentList({XWikiGlobalRightsDocumentInitializer.class, XWikiRightsDocumentInitializer.class,
-    IncrementingObjectNumbersRulesWriter.class, RecyclingObjectsRulesWriter.class})
+    IncrementingObjectNumbersRulesWriter.class, RecyclingObjectsRulesWriter.class, DiffingRulesObjectWriter.class,
+    PackingRulesObjectWriter.class, DefaultSecurityRuleAbacus.class, StorageDocumentLocks.class})
 class DefaultRightsWriterTest extends AbstractRightsWriterTest
 {
     private static final String XWIKI_RIGHTS_CLASS_DOC_NAME = "XWiki.XWikiRights";
@@ -111,6 +136,22 @@ class DefaultRightsWriterTest extends AbstractRightsWriterTest
     @Named("document")
     private SheetBinder documentSheetBinder;
 
+    @MockComponent
+    private PersistedRulesCache persistedRulesCache;
+
+    @MockComponent
+    @Named("user")
+    private DocumentReferenceResolver<String> userReferenceResolver;
+
+    @MockComponent
+    private RightsReader rightsReader;
+
+    @MockComponent
+    private RightsSnapshotFactory snapshotFactory;
+
+    @MockComponent
+    private BulkRightsUpdates bulkRightsUpdates;
+
     @InjectMockitoOldcore
     private MockitoOldcore oldcore;
 
@@ -118,9 +159,10 @@ class DefaultRightsWriterTest extends AbstractRightsWriterTest
     private DefaultRightsWriter rightsWriter;
 
     @BeforeEach
-    void setUp()
+    void setUp() throws Exception
     {
         this.oldcore.getSpyXWiki().initializeMandatoryDocuments(this.oldcore.getXWikiContext());
+        mockUserReferenceResolver(this.oldcore, this.userReferenceResolver);
     }
 
     @Test
@@ -331,6 +373,241 @@ class DefaultRightsWriterTest extends AbstractRightsWriterTest
         assertTrue(document.isHidden());
     }
 
+    @Test
+    void saveRulesBatch() throws XWikiException
+    {
+        SpaceReference spaceReference = new SpaceReference("xwiki", "S");
+        DocumentReference webPreferencesReference =
+            new DocumentReference(RulesObjectWriter.XWIKI_WEB_PREFERENCES, spaceReference);
+        DocumentReference pageReference = new DocumentReference("P", spaceReference);
+        EntityReference attachmentReference = new EntityReference("file.txt", EntityType.ATTACHMENT, pageReference);
+
+        WritableSecurityRule spaceRule = new WritableSecurityRuleImpl();
+        spaceRule.setGroups(Collections.singletonList(new DocumentReference("xwiki", "XWiki", "XWikiAllGroup")));
+        spaceRule.setRights(new RightSet(Right.VIEW));
+        WritableSecurityRule pageRule = new WritableSecurityRuleImpl();
+        pageRule.setUsers(Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Admin")));
+        pageRule.setRights(new RightSet(Right.EDIT));
+
+        Map<EntityReference, List<ReadableSecurityRule>> rules = new LinkedHashMap<>();
+        rules.put(spaceReference, Collections.singletonList(spaceRule));
+        rules.put(webPreferencesReference, Collections.singletonList(pageRule));
+        rules.put(pageReference, Collections.singletonList(pageRule));
+        rules.put(attachmentReference, Collections.singletonList(pageRule));
+
+        Map<EntityReference, SaveRulesResult> results = this.rightsWriter.saveRules(rules);
+
+        assertEquals(Arrays.asList(attachmentReference, spaceReference, webPreferencesReference, pageReference),
+            new ArrayList<>(results.keySet()));
+        assertEquals(SaveRulesResult.FAILED, results.get(attachmentReference));
+        assertEquals(SaveRulesResult.SAVED, results.get(spaceReference));
+        assertEquals(SaveRulesResult.SAVED, results.get(webPreferencesReference));
+        assertEquals(SaveRulesResult.SAVED, results.get(pageReference));
+
+        // The space and its preferences page are stored in the same document, which is saved only once
+        verify(this.oldcore.getSpyXWiki(), times(1)).saveDocument(
+            argThat(document -> webPreferencesReference.equals(document.getDocumentReference())),
+            any(XWikiContext.class));
+        XWikiDocument webPreferences =
+            this.oldcore.getSpyXWiki().getDocument(webPreferencesReference, this.oldcore.getXWikiContext());
+        assertEquals(1, webPreferences.getXObjects(DefaultRightsWriter.XWIKI_GLOBAL_RIGHTS_CLASS).size());
+        assertEquals(1, webPreferences.getXObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS).size());
+        assertTrue(webPreferences.isHidden());
+        XWikiDocument page = this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext());
+        assertEquals(1, page.getXObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS).size());
+    }
+
+    @Test
+    void saveUnchangedRules() throws XWikiException
+    {
+        DocumentReference pageReference = new DocumentReference("xwiki", "S", "Unchanged");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference admin = new DocumentReference("xwiki", "XWiki", "Admin");
+        List<ReadableSecurityRule> rules = Arrays.asList(
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(admin),
+                new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.singletonList(allGroup), Collections.emptyList(),
+                new RightSet(Right.VIEW), RuleState.ALLOW));
+
+        this.rightsWriter.saveRules(rules, pageReference);
+        XWikiDocument savedDocument =
+            this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext());
+        String savedVersion = savedDocument.getVersion();
+
+        // The same objects are already stored, in another order
+        List<ReadableSecurityRule> sameRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Collections.singletonList(allGroup), Collections.emptyList(),
+                new RightSet(Right.VIEW), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(admin),
+                new RightSet(Right.EDIT, Right.VIEW), RuleState.ALLOW));
+        assertEquals(SaveRulesResult.UNCHANGED, this.rightsWriter.saveRules(sameRules, pageReference));
+        assertEquals(SaveRulesResult.UNCHANGED, this.rightsWriter.saveRules(null, pageReference));
+        assertEquals(SaveRulesResult.UNCHANGED,
+            this.rightsWriter.saveRules(Collections.singletonMap(pageReference, sameRules)).get(pageReference));
+
+        verify(this.oldcore.getSpyXWiki(), times(1)).saveDocument(
+            argThat(document -> pageReference.equals(document.getDocumentReference())), any(XWikiContext.class));
+        assertEquals(savedVersion,
+            this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext()).getVersion());
+
+        // The same rules, split in other objects, are saved
+        assertEquals(SaveRulesResult.SAVED, this.rightsWriter.saveRules(Collections.singletonMap(pageReference,
+            Arrays.asList(new WritableSecurityRuleImpl(Collections.singletonList(allGroup),
+                    Collections.singletonList(admin), new RightSet(Right.VIEW), RuleState.ALLOW),
+                new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(admin),
+                    new RightSet(Right.EDIT), RuleState.ALLOW)))).get(pageReference));
+    }
+
+    @Test
+    void saveRulesWithStrategy() throws Exception
+    {
+        DocumentReference pageReference = new DocumentReference("xwiki", "S", "Packed");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference admin = new DocumentReference("xwiki", "XWiki", "Admin");
+        List<ReadableSecurityRule> rules = Arrays.asList(
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(admin),
+                new RightSet(Right.VIEW), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.singletonList(allGroup), Collections.emptyList(),
+                new RightSet(Right.VIEW), RuleState.ALLOW));
+
+        this.rightsWriter.saveRules(rules, pageReference);
+        assertEquals(2, getNonNullObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS,
+            this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext())).size());
+
+        // Packing the rules already stored is not skipped
+        assertEquals(SaveRulesResult.SAVED, this.rightsWriter.saveRules(rules, pageReference, "packing"));
+
+        verify(this.oldcore.getSpyXWiki(), times(2)).saveDocument(
+            argThat(document -> pageReference.equals(document.getDocumentReference())), any(XWikiContext.class));
+        XWikiDocument packedDocument =
+            this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext());
+        List<BaseObject> objects = getNonNullObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS, packedDocument);
+        assertEquals(1, objects.size());
+        assertEquals("XWiki.XWikiAllGroup", objects.get(0).getLargeStringValue(GROUPS_PROPERTY));
+        assertEquals("XWiki.Admin", objects.get(0).getLargeStringValue(USERS_PROPERTY));
+    }
+
+    @Test
+    void removeRedundantRules() throws Exception
+    {
+        SpaceReference spaceReference = new SpaceReference("xwiki", "Redundant");
+        DocumentReference webPreferencesReference =
+            new DocumentReference(RulesObjectWriter.XWIKI_WEB_PREFERENCES, spaceReference);
+        DocumentReference pageReference = new DocumentReference("P", spaceReference);
+        List<ReadableSecurityRule> inheritedRules = Collections.singletonList(
+            new WritableSecurityRuleImpl(Collections.singletonList(new DocumentReference("xwiki", "XWiki",
+                "XWikiAllGroup")), Collections.emptyList(), new RightSet(Right.VIEW), RuleState.ALLOW));
+        ReadableSecurityRule denyRule = new WritableSecurityRuleImpl(Collections.emptyList(),
+            Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Alice")), new RightSet(Right.DELETE),
+            RuleState.DENY);
+        List<ReadableSecurityRule> pageRules = Arrays.asList(inheritedRules.get(0), denyRule);
+
+        Map<EntityReference, List<ReadableSecurityRule>> storedRules = new LinkedHashMap<>();
+        storedRules.put(spaceReference, inheritedRules);
+        storedRules.put(webPreferencesReference, Collections.singletonList(denyRule));
+        storedRules.put(pageReference, pageRules);
+        this.rightsWriter.saveRules(storedRules);
+        clearInvocations(this.oldcore.getSpyXWiki());
+
+        RightsSnapshot snapshot = mock(RightsSnapshot.class);
+        List<EntityReference> entities = Arrays.asList(spaceReference, pageReference, webPreferencesReference);
+        when(snapshot.getEntities()).thenReturn(entities.iterator());
+        when(this.snapshotFactory.createLiveSnapshot(spaceReference)).thenReturn(snapshot);
+        for (Map.Entry<EntityReference, List<ReadableSecurityRule>> entry : storedRules.entrySet()) {
+            when(this.rightsReader.getRules(entry.getKey(), false)).thenReturn(entry.getValue());
+            when(this.rightsReader.getInheritedRules(entry.getKey())).thenReturn(inheritedRules);
+        }
+
+        Map<EntityReference, List<ReadableSecurityRule>> removedRules =
+            this.rightsWriter.removeRedundantRules(spaceReference);
+
+        // The local rules of the preferences page are not redundant, so only the space and the page are cleaned.
+        assertEquals(Arrays.asList(spaceReference, pageReference), new ArrayList<>(removedRules.keySet()));
+        assertEquals(inheritedRules, removedRules.get(spaceReference));
+        assertEquals(inheritedRules, removedRules.get(pageReference));
+
+        // The space and its preferences page are stored in the same document, which is saved only once
+        verify(this.oldcore.getSpyXWiki(), times(1)).saveDocument(
+            argThat(document -> webPreferencesReference.equals(document.getDocumentReference())),
+            any(XWikiContext.class));
+        XWikiDocument webPreferences =
+            this.oldcore.getSpyXWiki().getDocument(webPreferencesReference, this.oldcore.getXWikiContext());
+        assertTrue(getNonNullObjects(DefaultRightsWriter.XWIKI_GLOBAL_RIGHTS_CLASS, webPreferences).isEmpty());
+        assertEquals(1, getNonNullObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS, webPreferences).size());
+        XWikiDocument page = this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext());
+        List<BaseObject> pageObjects = getNonNullObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS, page);
+        assertEquals(1, pageObjects.size());
+        assertEquals("XWiki.Alice", pageObjects.get(0).getLargeStringValue(USERS_PROPERTY));
+        assertEquals(0, pageObjects.get(0).getIntValue(ALLOW_PROPERTY));
+    }
+
+    @Test
+    void applyDiff() throws XWikiException
+    {
+        DocumentReference pageReference = new DocumentReference("xwiki", "S", "Patched");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference admin = new DocumentReference("xwiki", "XWiki", "Admin");
+        DocumentReference bob = new DocumentReference("xwiki", "XWiki", "Bob");
+        ReadableSecurityRule allGroupRule = new WritableSecurityRuleImpl(Collections.singletonList(allGroup),
+            Collections.emptyList(), new RightSet(Right.VIEW), RuleState.ALLOW);
+        ReadableSecurityRule adminRule = new WritableSecurityRuleImpl(Collections.emptyList(),
+            Collections.singletonList(admin), new RightSet(Right.EDIT), RuleState.ALLOW);
+        this.rightsWriter.saveRules(Arrays.asList(allGroupRule, adminRule), pageReference);
+
+        List<SecurityRuleDiff> diffs = Arrays.asList(
+            new DefaultSecurityRuleDiff(SecurityRuleDiff.ChangeType.RULE_DELETED, adminRule, null,
+                Collections.emptySet()),
+            new DefaultSecurityRuleDiff(SecurityRuleDiff.ChangeType.RULE_ADDED, null,
+                new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(bob),
+                    new RightSet(Right.COMMENT), RuleState.DENY),
+                Collections.emptySet()));
+        assertEquals(SaveRulesResult.SAVED, this.rightsWriter.applyDiff(pageReference, diffs));
+
+        XWikiDocument patchedDocument =
+            this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext());
+        assertEquals(2, getNonNullObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS, patchedDocument).size());
+        // The object of the untouched rule is kept, the object of the deleted rule is recycled for the added one
+        BaseObject allGroupObject = patchedDocument.getXObject(DefaultRightsWriter.XWIKI_RIGHTS_CLASS, 0);
+        assertEquals("XWiki.XWikiAllGroup", allGroupObject.getLargeStringValue(GROUPS_PROPERTY));
+        assertEquals(1, allGroupObject.getIntValue(ALLOW_PROPERTY));
+        BaseObject bobObject = patchedDocument.getXObject(DefaultRightsWriter.XWIKI_RIGHTS_CLASS, 1);
+        assertEquals("XWiki.Bob", bobObject.getLargeStringValue(USERS_PROPERTY));
+        assertEquals("comment", bobObject.getLargeStringValue(LEVELS_PROPERTY));
+        assertEquals(0, bobObject.getIntValue(ALLOW_PROPERTY));
+
+        // The diffs are already applied
+        assertEquals(SaveRulesResult.UNCHANGED, this.rightsWriter.applyDiff(pageReference, diffs));
+    }
+
+    @Test
+    void saveRulesIfMatch() throws Exception
+    {
+        DocumentReference pageReference = new DocumentReference("xwiki", "S", "Conditional");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        List<ReadableSecurityRule> viewRules = Collections.singletonList(new WritableSecurityRuleImpl(
+            Collections.singletonList(allGroup), Collections.emptyList(), new RightSet(Right.VIEW), RuleState.ALLOW));
+        List<ReadableSecurityRule> editRules = Collections.singletonList(new WritableSecurityRuleImpl(
+            Collections.singletonList(allGroup), Collections.emptyList(), new RightSet(Right.EDIT), RuleState.ALLOW));
+        SecurityRuleAbacus abacus = this.oldcore.getMocker().getInstance(SecurityRuleAbacus.class);
+        String noRulesFingerprint = abacus.computeFingerprint(Collections.emptyList());
+
+        assertEquals(SaveRulesResult.SAVED,
+            this.rightsWriter.saveRulesIfMatch(viewRules, pageReference, noRulesFingerprint));
+        // Someone else saved rules in the meantime
+        assertEquals(SaveRulesResult.CONFLICT,
+            this.rightsWriter.saveRulesIfMatch(editRules, pageReference, noRulesFingerprint));
+        assertEquals(1, this.oldcore.getSpyXWiki().getDocument(pageReference, this.oldcore.getXWikiContext())
+            .getXObject(DefaultRightsWriter.XWIKI_RIGHTS_CLASS).getIntValue(ALLOW_PROPERTY));
+        assertEquals(SaveRulesResult.SAVED,
+            this.rightsWriter.saveRulesIfMatch(editRules, pageReference, abacus.computeFingerprint(viewRules)));
+        // The wanted rules are already stored
+        assertEquals(SaveRulesResult.UNCHANGED,
+            this.rightsWriter.saveRulesIfMatch(editRules, pageReference, noRulesFingerprint));
+        assertEquals(SaveRulesResult.UNCHANGED,
+            this.rightsWriter.saveRulesIfMatch(null, pageReference, noRulesFingerprint));
+        assertEquals(SaveRulesResult.UNCHANGED, this.rightsWriter.saveRulesIfMatch(viewRules, null, null));
+    }
+
     /**
      * Adds an edit rule on the main wiki.
      */
@@ -690,6 +967,61 @@ class DefaultRightsWriterTest extends AbstractRightsWriterTest
                 .get(0).getLargeStringValue(USERS_PROPERTY));
     }
 
+    @Test
+    void addRightsOnSpaceCachesSavedRules() throws XWikiException
+    {
+        SpaceReference spaceReference = new SpaceReference("xwiki", "MySpace");
+        DocumentReference adminUser = new DocumentReference("xwiki", "XWiki", "Admin");
+        WritableSecurityRule rule = new WritableSecurityRuleImpl(Collections.emptyList(),
+            Collections.singletonList(adminUser), new RightSet(Right.EDIT), RuleState.ALLOW);
+        when(this.persistedRulesCache.beginUpdate(spaceReference)).thenReturn(3L);
+
+        rightsWriter.saveRules(Collections.singletonList(rule), spaceReference);
+
+        // The saved rules are cached, with the version read before the save.
+        InOrder inOrder = inOrder(this.persistedRulesCache, this.oldcore.getSpyXWiki());
+        inOrder.verify(this.persistedRulesCache).beginUpdate(spaceReference);
+        inOrder.verify(this.oldcore.getSpyXWiki()).saveDocument(any(XWikiDocument.class), any(XWikiContext.class));
+        inOrder.verify(this.persistedRulesCache).endUpdate(eq(spaceReference), argThat(rules -> rules.size() == 1
+            && rules.get(0).getUsers().equals(Collections.singletonList(adminUser))
+            && rules.get(0).getRights().equals(new RightSet(Right.EDIT)) && rules.get(0).isPersisted()), eq(3L));
+
+        // Saving the same rules again doesn't save the document, so the cache is left as is.
+        rightsWriter.saveRules(Collections.singletonList(rule), spaceReference);
+        verify(this.persistedRulesCache).endUpdate(eq(spaceReference), any(), anyLong());
+    }
+
+    @Test
+    void addRightsOnSpaceWhenSaveFailsInvalidatesCachedRules() throws XWikiException
+    {
+        SpaceReference spaceReference = new SpaceReference("xwiki", "MySpace");
+        WritableSecurityRule rule = new WritableSecurityRuleImpl(Collections.emptyList(),
+            Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Admin")), new RightSet(Right.EDIT),
+            RuleState.ALLOW);
+        when(this.persistedRulesCache.beginUpdate(spaceReference)).thenReturn(3L);
+        doThrow(XWikiException.class).when(this.oldcore.getSpyXWiki()).saveDocument(any(XWikiDocument.class),
+            any(XWikiContext.class));
+
+        assertThrows(XWikiException.class,
+            () -> rightsWriter.saveRules(Collections.singletonList(rule), spaceReference));
+
+        verify(this.persistedRulesCache).endUpdate(eq(spaceReference), isNull(), eq(3L));
+    }
+
+    @Test
+    void addLocalRightsOnPreferencesDocumentInvalidatesCachedRules() throws XWikiException
+    {
+        DocumentReference webPreferences = new DocumentReference("xwiki", "MySpace", "WebPreferences");
+        WritableSecurityRule rule = new WritableSecurityRuleImpl(Collections.emptyList(),
+            Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Admin")), new RightSet(Right.EDIT),
+            RuleState.ALLOW);
+
+        rightsWriter.saveRules(Collections.singletonList(rule), webPreferences);
+
+        // The reader marks the local rules of a preferences document as not editable, so they aren't cached as saved.
+        verify(this.persistedRulesCache).endUpdate(eq(webPreferences), isNull(), anyLong());
+    }
+
     @Test
     void addRightsWithSubjectsFromAnotherWikiOnSpace() throws XWikiException
     {
@@ -876,4 +1208,29 @@ class DefaultRightsWriterTest extends AbstractRightsWriterTest
         assertEquals(1,
             getNonNullObjects(DefaultRightsWriter.XWIKI_GLOBAL_RIGHTS_CLASS, documentAfterSavingRules).size());
     }
+
+    @Test
+    void notifyUpdatesAfterUnlock() throws Exception
+    {
+        DocumentReference documentReference = new DocumentReference("xwiki", "S", "P");
+        StorageDocumentLocks locks = this.oldcore.getMocker().getInstance(StorageDocumentLocks.class);
+        BulkRightsUpdates.Bulk bulk = mock(BulkRightsUpdates.Bulk.class);
+        when(this.bulkRightsUpdates.begin()).thenReturn(bulk);
+        // The listeners of the rights updates can write rights to other documents.
+        doAnswer(invocation -> {
+            assertFalse(locks.getStripe(documentReference).isHeldByCurrentThread());
+            return null;
+        }).when(bulk).close();
+
+        WritableSecurityRule rule = new WritableSecurityRuleImpl();
+        rule.setUsers(Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Admin")));
+        rule.setRights(new RightSet(Right.EDIT));
+        assertEquals(SaveRulesResult.SAVED,
+            this.rightsWriter.saveRules(Collections.singletonList(rule), documentReference));
+
+        InOrder order = inOrder(this.bulkRightsUpdates, this.oldcore.getSpyXWiki(), bulk);
+        order.verify(this.bulkRightsUpdates).begin();
+        order.verify(this.oldcore.getSpyXWiki()).saveDocument(any(XWikiDocument.class), any(XWikiContext.class));
+        order.verify(bulk).close();
+    }
 }
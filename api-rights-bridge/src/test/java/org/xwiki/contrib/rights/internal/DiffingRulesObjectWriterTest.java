@@ -0,0 +1,189 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.contrib.rights.WritableSecurityRule;
+import org.xwiki.job.event.status.JobProgressManager;
+import org.xwiki.localization.ContextualLocalizationManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.sheet.SheetBinder;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.mandatory.XWikiGlobalRightsDocumentInitializer;
+import com.xpn.xwiki.internal.mandatory.XWikiRightsDocumentInitializer;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.classes.LevelsClass;
+import com.xpn.xwiki.test.MockitoOldcore;
+import com.xpn.xwiki.test.junit5.mockito.InjectMockitoOldcore;
+import com.xpn.xwiki.test.junit5.mockito.OldcoreTest;
+import com.xpn.xwiki.test.reference.ReferenceComponentList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @version $Id$
+ */
+@OldcoreTest
+@ReferenceComponentList
+@ComponentList({XWikiGlobalRightsDocumentInitializer.class, XWikiRightsDocumentInitializer.class,
+    DiffingRulesObjectWriter.class, DefaultSecurityRuleAbacus.class, StorageDocumentLocks.class})
+class DiffingRulesObjectWriterTest extends AbstractRightsWriterTest
+{
+    private static final String DIFFING = "diffing";
+
+    /* Mocked for the mockito old core to not fail when trying to initialize the documents */
+    @MockComponent
+    private ObservationManager obsManager;
+
+    /* Mocked for the mockito old core to not fail when trying to initialize the documents */
+    @MockComponent
+    private JobProgressManager jobsProgressManager;
+
+    /* Mocked for the mockito old core to not fail when trying to initialize the documents */
+    @MockComponent
+    private ContextualLocalizationManager localizationManager;
+
+    /*
+     * Mocked for the initializers, they use the sheet binder to check if some specific sheet needs to be bound to the
+     * classes, we don't care so we put an empty mock.
+     */
+    @MockComponent
+    @Named("document")
+    private SheetBinder documentSheetBinder;
+
+    @MockComponent
+    @Named("user")
+    private DocumentReferenceResolver<String> userReferenceResolver;
+
+    @InjectMockitoOldcore
+    private MockitoOldcore oldcore;
+
+    @InjectMockComponents
+    private DefaultRightsWriter rightsWriter;
+
+    private final WritableSecurityRule adminGroupView = new WritableSecurityRuleImpl(
+        Collections.singletonList(new DocumentReference("xwiki", "XWiki", "XWikiAdminGroup")), Collections.emptyList(),
+        new RightSet(Right.VIEW), RuleState.ALLOW);
+
+    private final WritableSecurityRule adminEdit = new WritableSecurityRuleImpl(Collections.emptyList(),
+        Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Admin")), new RightSet(Right.EDIT),
+        RuleState.ALLOW);
+
+    private final WritableSecurityRule oneViewDenied = new WritableSecurityRuleImpl(Collections.emptyList(),
+        Collections.singletonList(new DocumentReference("xwiki", "XWiki", "One")), new RightSet(Right.VIEW),
+        RuleState.DENY);
+
+    private final WritableSecurityRule allGroupComment = new WritableSecurityRuleImpl(
+        Collections.singletonList(new DocumentReference("xwiki", "XWiki", "XWikiAllGroup")), Collections.emptyList(),
+        new RightSet(Right.COMMENT, Right.VIEW), RuleState.ALLOW);
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.oldcore.getSpyXWiki().initializeMandatoryDocuments(this.oldcore.getXWikiContext());
+        mockUserReferenceResolver(this.oldcore, this.userReferenceResolver);
+    }
+
+    @Test
+    void keepIdenticalObjects() throws XWikiException, ComponentLookupException
+    {
+        DocumentReference documentReference = new DocumentReference("xwiki", "Space", "Page");
+        this.rightsWriter.saveRules(Arrays.asList(this.adminGroupView, this.adminEdit, this.oneViewDenied),
+            documentReference, DIFFING);
+
+        List<BaseObject> objects = getObjects(documentReference);
+        assertEquals(3, objects.size());
+        assertObject("XWiki.XWikiAdminGroup", "", "view", 1, objects.get(0));
+        assertObject("", "XWiki.Admin", "edit", 1, objects.get(1));
+        assertObject("", "XWiki.One", "view", 0, objects.get(2));
+
+        // The first and last rules are kept, in a different order, and the second one is replaced
+        this.rightsWriter.saveRules(Arrays.asList(this.oneViewDenied, this.allGroupComment, this.adminGroupView),
+            documentReference, DIFFING);
+
+        objects = getObjects(documentReference);
+        assertEquals(3, objects.size());
+        assertObject("XWiki.XWikiAdminGroup", "", "view", 1, objects.get(0));
+        assertEquals("XWiki.XWikiAllGroup", objects.get(1).getLargeStringValue("groups"));
+        assertEquals(new HashSet<>(Arrays.asList("comment", "view")),
+            new HashSet<>(LevelsClass.getListFromString(objects.get(1).getLargeStringValue("levels"))));
+        assertObject("", "XWiki.One", "view", 0, objects.get(2));
+
+        // Only the second rule is kept, the other objects are removed
+        this.rightsWriter.saveRules(Collections.singletonList(this.allGroupComment), documentReference, DIFFING);
+
+        objects = getObjects(documentReference);
+        assertEquals(3, objects.size());
+        assertNull(objects.get(0));
+        assertEquals("XWiki.XWikiAllGroup", objects.get(1).getLargeStringValue("groups"));
+        assertNull(objects.get(2));
+    }
+
+    @Test
+    void addAndRecycleObjects() throws XWikiException, ComponentLookupException
+    {
+        DocumentReference documentReference = new DocumentReference("xwiki", "Space", "OtherPage");
+        this.rightsWriter.saveRules(Collections.singletonList(this.adminEdit), documentReference, DIFFING);
+
+        // The same rule twice needs two objects
+        this.rightsWriter.saveRules(Arrays.asList(this.oneViewDenied, this.adminEdit, this.adminEdit),
+            documentReference, DIFFING);
+
+        List<BaseObject> objects = getObjects(documentReference);
+        assertEquals(3, objects.size());
+        assertObject("", "XWiki.Admin", "edit", 1, objects.get(0));
+        assertObject("", "XWiki.One", "view", 0, objects.get(1));
+        assertObject("", "XWiki.Admin", "edit", 1, objects.get(2));
+
+        this.rightsWriter.saveRules(Collections.singletonList(this.adminGroupView), documentReference, DIFFING);
+
+        objects = getObjects(documentReference);
+        assertEquals(1, getNonNullObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS,
+            this.oldcore.getSpyXWiki().getDocument(documentReference, this.oldcore.getXWikiContext())).size());
+        assertObject("XWiki.XWikiAdminGroup", "", "view", 1, objects.get(0));
+    }
+
+    private List<BaseObject> getObjects(DocumentReference documentReference) throws XWikiException
+    {
+        XWikiDocument document =
+            this.oldcore.getSpyXWiki().getDocument(documentReference, this.oldcore.getXWikiContext());
+        return document.getXObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS);
+    }
+}
@@ -33,6 +33,7 @@ import org.xwiki.contrib.rights.WritableSecurityRule;
 import org.xwiki.job.event.status.JobProgressManager;
 import org.xwiki.localization.ContextualLocalizationManager;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.observation.ObservationManager;
@@ -69,7 +70,8 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 @OldcoreTest
 @ReferenceComponentList
 @ComponentList({XWikiGlobalRightsDocumentInitializer.class, XWikiRightsDocumentInitializer.class,
-    IncrementingObjectNumbersRulesWriter.class, RecyclingObjectsRulesWriter.class})
+    IncrementingObjectNumbersRulesWriter.class, RecyclingObjectsRulesWriter.class, DefaultSecurityRuleAbacus.class,
+    StorageDocumentLocks.class})
 public class RecyclingStrategyRightsWriterTest extends AbstractRightsWriterTest
 {
     /* Mocked for the mockito old core to not fail when trying to initialize the documents */
@@ -92,6 +94,10 @@ public class RecyclingStrategyRightsWriterTest extends AbstractRightsWriterTest
     @Named("document")
     private SheetBinder documentSheetBinder;
 
+    @MockComponent
+    @Named("user")
+    private DocumentReferenceResolver<String> userReferenceResolver;
+
     @InjectMockitoOldcore
     private MockitoOldcore oldcore;
 
@@ -99,9 +105,10 @@ public class RecyclingStrategyRightsWriterTest extends AbstractRightsWriterTest
     private DefaultRightsWriter rightsWriter;
 
     @BeforeEach
-    void setUp()
+    void setUp() throws Exception
     {
         this.oldcore.getSpyXWiki().initializeMandatoryDocuments(this.oldcore.getXWikiContext());
+        mockUserReferenceResolver(this.oldcore, this.userReferenceResolver);
     }
 
     @Test
@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.rights.RightUpdatedEvent;
+import org.xwiki.contrib.rights.SecurityRuleAbacus;
+import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.SecurityReferenceFactory;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.security.authorization.cache.SecurityCache;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link RemoteRightUpdatedEventListener}, simulating two members of a cluster: the
+ * {@link RemoteRightUpdatedEvent}s sent by the {@link RightsUpdateNotifier} of the first member through its observation
+ * manager are serialized and received by the listener of the second member, in the remote state.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class RemoteRightUpdatedEventListenerTest
+{
+    private static final SpaceReference SPACE = new SpaceReference("xwiki", Arrays.asList("Parent", "Space"));
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "User");
+
+    private static final DocumentReference GROUP = new DocumentReference("subwiki", "XWiki", "Group");
+
+    @InjectMockComponents
+    private RemoteRightUpdatedEventListener listener;
+
+    /**
+     * The observation manager of the receiving member.
+     */
+    @MockComponent
+    private ObservationManager observationManager;
+
+    @MockComponent
+    private SecurityReferenceFactory securityReferenceFactory;
+
+    @MockComponent
+    private SecurityCache securityCache;
+
+    @MockComponent
+    private PersistedRulesCache persistedRulesCache;
+
+    @MockComponent
+    private ActualRulesCache actualRulesCache;
+
+    @MockComponent
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    /**
+     * The notifier of the sending member, with its own observation manager.
+     */
+    private final RightsUpdateNotifier sender = new RightsUpdateNotifier();
+
+    private final ObservationManager senderObservationManager = mock(ObservationManager.class);
+
+    private final SecurityRuleAbacus senderAbacus = mock(SecurityRuleAbacus.class);
+
+    private final SecurityReference securityReference = mock(SecurityReference.class);
+
+    private boolean remoteState;
+
+    @BeforeEach
+    void setUp()
+    {
+        ReflectionUtils.setFieldValue(this.sender, "observationManager", this.senderObservationManager);
+        ReflectionUtils.setFieldValue(this.sender, "securityRuleAbacus", this.senderAbacus);
+        // The remote events notified on the sending member are sent to the receiving member.
+        doAnswer(invocation -> {
+            if (invocation.getArgument(0) instanceof RemoteRightUpdatedEvent) {
+                receive(invocation.getArgument(0));
+            }
+            return null;
+        }).when(this.senderObservationManager).notify(any(), any(), any());
+        when(this.remoteObservationManagerContext.isRemoteState()).thenAnswer(invocation -> this.remoteState);
+        when(this.securityReferenceFactory.newEntityReference(SPACE)).thenReturn(this.securityReference);
+    }
+
+    @Test
+    void onRemoteEvent()
+    {
+        ReadableSecurityRule groupRule = new WritableSecurityRuleImpl(Collections.singletonList(GROUP),
+            Collections.emptyList(), new RightSet(Right.COMMENT), RuleState.DENY);
+        List<ReadableSecurityRule> previousRules = Collections.singletonList(groupRule);
+        List<ReadableSecurityRule> currentRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(USER),
+                new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.singletonList(GROUP), Collections.emptyList(),
+                new RightSet(Right.COMMENT, Right.SCRIPT), RuleState.DENY));
+        List<SecurityRuleDiff> diffs = Arrays.asList(
+            new DefaultSecurityRuleDiff(SecurityRuleDiff.ChangeType.RULE_ADDED, null, currentRules.get(0),
+                Collections.emptySet()),
+            new DefaultSecurityRuleDiff(SecurityRuleDiff.ChangeType.RULE_UPDATED, groupRule, currentRules.get(1),
+                EnumSet.of(SecurityRuleDiff.PropertyType.RIGHTS)));
+        when(this.senderAbacus.computeRuleDiff(previousRules, currentRules)).thenReturn(diffs);
+
+        this.sender.notifyRemoteUpdate(SPACE, previousRules, currentRules);
+
+        verify(this.securityCache).remove(this.securityReference);
+        verify(this.persistedRulesCache).remove(SPACE);
+        verify(this.actualRulesCache).invalidate(this.securityReference);
+        verify(this.observationManager).notify(any(RightUpdatedEvent.class), eq(this.securityReference), eq(diffs));
+    }
+
+    @Test
+    void onRemoteEventWithRegroupedRules()
+    {
+        List<ReadableSecurityRule> previousRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(USER),
+                new RightSet(Right.VIEW), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(USER),
+                new RightSet(Right.EDIT), RuleState.ALLOW));
+        List<ReadableSecurityRule> currentRules = Collections.singletonList(
+            new WritableSecurityRuleImpl(Collections.emptyList(), Collections.singletonList(USER),
+                new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW));
+        when(this.senderAbacus.computeRuleDiff(previousRules, currentRules)).thenReturn(Collections.emptyList());
+
+        this.sender.notifyRemoteUpdate(SPACE, previousRules, currentRules);
+
+        // The stored rules changed, so the cached ones are outdated even if their meaning didn't change.
+        verify(this.securityCache).remove(this.securityReference);
+        verify(this.persistedRulesCache).remove(SPACE);
+        verify(this.actualRulesCache).invalidate(this.securityReference);
+        verifyNoInteractions(this.observationManager);
+    }
+
+    @Test
+    void onLocalEvent()
+    {
+        RemoteRightUpdatedEvent event = new RemoteRightUpdatedEvent(SPACE, Collections.emptyList());
+
+        this.listener.onEvent(event, null, null);
+
+        verifyNoInteractions(this.securityCache, this.persistedRulesCache, this.actualRulesCache,
+            this.observationManager);
+    }
+
+    @Test
+    void matches()
+    {
+        assertTrue(new RemoteRightUpdatedEvent().matches(new RemoteRightUpdatedEvent(SPACE, Collections.emptyList())));
+    }
+
+    private void receive(RemoteRightUpdatedEvent sentEvent) throws Exception
+    {
+        RemoteRightUpdatedEvent receivedEvent = transfer(sentEvent);
+        assertEquals(sentEvent.getEntity(), receivedEvent.getEntity());
+
+        this.remoteState = true;
+        try {
+            this.listener.onEvent(receivedEvent, null, null);
+        } finally {
+            this.remoteState = false;
+        }
+    }
+
+    private RemoteRightUpdatedEvent transfer(RemoteRightUpdatedEvent event) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(event);
+        }
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (RemoteRightUpdatedEvent) input.readObject();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link RightUpdatedEventExecutor}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class RightUpdatedEventExecutorTest
+{
+    private static final DocumentReference PAGE = new DocumentReference("xwiki", "Space", "Page");
+
+    private static final DocumentReference OTHER_PAGE = new DocumentReference("xwiki", "Space", "OtherPage");
+
+    private static final int QUEUE_SIZE = 2;
+
+    @MockComponent
+    private ExecutionContextCloner contextCloner;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @InjectMockComponents
+    private RightUpdatedEventExecutor eventExecutor;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getProperty(RightUpdatedEventExecutor.ASYNC_PROPERTY, false)).thenReturn(true);
+        when(this.configuration.getProperty(RightUpdatedEventExecutor.QUEUE_SIZE_PROPERTY, 1000))
+            .thenReturn(QUEUE_SIZE);
+        when(this.configuration.getProperty(RightUpdatedEventExecutor.THREADS_PROPERTY, 2)).thenReturn(2);
+        when(this.contextCloner.wrapInNewContext(any())).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+
+    @Test
+    void executeInOrderPerEntity() throws Exception
+    {
+        assertTrue(this.eventExecutor.isAsynchronous());
+
+        List<Integer> pageTasks = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> otherPageTasks = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 50; i++) {
+            int task = i;
+            this.eventExecutor.execute(PAGE, () -> pageTasks.add(task));
+            this.eventExecutor.execute(OTHER_PAGE, () -> {
+                otherPageTasks.add(task);
+                throw new IllegalStateException("Failing listener");
+            });
+        }
+
+        // Runs the queued tasks before stopping.
+        this.eventExecutor.dispose();
+
+        List<Integer> expected = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+        assertEquals(expected, pageTasks);
+        assertEquals(expected, otherPageTasks);
+        assertEquals(100, this.eventExecutor.getExecutedTaskCount());
+        assertEquals(0, this.eventExecutor.getQueueDepth());
+    }
+
+    @Test
+    void waitWhenQueueIsFull() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        this.eventExecutor.execute(PAGE, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+
+        List<Integer> tasks = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            int task = i;
+            this.eventExecutor.execute(PAGE, () -> tasks.add(task));
+        }
+        assertEquals(QUEUE_SIZE, this.eventExecutor.getQueueDepth());
+        assertEquals(QUEUE_SIZE, this.eventExecutor.getMaxQueueDepth());
+
+        // The queue is full: the next task is only queued once the running one is done.
+        Thread submitter = new Thread(() -> this.eventExecutor.execute(PAGE, () -> tasks.add(QUEUE_SIZE)));
+        submitter.start();
+        while (submitter.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        assertEquals(Collections.emptyList(), tasks);
+
+        release.countDown();
+        submitter.join();
+        this.eventExecutor.dispose();
+
+        assertEquals(IntStream.rangeClosed(0, QUEUE_SIZE).boxed().collect(Collectors.toList()), tasks);
+    }
+
+    @Test
+    void executeFromTask() throws Exception
+    {
+        List<String> tasks = Collections.synchronizedList(new ArrayList<>());
+        this.eventExecutor.execute(PAGE, () -> {
+            // A listener saving rights from a thread of the executor, while its queue could be full.
+            this.eventExecutor.execute(OTHER_PAGE, () -> tasks.add("nested"));
+            tasks.add("outer");
+        });
+
+        this.eventExecutor.dispose();
+
+        assertEquals(Arrays.asList("nested", "outer"), tasks);
+    }
+
+    @Test
+    void executeWithInvalidConfiguration() throws Exception
+    {
+        this.eventExecutor.dispose();
+        when(this.configuration.getProperty(RightUpdatedEventExecutor.QUEUE_SIZE_PROPERTY, 1000)).thenReturn(0);
+        when(this.configuration.getProperty(RightUpdatedEventExecutor.THREADS_PROPERTY, 2)).thenReturn(0);
+        this.eventExecutor.initialize();
+
+        List<Integer> tasks = Collections.synchronizedList(new ArrayList<>());
+        this.eventExecutor.execute(PAGE, () -> tasks.add(0));
+        this.eventExecutor.execute(OTHER_PAGE, () -> tasks.add(1));
+        this.eventExecutor.dispose();
+
+        assertEquals(Arrays.asList(0, 1), tasks);
+    }
+}
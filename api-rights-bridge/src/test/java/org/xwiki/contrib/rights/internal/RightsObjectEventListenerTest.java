@@ -25,15 +25,21 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import javax.inject.Named;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 import org.xwiki.contrib.rights.RightUpdatedEvent;
 import org.xwiki.contrib.rights.RulesObjectWriter;
 import org.xwiki.contrib.rights.SecurityRuleAbacus;
 import org.xwiki.contrib.rights.SecurityRuleDiff;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.model.reference.WikiReference;
@@ -45,7 +51,9 @@ import org.xwiki.security.SecurityReferenceFactory;
 import org.xwiki.security.authorization.ReadableSecurityRule;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.security.authorization.RuleState;
+import org.xwiki.security.authorization.cache.SecurityCache;
 import org.xwiki.security.internal.XWikiConstants;
+import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
@@ -56,9 +64,13 @@ import com.xpn.xwiki.internal.event.XObjectUpdatedEvent;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.BaseObjectReference;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -69,6 +81,7 @@ import static org.mockito.Mockito.when;
  * @version $Id$
  */
 @ComponentTest
+@ComponentList({RightsUpdateNotifier.class})
 class RightsObjectEventListenerTest
 {
     @InjectMockComponents
@@ -78,7 +91,8 @@ class RightsObjectEventListenerTest
     private ObservationManager observationManager;
 
     @MockComponent
-    private DocumentReferenceResolver<String> documentReferenceResolver;
+    @Named("user")
+    private DocumentReferenceResolver<String> userReferenceResolver;
 
     @MockComponent
     private SecurityReferenceFactory securityReferenceFactory;
@@ -89,6 +103,24 @@ class RightsObjectEventListenerTest
     @MockComponent
     private RemoteObservationManagerContext remoteObservationManagerContext;
 
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private SecurityCache securityCache;
+
+    @MockComponent
+    private PersistedRulesCache persistedRulesCache;
+
+    @MockComponent
+    private ActualRulesCache actualRulesCache;
+
+    @MockComponent
+    private RightUpdatedEventExecutor eventExecutor;
+
+    @MockComponent
+    private RightsUpdateBatcher updateBatcher;
+
     private XWikiSecurityRule mockRightObject(BaseObject baseObjectMock, RuleState state, List<Right> rights,
         Pair<String, List<DocumentReference>> userReferences,
         Pair<String, List<DocumentReference>> groupReferences)
@@ -163,13 +195,13 @@ class RightsObjectEventListenerTest
         DocumentReference userBarRef = mock(DocumentReference.class);
         DocumentReference userBuzRef = mock(DocumentReference.class);
 
-        when(this.documentReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
-        when(this.documentReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
-        when(this.documentReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
+        when(this.userReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
+        when(this.userReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
+        when(this.userReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
 
-        when(this.documentReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
-        when(this.documentReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
-        when(this.documentReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
+        when(this.userReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
+        when(this.userReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
+        when(this.userReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
 
         List<ReadableSecurityRule> expectedPreviousRules = Arrays.asList(
             mockRightObject(rightObj1, RuleState.ALLOW, Arrays.asList(Right.VIEW, Right.EDIT),
@@ -199,13 +231,16 @@ class RightsObjectEventListenerTest
         when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
             .thenReturn(expectedSecurityReference);
 
-        List<SecurityRuleDiff> diffList = mock(List.class);
+        List<SecurityRuleDiff> diffList = Collections.singletonList(mock(SecurityRuleDiff.class));
         when(this.securityRuleAbacus.computeRuleDiff(expectedPreviousRules, expectedCurrentRules))
             .thenReturn(diffList);
         this.listener.onEvent(event, source, null);
-        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
+        verify(this.securityCache).remove(expectedSecurityReference);
+        verify(this.persistedRulesCache).remove(sourceDocReference);
+        verify(this.actualRulesCache).invalidate(expectedSecurityReference);
         verify(this.observationManager)
             .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(diffList));
+        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
     }
 
     @Test
@@ -253,13 +288,13 @@ class RightsObjectEventListenerTest
         DocumentReference userBarRef = mock(DocumentReference.class);
         DocumentReference userBuzRef = mock(DocumentReference.class);
 
-        when(this.documentReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
-        when(this.documentReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
-        when(this.documentReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
+        when(this.userReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
+        when(this.userReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
+        when(this.userReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
 
-        when(this.documentReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
-        when(this.documentReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
-        when(this.documentReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
+        when(this.userReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
+        when(this.userReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
+        when(this.userReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
 
         List<ReadableSecurityRule> expectedPreviousRules = Arrays.asList(
             mockRightObject(rightObj1, RuleState.ALLOW, Arrays.asList(Right.VIEW, Right.EDIT),
@@ -289,13 +324,13 @@ class RightsObjectEventListenerTest
         when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
             .thenReturn(expectedSecurityReference);
 
-        List<SecurityRuleDiff> diffList = mock(List.class);
+        List<SecurityRuleDiff> diffList = Collections.singletonList(mock(SecurityRuleDiff.class));
         when(this.securityRuleAbacus.computeRuleDiff(expectedPreviousRules, expectedCurrentRules))
             .thenReturn(diffList);
         this.listener.onEvent(event, source, null);
-        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
         verify(this.observationManager)
             .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(diffList));
+        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
     }
 
     @Test
@@ -344,13 +379,13 @@ class RightsObjectEventListenerTest
         DocumentReference userBarRef = mock(DocumentReference.class);
         DocumentReference userBuzRef = mock(DocumentReference.class);
 
-        when(this.documentReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
-        when(this.documentReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
-        when(this.documentReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
+        when(this.userReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
+        when(this.userReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
+        when(this.userReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
 
-        when(this.documentReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
-        when(this.documentReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
-        when(this.documentReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
+        when(this.userReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
+        when(this.userReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
+        when(this.userReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
 
         List<ReadableSecurityRule> expectedPreviousRules = Arrays.asList(
             mockRightObject(rightObj1, RuleState.ALLOW, Arrays.asList(Right.VIEW, Right.EDIT),
@@ -380,13 +415,13 @@ class RightsObjectEventListenerTest
         when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
             .thenReturn(expectedSecurityReference);
 
-        List<SecurityRuleDiff> diffList = mock(List.class);
+        List<SecurityRuleDiff> diffList = Collections.singletonList(mock(SecurityRuleDiff.class));
         when(this.securityRuleAbacus.computeRuleDiff(expectedPreviousRules, expectedCurrentRules))
             .thenReturn(diffList);
         this.listener.onEvent(event, source, null);
-        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
         verify(this.observationManager)
             .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(diffList));
+        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
     }
 
     @Test
@@ -437,13 +472,13 @@ class RightsObjectEventListenerTest
         DocumentReference userBarRef = mock(DocumentReference.class);
         DocumentReference userBuzRef = mock(DocumentReference.class);
 
-        when(this.documentReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
-        when(this.documentReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
-        when(this.documentReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
+        when(this.userReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
+        when(this.userReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
+        when(this.userReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
 
-        when(this.documentReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
-        when(this.documentReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
-        when(this.documentReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
+        when(this.userReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
+        when(this.userReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
+        when(this.userReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
 
         List<ReadableSecurityRule> expectedPreviousRules = Arrays.asList(
             mockRightObject(rightObj1, RuleState.ALLOW, Arrays.asList(Right.VIEW, Right.EDIT),
@@ -473,13 +508,13 @@ class RightsObjectEventListenerTest
         when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
             .thenReturn(expectedSecurityReference);
 
-        List<SecurityRuleDiff> diffList = mock(List.class);
+        List<SecurityRuleDiff> diffList = Collections.singletonList(mock(SecurityRuleDiff.class));
         when(this.securityRuleAbacus.computeRuleDiff(expectedPreviousRules, expectedCurrentRules))
             .thenReturn(diffList);
         this.listener.onEvent(event, source, null);
-        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
         verify(this.observationManager)
             .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(diffList));
+        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
     }
 
     @Test
@@ -527,13 +562,13 @@ class RightsObjectEventListenerTest
         DocumentReference userBarRef = mock(DocumentReference.class);
         DocumentReference userBuzRef = mock(DocumentReference.class);
 
-        when(this.documentReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
-        when(this.documentReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
-        when(this.documentReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
+        when(this.userReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
+        when(this.userReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
+        when(this.userReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
 
-        when(this.documentReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
-        when(this.documentReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
-        when(this.documentReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
+        when(this.userReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
+        when(this.userReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
+        when(this.userReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
 
         List<ReadableSecurityRule> expectedPreviousRules = Arrays.asList(
             mockRightObject(rightObj1, RuleState.ALLOW, Arrays.asList(Right.VIEW, Right.EDIT),
@@ -561,13 +596,13 @@ class RightsObjectEventListenerTest
         when(this.securityReferenceFactory.newEntityReference(new SpaceReference("SomeSpace", wikiReference)))
             .thenReturn(expectedSecurityReference);
 
-        List<SecurityRuleDiff> diffList = mock(List.class);
+        List<SecurityRuleDiff> diffList = Collections.singletonList(mock(SecurityRuleDiff.class));
         when(this.securityRuleAbacus.computeRuleDiff(expectedPreviousRules, expectedCurrentRules))
             .thenReturn(diffList);
         this.listener.onEvent(event, source, null);
-        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
         verify(this.observationManager)
             .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(diffList));
+        verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
     }
 
     @Test
@@ -616,13 +651,13 @@ class RightsObjectEventListenerTest
         DocumentReference userBarRef = mock(DocumentReference.class);
         DocumentReference userBuzRef = mock(DocumentReference.class);
 
-        when(this.documentReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
-        when(this.documentReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
-        when(this.documentReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
+        when(this.userReferenceResolver.resolve("groupA", wikiReference)).thenReturn(groupARef);
+        when(this.userReferenceResolver.resolve("groupB", wikiReference)).thenReturn(groupBRef);
+        when(this.userReferenceResolver.resolve("groupC", wikiReference)).thenReturn(groupCRef);
 
-        when(this.documentReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
-        when(this.documentReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
-        when(this.documentReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
+        when(this.userReferenceResolver.resolve("Foo", wikiReference)).thenReturn(userFooRef);
+        when(this.userReferenceResolver.resolve("Bar", wikiReference)).thenReturn(userBarRef);
+        when(this.userReferenceResolver.resolve("Buz", wikiReference)).thenReturn(userBuzRef);
 
         List<ReadableSecurityRule> expectedPreviousRules = Arrays.asList(
             mockRightObject(rightObj1, RuleState.ALLOW, Arrays.asList(Right.VIEW, Right.EDIT),
@@ -650,12 +685,218 @@ class RightsObjectEventListenerTest
         when(this.securityReferenceFactory.newEntityReference(wikiReference))
             .thenReturn(expectedSecurityReference);
 
-        List<SecurityRuleDiff> diffList = mock(List.class);
+        List<SecurityRuleDiff> diffList = Collections.singletonList(mock(SecurityRuleDiff.class));
         when(this.securityRuleAbacus.computeRuleDiff(expectedPreviousRules, expectedCurrentRules))
             .thenReturn(diffList);
         this.listener.onEvent(event, source, null);
+        verify(this.observationManager)
+            .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(diffList));
         verify(this.securityRuleAbacus).computeRuleDiff(expectedPreviousRules, expectedCurrentRules);
+    }
+
+    @Test
+    void onSeveralEventsOfTheSameSave()
+    {
+        when(this.execution.getContext()).thenReturn(new ExecutionContext());
+        DocumentReference sourceDocReference = new DocumentReference("foo", "SomeSpace", "SomePage");
+        XWikiDocument source = mock(XWikiDocument.class);
+        when(source.getDocumentReference()).thenReturn(sourceDocReference);
+        XWikiDocument previousDoc = mock(XWikiDocument.class);
+        when(previousDoc.getDocumentReference()).thenReturn(sourceDocReference);
+        when(source.getOriginalDocument()).thenReturn(previousDoc);
+
+        // Three rights objects and one global rights object changed in the same save
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_GLOBAL_RIGHTS_CLASS), source,
+            null);
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+
+        verify(this.observationManager, times(2)).notify(any(RightUpdatedEvent.class), any(), any());
+
+        // The same document instance is saved again
+        XWikiDocument savedDoc = mock(XWikiDocument.class);
+        when(savedDoc.getDocumentReference()).thenReturn(sourceDocReference);
+        when(source.getOriginalDocument()).thenReturn(savedDoc);
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+
+        verify(this.observationManager, times(3)).notify(any(RightUpdatedEvent.class), any(), any());
+    }
+
+    @Test
+    void onEventWithoutRulesChange()
+    {
+        DocumentReference sourceDocReference = new DocumentReference("foo", "SomeSpace", "SomePage");
+        XWikiDocument source = mock(XWikiDocument.class);
+        when(source.getDocumentReference()).thenReturn(sourceDocReference);
+        XWikiDocument previousDoc = mock(XWikiDocument.class);
+        when(previousDoc.getDocumentReference()).thenReturn(sourceDocReference);
+        when(source.getOriginalDocument()).thenReturn(previousDoc);
+        SecurityReference expectedSecurityReference = mock(SecurityReference.class);
+        when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
+            .thenReturn(expectedSecurityReference);
+        when(this.securityRuleAbacus.computeRuleDiff(any(), any())).thenReturn(Collections.emptyList());
+
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+
+        verify(this.securityCache, never()).remove(any());
+        verify(this.persistedRulesCache, never()).remove(any());
+        verify(this.actualRulesCache, never()).invalidate(any());
+        verify(this.observationManager, never()).notify(any(RemoteRightUpdatedEvent.class), any(), any());
+        verify(this.observationManager)
+            .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(Collections.emptyList()));
+    }
+
+    @Test
+    void onEventWithSubjectResolvedInAnotherSpace()
+    {
+        // Resolve the subjects like the platform resolves users: an unqualified name is a user of the XWiki space.
+        when(this.userReferenceResolver.resolve(any(), any())).thenAnswer(invocation -> {
+            String[] parts = ((String) invocation.getArgument(0)).split("\\.");
+            WikiReference wiki = invocation.getArgument(1);
+            return parts.length > 1 ? new DocumentReference(wiki.getName(), parts[0], parts[1])
+                : new DocumentReference(wiki.getName(), "XWiki", parts[0]);
+        });
+        DocumentReference sourceDocReference = new DocumentReference("foo", "SomeSpace", "SomePage");
+        XWikiDocument source = mock(XWikiDocument.class);
+        when(source.getDocumentReference()).thenReturn(sourceDocReference);
+        XWikiDocument previousDoc = mock(XWikiDocument.class);
+        when(previousDoc.getDocumentReference()).thenReturn(sourceDocReference);
+        when(source.getOriginalDocument()).thenReturn(previousDoc);
+        BaseObject previousObject = mock(BaseObject.class);
+        when(previousDoc.getXObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS))
+            .thenReturn(Collections.singletonList(previousObject));
+        when(previousObject.getIntValue(XWikiConstants.ALLOW_FIELD_NAME)).thenReturn(1);
+        when(previousObject.getStringValue(XWikiConstants.LEVELS_FIELD_NAME)).thenReturn("view");
+        when(previousObject.getStringValue(XWikiConstants.USERS_FIELD_NAME)).thenReturn("Main.Alice");
+        when(previousObject.getStringValue(XWikiConstants.GROUPS_FIELD_NAME)).thenReturn("");
+        BaseObject currentObject = mock(BaseObject.class);
+        when(source.getXObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS))
+            .thenReturn(Collections.singletonList(currentObject));
+        when(currentObject.getIntValue(XWikiConstants.ALLOW_FIELD_NAME)).thenReturn(1);
+        when(currentObject.getStringValue(XWikiConstants.LEVELS_FIELD_NAME)).thenReturn("view");
+        // The default resolver would read this user as Main.Alice, but the security cache reads it as XWiki.Alice.
+        when(currentObject.getStringValue(XWikiConstants.USERS_FIELD_NAME)).thenReturn("Alice");
+        when(currentObject.getStringValue(XWikiConstants.GROUPS_FIELD_NAME)).thenReturn("");
+        SecurityReference expectedSecurityReference = mock(SecurityReference.class);
+        when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
+            .thenReturn(expectedSecurityReference);
+
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+
+        verify(this.securityCache).remove(expectedSecurityReference);
+        verify(this.persistedRulesCache).remove(sourceDocReference);
+        verify(this.actualRulesCache).invalidate(expectedSecurityReference);
+    }
+
+    @Test
+    void onEventWithAsynchronousNotification()
+    {
+        when(this.eventExecutor.isAsynchronous()).thenReturn(true);
+        DocumentReference sourceDocReference = new DocumentReference("foo", "SomeSpace", "SomePage");
+        XWikiDocument source = mock(XWikiDocument.class);
+        when(source.getDocumentReference()).thenReturn(sourceDocReference);
+        XWikiDocument previousDoc = mock(XWikiDocument.class);
+        when(previousDoc.getDocumentReference()).thenReturn(sourceDocReference);
+        when(source.getOriginalDocument()).thenReturn(previousDoc);
+        BaseObject rightObject = mock(BaseObject.class);
+        when(source.getXObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS))
+            .thenReturn(Collections.singletonList(rightObject));
+        DocumentReference userFooRef = new DocumentReference("foo", "XWiki", "Foo");
+        when(this.userReferenceResolver.resolve("Foo", new WikiReference("foo"))).thenReturn(userFooRef);
+        mockRightObject(rightObject, RuleState.ALLOW, Collections.singletonList(Right.VIEW),
+            Pair.of("Foo", Collections.singletonList(userFooRef)), Pair.of("", Collections.emptyList()));
+        SecurityReference expectedSecurityReference = mock(SecurityReference.class);
+        when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
+            .thenReturn(expectedSecurityReference);
+        List<SecurityRuleDiff> diffList = Collections.singletonList(mock(SecurityRuleDiff.class));
+        when(this.securityRuleAbacus.computeRuleDiff(any(), any())).thenReturn(diffList);
+
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+
+        // The caches are invalidated and the update is sent to the other members of the cluster right away, the local
+        // notification is left to the executor.
+        verify(this.securityCache).remove(expectedSecurityReference);
+        ArgumentCaptor<Event> eventCaptor = ArgumentCaptor.forClass(Event.class);
+        verify(this.observationManager).notify(eventCaptor.capture(), any(), any());
+        RemoteRightUpdatedEvent remoteEvent = (RemoteRightUpdatedEvent) eventCaptor.getValue();
+        assertEquals(sourceDocReference, remoteEvent.getEntity());
+        verify(this.observationManager, never()).notify(any(RightUpdatedEvent.class), any(), any());
+        ArgumentCaptor<Runnable> taskCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(this.eventExecutor).execute(eq(sourceDocReference), taskCaptor.capture());
+
+        taskCaptor.getValue().run();
+
         verify(this.observationManager)
             .notify(any(RightUpdatedEvent.class), eq(expectedSecurityReference), eq(diffList));
+        assertEquals(diffList, remoteEvent.getDiffs());
+    }
+
+    @Test
+    void onDeferredEvent()
+    {
+        DocumentReference sourceDocReference = new DocumentReference("foo", "SomeSpace", "SomePage");
+        XWikiDocument source = mock(XWikiDocument.class);
+        when(source.getDocumentReference()).thenReturn(sourceDocReference);
+        XWikiDocument previousDoc = mock(XWikiDocument.class);
+        when(previousDoc.getDocumentReference()).thenReturn(sourceDocReference);
+        when(source.getOriginalDocument()).thenReturn(previousDoc);
+        BaseObject rightObject = mock(BaseObject.class);
+        when(source.getXObjects(DefaultRightsWriter.XWIKI_RIGHTS_CLASS))
+            .thenReturn(Collections.singletonList(rightObject));
+        DocumentReference userFooRef = new DocumentReference("foo", "XWiki", "Foo");
+        when(this.userReferenceResolver.resolve("Foo", new WikiReference("foo"))).thenReturn(userFooRef);
+        XWikiSecurityRule currentRule = mockRightObject(rightObject, RuleState.ALLOW,
+            Collections.singletonList(Right.VIEW), Pair.of("Foo", Collections.singletonList(userFooRef)),
+            Pair.of("", Collections.emptyList()));
+        SecurityReference expectedSecurityReference = mock(SecurityReference.class);
+        when(this.securityReferenceFactory.newEntityReference(sourceDocReference))
+            .thenReturn(expectedSecurityReference);
+        when(this.updateBatcher.defer(sourceDocReference, false, expectedSecurityReference, Collections.emptyList(),
+            Collections.singletonList(currentRule))).thenReturn(true);
+
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+
+        // Only the local notification is deferred, the other members of the cluster invalidate their caches now.
+        verify(this.securityCache).remove(expectedSecurityReference);
+        verify(this.observationManager).notify(any(RemoteRightUpdatedEvent.class), any(), any());
+        verify(this.observationManager, never()).notify(any(RightUpdatedEvent.class), any(), any());
+    }
+
+    @Test
+    void onEventComputesDiffOnDemand()
+    {
+        DocumentReference sourceDocReference = new DocumentReference("foo", "SomeSpace", "SomePage");
+        XWikiDocument source = mock(XWikiDocument.class);
+        when(source.getDocumentReference()).thenReturn(sourceDocReference);
+        XWikiDocument previousDoc = mock(XWikiDocument.class);
+        when(previousDoc.getDocumentReference()).thenReturn(sourceDocReference);
+        when(source.getOriginalDocument()).thenReturn(previousDoc);
+        SecurityRuleDiff diff = mock(SecurityRuleDiff.class);
+        when(this.securityRuleAbacus.computeRuleDiff(any(), any())).thenReturn(Collections.singletonList(diff));
+
+        this.listener.onEvent(mockEvent(sourceDocReference, DefaultRightsWriter.XWIKI_RIGHTS_CLASS), source, null);
+
+        // No listener read the diff yet.
+        ArgumentCaptor<List<SecurityRuleDiff>> diffCaptor = ArgumentCaptor.forClass(List.class);
+        verify(this.observationManager).notify(any(RightUpdatedEvent.class), any(), diffCaptor.capture());
+        verifyNoInteractions(this.securityRuleAbacus);
+
+        List<SecurityRuleDiff> diffs = diffCaptor.getValue();
+        assertEquals(1, diffs.size());
+        assertSame(diff, diffs.get(0));
+        verify(this.securityRuleAbacus).computeRuleDiff(Collections.emptyList(), Collections.emptyList());
+    }
+
+    private XObjectEvent mockEvent(DocumentReference documentReference, EntityReference classReference)
+    {
+        XObjectEvent event = mock(XObjectUpdatedEvent.class);
+        BaseObjectReference baseObjectReference = mock(BaseObjectReference.class);
+        when(event.getReference()).thenReturn(baseObjectReference);
+        DocumentReference xClassReference = mock(DocumentReference.class);
+        when(baseObjectReference.getXClassReference()).thenReturn(xClassReference);
+        when(xClassReference.getLocalDocumentReference()).thenReturn((LocalDocumentReference) classReference);
+        when(baseObjectReference.getDocumentReference()).thenReturn(documentReference);
+        return event;
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link RightsUpdateBatcher}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class RightsUpdateBatcherTest
+{
+    private static final DocumentReference PAGE = new DocumentReference("xwiki", "Space", "Page");
+
+    private static final DocumentReference OTHER_PAGE = new DocumentReference("xwiki", "Space", "OtherPage");
+
+    @MockComponent
+    private RightsUpdateNotifier notifier;
+
+    @MockComponent
+    private ExecutionContextCloner contextCloner;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @InjectMockComponents
+    private RightsUpdateBatcher batcher;
+
+    private final SecurityReference pageSecurityReference = mock(SecurityReference.class);
+
+    private final SecurityReference otherPageSecurityReference = mock(SecurityReference.class);
+
+    private final List<ReadableSecurityRule> rules1 = Collections.singletonList(mock(ReadableSecurityRule.class));
+
+    private final List<ReadableSecurityRule> rules2 = Collections.singletonList(mock(ReadableSecurityRule.class));
+
+    private final List<ReadableSecurityRule> rules3 = Collections.singletonList(mock(ReadableSecurityRule.class));
+
+    @BeforeComponent
+    void configure()
+    {
+        // Only flush the debounced updates when disposed.
+        when(this.configuration.getProperty(RightsUpdateBatcher.DEBOUNCE_DELAY_PROPERTY, 0L)).thenReturn(60000L);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.execution.getContext()).thenReturn(new ExecutionContext());
+        when(this.contextCloner.runIn(any(), any()))
+            .thenAnswer(invocation -> invocation.<Supplier<?>>getArgument(1).get());
+    }
+
+    @Test
+    void bulkUpdates()
+    {
+        assertTrue(this.batcher.beginBulk());
+        assertTrue(this.batcher.beginBulk());
+        assertTrue(this.batcher.defer(PAGE, false, this.pageSecurityReference, this.rules1, this.rules2));
+        assertTrue(this.batcher.defer(OTHER_PAGE, false, this.otherPageSecurityReference, this.rules1, this.rules2));
+        assertTrue(this.batcher.defer(PAGE, false, this.pageSecurityReference, this.rules2, this.rules3));
+        assertTrue(this.batcher.defer(PAGE, true, this.pageSecurityReference, this.rules3, this.rules1));
+
+        // Nested bulk operation.
+        this.batcher.endBulk();
+        verifyNoInteractions(this.notifier);
+
+        this.batcher.endBulk();
+        verify(this.notifier).notifyUpdate(PAGE, this.pageSecurityReference, this.rules1, this.rules3);
+        verify(this.notifier).notifyUpdate(PAGE, this.pageSecurityReference, this.rules3, this.rules1);
+        verify(this.notifier).notifyUpdate(OTHER_PAGE, this.otherPageSecurityReference, this.rules1, this.rules2);
+
+        assertThrows(IllegalStateException.class, this.batcher::endBulk);
+    }
+
+    @Test
+    void bulkWithoutContext()
+    {
+        when(this.execution.getContext()).thenReturn(null);
+
+        assertFalse(this.batcher.beginBulk());
+        assertThrows(IllegalStateException.class, this.batcher::endBulk);
+    }
+
+    @Test
+    void debouncedUpdates() throws Exception
+    {
+        assertTrue(this.batcher.defer(PAGE, false, this.pageSecurityReference, this.rules1, this.rules2));
+        assertTrue(this.batcher.defer(PAGE, false, this.pageSecurityReference, this.rules2, this.rules3));
+        verifyNoInteractions(this.notifier);
+
+        this.batcher.dispose();
+
+        verify(this.notifier).notifyUpdate(PAGE, this.pageSecurityReference, this.rules1, this.rules3);
+    }
+}
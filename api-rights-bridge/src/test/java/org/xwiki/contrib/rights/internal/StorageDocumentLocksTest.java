@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test of {@link StorageDocumentLocks}.
+ *
+ * @version $Id$
+ */
+class StorageDocumentLocksTest
+{
+    private static final DocumentReference WEB_PREFERENCES = new DocumentReference("xwiki", "Space", "WebPreferences");
+
+    private final StorageDocumentLocks locks = new StorageDocumentLocks();
+
+    @Test
+    void lockSameDocument() throws Exception
+    {
+        AtomicBoolean acquired = new AtomicBoolean();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            started.countDown();
+            Lock otherLock = this.locks.lock(WEB_PREFERENCES);
+            acquired.set(true);
+            otherLock.unlock();
+        });
+
+        Lock lock = this.locks.lock(WEB_PREFERENCES);
+        try {
+            // Reentrant
+            Lock sameLock = this.locks.lock(new DocumentReference("xwiki", "Space", "WebPreferences"));
+            assertSame(lock, sameLock);
+            sameLock.unlock();
+
+            writer.start();
+            started.await();
+            // Wait for the writer to be blocked on the lock
+            while (!((ReentrantLock) lock).hasQueuedThreads()) {
+                Thread.sleep(1);
+            }
+            assertFalse(acquired.get());
+        } finally {
+            lock.unlock();
+        }
+
+        writer.join();
+        assertTrue(acquired.get());
+        assertEquals(3, this.locks.getAcquisitionCount());
+        assertEquals(1, this.locks.getContendedAcquisitionCount());
+        assertTrue(this.locks.getMaxWaitTime(TimeUnit.NANOSECONDS) > 0);
+        assertEquals(this.locks.getMaxWaitTime(TimeUnit.NANOSECONDS),
+            this.locks.getTotalWaitTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    void lockOtherDocument()
+    {
+        DocumentReference otherDocument;
+        int index = 0;
+        do {
+            otherDocument = new DocumentReference("xwiki", "Space" + index++, "WebPreferences");
+        } while (this.locks.getStripe(otherDocument) == this.locks.getStripe(WEB_PREFERENCES));
+        DocumentReference finalOtherDocument = otherDocument;
+
+        Lock lock = this.locks.lock(WEB_PREFERENCES);
+        try {
+            // Waiting for the lock of another document could deadlock with a thread locking them the other way.
+            assertThrows(IllegalStateException.class, () -> this.locks.lock(finalOtherDocument));
+        } finally {
+            lock.unlock();
+        }
+
+        this.locks.lock(otherDocument).unlock();
+    }
+}
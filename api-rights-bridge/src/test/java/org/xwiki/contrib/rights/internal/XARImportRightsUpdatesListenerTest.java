@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.rights.BulkRightsUpdates;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.internal.event.XARImportedEvent;
+import com.xpn.xwiki.internal.event.XARImportingEvent;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link XARImportRightsUpdatesListener}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class XARImportRightsUpdatesListenerTest
+{
+    @MockComponent
+    private BulkRightsUpdates bulkRightsUpdates;
+
+    @MockComponent
+    private Execution execution;
+
+    @InjectMockComponents
+    private XARImportRightsUpdatesListener listener;
+
+    private final BulkRightsUpdates.Bulk outerBulk = mock(BulkRightsUpdates.Bulk.class);
+
+    private final BulkRightsUpdates.Bulk innerBulk = mock(BulkRightsUpdates.Bulk.class);
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.execution.getContext()).thenReturn(new ExecutionContext());
+        when(this.bulkRightsUpdates.begin()).thenReturn(this.outerBulk, this.innerBulk);
+    }
+
+    @Test
+    void nestedImports()
+    {
+        this.listener.onEvent(new XARImportingEvent(), null, null);
+        this.listener.onEvent(new XARImportingEvent(), null, null);
+
+        this.listener.onEvent(new XARImportedEvent(), null, null);
+        verify(this.innerBulk).close();
+        verify(this.outerBulk, never()).close();
+
+        this.listener.onEvent(new XARImportedEvent(), null, null);
+        InOrder order = inOrder(this.innerBulk, this.outerBulk);
+        order.verify(this.innerBulk).close();
+        order.verify(this.outerBulk).close();
+    }
+
+    @Test
+    void importedWithoutImporting()
+    {
+        this.listener.onEvent(new XARImportedEvent(), null, null);
+
+        verifyNoInteractions(this.bulkRightsUpdates, this.outerBulk);
+    }
+}
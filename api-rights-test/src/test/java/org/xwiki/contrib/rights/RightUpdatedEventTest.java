@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.rights.internal.DefaultSecurityRuleDiff;
+import org.xwiki.contrib.rights.internal.WritableSecurityRuleImpl;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.observation.event.Event;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+/**
+ * Test of {@link RightUpdatedEvent}.
+ *
+ * @version $Id$
+ */
+class RightUpdatedEventTest
+{
+    private static final WikiReference WIKI = new WikiReference("wiki");
+
+    private static final SpaceReference SPACE = new SpaceReference("Space", WIKI);
+
+    private static final DocumentReference PAGE = new DocumentReference("Page", new SpaceReference("Child", SPACE));
+
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    private static final DocumentReference GROUP = new DocumentReference("wiki", "XWiki", "Group");
+
+    private final List<SecurityRuleDiff> diffs = Collections.singletonList(
+        new DefaultSecurityRuleDiff(SecurityRuleDiff.ChangeType.RULE_ADDED, null,
+            new WritableSecurityRuleImpl(Collections.singletonList(GROUP), Collections.emptyList(),
+                new RightSet(Right.EDIT), RuleState.ALLOW),
+            Collections.emptySet()));
+
+    @Test
+    void matchesAll()
+    {
+        RightUpdatedEvent event = new RightUpdatedEvent();
+
+        assertTrue(event.matches(new RightUpdatedEvent()));
+        assertTrue(event.matches(new RightUpdatedEvent(PAGE, this.diffs)));
+        assertFalse(event.matches(mock(Event.class)));
+    }
+
+    @Test
+    void matchesSubtree()
+    {
+        assertTrue(new RightUpdatedEvent(SPACE, null, null).matches(new RightUpdatedEvent(PAGE, this.diffs)));
+        assertTrue(new RightUpdatedEvent(SPACE, null, null).matches(new RightUpdatedEvent(SPACE, this.diffs)));
+        assertTrue(new RightUpdatedEvent(WIKI, null, null).matches(new RightUpdatedEvent(PAGE, this.diffs)));
+        assertFalse(new RightUpdatedEvent(PAGE, null, null).matches(new RightUpdatedEvent(SPACE, this.diffs)));
+        assertFalse(new RightUpdatedEvent(new WikiReference("other"), null, null)
+            .matches(new RightUpdatedEvent(PAGE, this.diffs)));
+        // Events fired without entity don't match entity criteria.
+        assertFalse(new RightUpdatedEvent(WIKI, null, null).matches(new RightUpdatedEvent()));
+    }
+
+    @Test
+    void matchesSubjectAndRight()
+    {
+        RightUpdatedEvent update = new RightUpdatedEvent(PAGE, this.diffs);
+
+        assertTrue(new RightUpdatedEvent(null, GROUP, null).matches(update));
+        assertTrue(new RightUpdatedEvent(null, null, Right.EDIT).matches(update));
+        assertTrue(new RightUpdatedEvent(SPACE, GROUP, Right.EDIT).matches(update));
+        assertFalse(new RightUpdatedEvent(null, USER, null).matches(update));
+        assertFalse(new RightUpdatedEvent(null, GROUP, Right.VIEW).matches(update));
+    }
+
+    @Test
+    void matchesEntityBeforeReadingDiffs()
+    {
+        @SuppressWarnings("unchecked")
+        List<SecurityRuleDiff> lazyDiffs = mock(List.class);
+
+        assertFalse(new RightUpdatedEvent(SPACE, GROUP, null)
+            .matches(new RightUpdatedEvent(new WikiReference("other"), lazyDiffs)));
+        verifyNoInteractions(lazyDiffs);
+    }
+}
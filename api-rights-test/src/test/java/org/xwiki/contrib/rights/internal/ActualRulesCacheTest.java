@@ -0,0 +1,223 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.rights.WritableSecurityRule;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.security.DefaultSecurityReferenceFactory;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.security.internal.DefaultXWikiBridge;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import com.xpn.xwiki.test.junit5.mockito.OldcoreTest;
+import com.xpn.xwiki.test.reference.ReferenceComponentList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({
+    DefaultXWikiBridge.class,
+    DefaultSecurityReferenceFactory.class,
+})
+@ReferenceComponentList
+@OldcoreTest
+class ActualRulesCacheTest
+{
+    private static final WikiReference MAIN_WIKI = new WikiReference("xwiki");
+
+    private static final SpaceReference SPACE_A = new SpaceReference("A", MAIN_WIKI);
+
+    private static final SpaceReference SPACE_AB = new SpaceReference("B", SPACE_A);
+
+    private static final SpaceReference SPACE_C = new SpaceReference("C", MAIN_WIKI);
+
+    private static final DocumentReference PAGE_A = new DocumentReference("Page", SPACE_A);
+
+    private static final DocumentReference PAGE_AB = new DocumentReference("Page", SPACE_AB);
+
+    private static final DocumentReference PAGE_C = new DocumentReference("Page", SPACE_C);
+
+    private static final DocumentReference SUBWIKI_PAGE = new DocumentReference("subwiki", "S", "Page");
+
+    @InjectMockComponents
+    private ActualRulesCache cache;
+
+    @InjectMockComponents
+    private DefaultSecurityReferenceFactory securityReferenceFactory;
+
+    @Test
+    void invalidateSpace()
+    {
+        cacheRules(MAIN_WIKI, SPACE_A, PAGE_A, SPACE_AB, PAGE_AB, SPACE_C, PAGE_C, SUBWIKI_PAGE);
+        assertEquals(8, this.cache.size());
+
+        this.cache.invalidate(getSecurityReference(SPACE_A));
+
+        // Only the subtree of the space is invalidated.
+        assertEquals(4, this.cache.size());
+        assertNull(this.cache.get(SPACE_A));
+        assertNull(this.cache.get(PAGE_A));
+        assertNull(this.cache.get(SPACE_AB));
+        assertNull(this.cache.get(PAGE_AB));
+        assertNotNull(this.cache.get(MAIN_WIKI));
+        assertNotNull(this.cache.get(SPACE_C));
+        assertNotNull(this.cache.get(PAGE_C));
+        assertNotNull(this.cache.get(SUBWIKI_PAGE));
+    }
+
+    @Test
+    void invalidateDocument()
+    {
+        // A document and a nested space can have the same name.
+        DocumentReference pageB = new DocumentReference("B", SPACE_A);
+        cacheRules(SPACE_A, pageB, SPACE_AB, PAGE_AB);
+
+        this.cache.invalidate(getSecurityReference(pageB));
+
+        assertEquals(3, this.cache.size());
+        assertNull(this.cache.get(pageB));
+        assertNotNull(this.cache.get(SPACE_AB));
+        assertNotNull(this.cache.get(PAGE_AB));
+    }
+
+    @Test
+    void invalidateWiki()
+    {
+        cacheRules(MAIN_WIKI, PAGE_A, SUBWIKI_PAGE);
+
+        // The rules of a sub wiki are not inherited by the main wiki.
+        this.cache.invalidate(getSecurityReference(new WikiReference("subwiki")));
+        assertEquals(2, this.cache.size());
+        assertNull(this.cache.get(SUBWIKI_PAGE));
+
+        // The rules of the main wiki are inherited by all the wikis.
+        cacheRules(SUBWIKI_PAGE);
+        this.cache.invalidate(getSecurityReference(MAIN_WIKI));
+        assertEquals(0, this.cache.size());
+        assertNull(this.cache.get(MAIN_WIKI));
+        assertNull(this.cache.get(PAGE_A));
+        assertNull(this.cache.get(SUBWIKI_PAGE));
+    }
+
+    @Test
+    void putAfterInvalidation()
+    {
+        long version = this.cache.getVersion(PAGE_AB);
+        this.cache.invalidate(getSecurityReference(SPACE_A));
+
+        // The rules were computed before the invalidation of an ancestor, so they may be outdated.
+        this.cache.put(PAGE_AB, Collections.singletonList(createRule()), version);
+
+        assertNull(this.cache.get(PAGE_AB));
+        assertEquals(0, this.cache.size());
+    }
+
+    @Test
+    void putAfterInvalidationOfAnotherBranch()
+    {
+        cacheRules(SPACE_C);
+        long version = this.cache.getVersion(PAGE_A);
+        this.cache.invalidate(getSecurityReference(SPACE_C));
+        this.cache.invalidate(getSecurityReference(PAGE_AB));
+
+        // The invalidated entities are not ancestors of the page.
+        this.cache.put(PAGE_A, Collections.singletonList(createRule()), version);
+
+        assertNotNull(this.cache.get(PAGE_A));
+        assertEquals(1, this.cache.size());
+    }
+
+    @Test
+    void evictLeastRecentlyUsed()
+    {
+        cacheRules(PAGE_A, PAGE_C);
+        long staleVersion = this.cache.getVersion(PAGE_C);
+        this.cache.invalidate(getSecurityReference(PAGE_C));
+        this.cache.get(PAGE_A);
+
+        // Fill the tree with one node too many: the wiki, the spaces A and C, the two pages and the filler space.
+        SpaceReference fillerSpace = new SpaceReference("Filler", MAIN_WIKI);
+        int fillerCount = ActualRulesCache.MAX_NODES - 5;
+        for (int i = 0; i < fillerCount; i++) {
+            cacheRules(new DocumentReference("Page" + i, fillerSpace));
+        }
+
+        // Only the least recently used leaf, the invalidated page, is evicted.
+        assertEquals(ActualRulesCache.MAX_NODES, this.cache.getNodeCount());
+        assertEquals(fillerCount + 1, this.cache.size());
+        assertNotNull(this.cache.get(PAGE_A));
+
+        // The stamp of the evicted page is kept by its space.
+        this.cache.put(PAGE_C, Collections.singletonList(createRule()), staleVersion);
+        assertNull(this.cache.get(PAGE_C));
+    }
+
+    @Test
+    void getReturnsCopies()
+    {
+        cacheRules(PAGE_A);
+
+        List<ReadableSecurityRule> rules = this.cache.get(PAGE_A);
+        ((WritableSecurityRule) rules.get(0)).getRights().add(Right.DELETE);
+        rules.clear();
+
+        rules = this.cache.get(PAGE_A);
+        assertEquals(1, rules.size());
+        assertEquals(new RightSet(Right.VIEW), rules.get(0).getRights());
+    }
+
+    private void cacheRules(EntityReference... references)
+    {
+        for (EntityReference reference : references) {
+            this.cache.put(getSecurityReference(reference), Collections.singletonList(createRule()),
+                this.cache.getVersion(reference));
+        }
+    }
+
+    private SecurityReference getSecurityReference(EntityReference reference)
+    {
+        return this.securityReferenceFactory.newEntityReference(reference);
+    }
+
+    private ReadableSecurityRule createRule()
+    {
+        return new WritableSecurityRuleImpl(Collections.emptyList(),
+            Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Admin")), new RightSet(Right.VIEW),
+            RuleState.ALLOW);
+    }
+}
@@ -52,7 +52,11 @@ import com.xpn.xwiki.test.reference.ReferenceComponentList;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -80,6 +84,9 @@ public class DefaultRightsReaderTest extends AbstractRightsTest
     @InjectMockComponents
     private DefaultSecurityReferenceFactory securityReferenceFactory;
 
+    @MockComponent
+    private PersistedRulesCache persistedRulesCache;
+
     /**
      * Test that if we have a document with no rules, we get an empty list of rules
      */
@@ -1573,6 +1580,45 @@ public class DefaultRightsReaderTest extends AbstractRightsTest
         );
     }
 
+    /**
+     * Test that the persisted rules read from the wiki are cached, with the version of the cache before reading them.
+     */
+    @Test
+    void getRules_CachesPersistedRules() throws Exception
+    {
+        SpaceReference testedSpaceReference = new SpaceReference("xwiki", "Space");
+        ReadableSecurityRule persistedRule = new XWikiSecurityRule(new RightSet(Right.VIEW), RuleState.ALLOW,
+            Arrays.asList(new DocumentReference("xwiki", "XWiki", "Admin")), Collections.emptyList(), true);
+        this.mockEntityReferenceRules(testedSpaceReference, Arrays.asList(persistedRule,
+            new XWikiSecurityRule(new RightSet(Right.EDIT), RuleState.ALLOW,
+                Arrays.asList(new DocumentReference("xwiki", "XWiki", "Creator")), Collections.emptyList(), false)));
+        when(this.persistedRulesCache.getVersion(testedSpaceReference)).thenReturn(5L);
+
+        assertEquals(Collections.singletonList(persistedRule),
+            this.rightsReader.getRules(testedSpaceReference, false));
+        verify(this.persistedRulesCache).put(testedSpaceReference, Collections.singletonList(persistedRule), 5L);
+
+        // The implied rules are not cached.
+        assertEquals(2, this.rightsReader.getRules(testedSpaceReference, true).size());
+        verify(this.persistedRulesCache).put(any(), any(), anyLong());
+    }
+
+    /**
+     * Test that the cached persisted rules are returned without reading the wiki.
+     */
+    @Test
+    void getRules_CachedPersistedRules() throws Exception
+    {
+        DocumentReference testedDocumentReference = new DocumentReference("xwiki", "Space", "Page");
+        ReadableSecurityRule cachedRule = new XWikiSecurityRule(new RightSet(Right.VIEW), RuleState.DENY,
+            Arrays.asList(new DocumentReference("xwiki", "XWiki", "Admin")), Collections.emptyList(), true);
+        when(this.persistedRulesCache.get(testedDocumentReference))
+            .thenReturn(new ArrayList<>(Collections.singletonList(cachedRule)));
+
+        assertEquals(Collections.singletonList(cachedRule), this.rightsReader.getRules(testedDocumentReference, false));
+        verify(this.securityEntryReader, never()).read(any());
+    }
+
     private void mockEntityReferenceRules(EntityReference entityReference, Collection<ReadableSecurityRule> rules)
     {
         SecurityReference securityReference = this.securityReferenceFactory.newEntityReference(entityReference);
@@ -22,6 +22,8 @@ package org.xwiki.contrib.rights.internal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,11 +31,16 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.Test;
 import org.xwiki.contrib.rights.RightsReader;
 import org.xwiki.contrib.rights.SecurityRuleDiff;
+import org.xwiki.contrib.rights.SecurityRuleOrdering;
+import org.xwiki.contrib.rights.SortableSecurityRule;
 import org.xwiki.model.internal.DefaultModelConfiguration;
 import org.xwiki.model.internal.reference.DefaultEntityReferenceProvider;
 import org.xwiki.model.internal.reference.DefaultStringEntityReferenceSerializer;
 import org.xwiki.model.internal.reference.DefaultSymbolScheme;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.security.authorization.ReadableSecurityRule;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.security.authorization.RightSet;
@@ -47,8 +54,10 @@ import com.xpn.xwiki.internal.model.reference.CurrentMixedEntityReferenceProvide
 import com.xpn.xwiki.internal.model.reference.CurrentMixedStringDocumentReferenceResolver;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -713,4 +722,276 @@ public class DefaultSecurityRuleAbacusTest extends AbstractRightsTest
             Arrays.asList(Right.VIEW), RuleState.ALLOW);
         assertNull(organizedRules.get(guestDocumentReference).getRight());
     }
+
+    /**
+     * Tests that the fingerprint does not depend on the order of the rules or on the way subjects are grouped, but
+     * changes as soon as the granted rights change.
+     */
+    @Test
+    void computeFingerprint()
+    {
+        DocumentReference adminGroup = new DocumentReference("xwiki", "XWiki", "XWikiAdminGroup");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference alice = new DocumentReference("xwiki", "XWiki", "Alice");
+
+        List<ReadableSecurityRule> groupedRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup, allGroup), Arrays.asList(alice),
+                new RightSet(Right.VIEW), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.EDIT), RuleState.ALLOW));
+        List<ReadableSecurityRule> splitRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(alice), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Collections.emptyList(), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.EDIT, Right.VIEW), RuleState.ALLOW));
+        List<ReadableSecurityRule> deniedRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup, allGroup), Arrays.asList(alice),
+                new RightSet(Right.VIEW), RuleState.DENY),
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.EDIT), RuleState.ALLOW));
+
+        String fingerprint = this.securityRuleAbacus.computeFingerprint(groupedRules);
+        assertEquals(32, fingerprint.length());
+        assertEquals(fingerprint, this.securityRuleAbacus.computeFingerprint(splitRules));
+        assertNotEquals(fingerprint, this.securityRuleAbacus.computeFingerprint(deniedRules));
+        assertNotEquals(fingerprint, this.securityRuleAbacus.computeFingerprint(Collections.emptyList()));
+    }
+
+    /**
+     * Tests that the subtree diff reports changed, removed and added entities, and skips entities with the same
+     * fingerprint in both snapshots.
+     */
+    @Test
+    void computeSubtreeRuleDiff() throws Exception
+    {
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        SpaceReference space = new SpaceReference("Space", new WikiReference("xwiki"));
+        DocumentReference unchangedPage = new DocumentReference("Unchanged", space);
+        DocumentReference removedPage = new DocumentReference("Removed", space);
+        DocumentReference addedPage = new DocumentReference("Added", space);
+
+        List<ReadableSecurityRule> viewRules = Arrays.asList(new WritableSecurityRuleImpl(Arrays.asList(allGroup),
+            Collections.emptyList(), new RightSet(Right.VIEW), RuleState.ALLOW));
+        List<ReadableSecurityRule> editRules = Arrays.asList(new WritableSecurityRuleImpl(Arrays.asList(allGroup),
+            Collections.emptyList(), new RightSet(Right.EDIT), RuleState.ALLOW));
+
+        Map<EntityReference, List<ReadableSecurityRule>> previousRules = new HashMap<>();
+        previousRules.put(space, viewRules);
+        previousRules.put(unchangedPage, viewRules);
+        previousRules.put(removedPage, viewRules);
+        Map<EntityReference, List<ReadableSecurityRule>> currentRules = new HashMap<>();
+        currentRules.put(space, editRules);
+        // Different rules but same stored fingerprint: the entity must be skipped without comparing the rules
+        currentRules.put(unchangedPage, editRules);
+        currentRules.put(addedPage, editRules);
+
+        Map<EntityReference, List<SecurityRuleDiff>> diffs = new LinkedHashMap<>();
+        this.securityRuleAbacus.computeSubtreeRuleDiff(
+            new MapRightsSnapshot(previousRules, Collections.singletonMap(unchangedPage, "fingerprint")),
+            new MapRightsSnapshot(currentRules, Collections.singletonMap(unchangedPage, "fingerprint")),
+            diffs::put);
+
+        assertEquals(3, diffs.size());
+        assertEquals(1, diffs.get(space).size());
+        assertEquals(SecurityRuleDiff.ChangeType.RULE_UPDATED, diffs.get(space).get(0).getChangeType());
+        assertEquals(SecurityRuleDiff.ChangeType.RULE_DELETED, diffs.get(removedPage).get(0).getChangeType());
+        assertEquals(SecurityRuleDiff.ChangeType.RULE_ADDED, diffs.get(addedPage).get(0).getChangeType());
+    }
+
+    /**
+     * Tests that subjects sharing the same rights and state are packed in a single rule, without changing the
+     * normalized rules.
+     */
+    @Test
+    void packRules()
+    {
+        DocumentReference adminGroup = new DocumentReference("xwiki", "XWiki", "XWikiAdminGroup");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference alice = new DocumentReference("xwiki", "XWiki", "Alice");
+        DocumentReference bob = new DocumentReference("xwiki", "XWiki", "Bob");
+
+        List<ReadableSecurityRule> rules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Arrays.asList(alice), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(bob), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(bob), new RightSet(Right.EDIT),
+                RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(alice), new RightSet(Right.DELETE),
+                RuleState.DENY));
+
+        List<ReadableSecurityRule> packedRules = this.securityRuleAbacus.packRules(rules);
+
+        assertEquals(3, packedRules.size());
+        for (ReadableSecurityRule packedRule : packedRules) {
+            if (packedRule.getState() == RuleState.DENY) {
+                assertEquals(Arrays.asList(alice), packedRule.getUsers());
+                assertEquals(new RightSet(Right.DELETE), packedRule.getRights());
+            } else if (packedRule.getRights().contains(Right.EDIT)) {
+                assertEquals(Arrays.asList(adminGroup), packedRule.getGroups());
+                assertEquals(Arrays.asList(bob), packedRule.getUsers());
+            } else {
+                assertEquals(Arrays.asList(allGroup), packedRule.getGroups());
+                assertEquals(Arrays.asList(alice), packedRule.getUsers());
+            }
+        }
+        assertEquals(this.securityRuleAbacus.computeFingerprint(rules),
+            this.securityRuleAbacus.computeFingerprint(packedRules));
+    }
+
+    /**
+     * Tests that the sort keys don't depend on the order of the subjects, that rules are sorted in the canonical order
+     * whatever their initial order, and that the diffs are sorted by the rules they touch.
+     */
+    @Test
+    void sortRules()
+    {
+        DocumentReference adminGroup = new DocumentReference("xwiki", "XWiki", "XWikiAdminGroup");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference alice = new DocumentReference("xwiki", "XWiki", "Alice");
+
+        ReadableSecurityRule allowGroups = new WritableSecurityRuleImpl(Arrays.asList(allGroup, adminGroup),
+            Collections.emptyList(), new RightSet(Right.VIEW), RuleState.ALLOW);
+        ReadableSecurityRule allowGroupsReordered = new WritableSecurityRuleImpl(Arrays.asList(adminGroup, allGroup),
+            Collections.emptyList(), new RightSet(Right.VIEW), RuleState.ALLOW);
+        ReadableSecurityRule allowAlice = new WritableSecurityRuleImpl(Collections.emptyList(),
+            Arrays.asList(alice), new RightSet(Right.EDIT), RuleState.ALLOW);
+        ReadableSecurityRule denyAlice = new WritableSecurityRuleImpl(Collections.emptyList(),
+            Arrays.asList(alice), new RightSet(Right.DELETE), RuleState.DENY);
+
+        assertEquals(SecurityRuleOrdering.getSortKey(allowGroups),
+            SecurityRuleOrdering.getSortKey(allowGroupsReordered));
+        assertEquals(new SortableSecurityRule<>(allowGroups), new SortableSecurityRule<>(allowGroupsReordered));
+
+        // Deny comes before allow, and for the same state rules without users come first.
+        List<ReadableSecurityRule> expected = Arrays.asList(denyAlice, allowGroups, allowAlice);
+        assertEquals(expected, SecurityRuleOrdering.sort(Arrays.asList(allowAlice, denyAlice, allowGroups)));
+        assertEquals(expected, SecurityRuleOrdering.sort(Arrays.asList(allowGroups, allowAlice, denyAlice)));
+
+        List<SecurityRuleDiff> diffs = this.securityRuleAbacus.computeRuleDiff(
+            Arrays.asList(allowAlice, allowGroups), Arrays.asList(denyAlice, allowGroups));
+        List<SecurityRuleDiff> sortedDiffs = SecurityRuleOrdering.sortDiffs(diffs);
+        assertEquals(2, sortedDiffs.size());
+        assertEquals(SecurityRuleDiff.ChangeType.RULE_ADDED, sortedDiffs.get(0).getChangeType());
+        assertEquals(denyAlice, sortedDiffs.get(0).getCurrentRule());
+        assertEquals(SecurityRuleDiff.ChangeType.RULE_DELETED, sortedDiffs.get(1).getChangeType());
+        assertEquals(allowAlice, sortedDiffs.get(1).getPreviousRule());
+        List<SecurityRuleDiff> reversedDiffs = new ArrayList<>(diffs);
+        Collections.reverse(reversedDiffs);
+        assertEquals(sortedDiffs, SecurityRuleOrdering.sortDiffs(reversedDiffs));
+    }
+
+    @Test
+    void getRedundantRules()
+    {
+        DocumentReference adminGroup = new DocumentReference("xwiki", "XWiki", "XWikiAdminGroup");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference alice = new DocumentReference("xwiki", "XWiki", "Alice");
+        DocumentReference bob = new DocumentReference("xwiki", "XWiki", "Bob");
+
+        List<ReadableSecurityRule> inheritedRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Collections.emptyList(), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(alice), new RightSet(Right.DELETE),
+                RuleState.DENY),
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.ADMIN), RuleState.ALLOW));
+
+        List<ReadableSecurityRule> rules = Arrays.asList(
+            // Same allow as the inherited one: the inherited rules are hidden by the exact same rules
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Collections.emptyList(), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            // Deny already inherited
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(alice), new RightSet(Right.DELETE),
+                RuleState.DENY),
+            // Admin cannot be overridden, so an allow that is already inherited is redundant
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Arrays.asList(bob),
+                new RightSet(Right.ADMIN, Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(bob), new RightSet(Right.COMMENT),
+                RuleState.DENY));
+
+        List<ReadableSecurityRule> expectedRedundantRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Collections.emptyList(), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(alice), new RightSet(Right.DELETE),
+                RuleState.DENY),
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.ADMIN), RuleState.ALLOW));
+        List<ReadableSecurityRule> expectedRemainingRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(bob),
+                new RightSet(Right.ADMIN, Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(bob), new RightSet(Right.COMMENT),
+                RuleState.DENY));
+
+        assertEquals(SecurityRuleOrdering.sort(expectedRedundantRules),
+            SecurityRuleOrdering.sort(this.securityRuleAbacus.getRedundantRules(rules, inheritedRules)));
+        assertEquals(SecurityRuleOrdering.sort(expectedRemainingRules),
+            SecurityRuleOrdering.sort(this.securityRuleAbacus.removeRedundantRules(rules, inheritedRules)));
+
+        // Allowing view to one more subject hides the inherited rules, so none of the view rules is redundant anymore
+        List<ReadableSecurityRule> widerRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Arrays.asList(bob), new RightSet(Right.VIEW),
+                RuleState.ALLOW));
+        assertTrue(this.securityRuleAbacus.getRedundantRules(widerRules, inheritedRules).isEmpty());
+        assertEquals(2, this.securityRuleAbacus.removeRedundantRules(widerRules, inheritedRules).size());
+        assertTrue(this.securityRuleAbacus.getRedundantRules(widerRules, Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    void applyRuleDiff()
+    {
+        DocumentReference adminGroup = new DocumentReference("xwiki", "XWiki", "XWikiAdminGroup");
+        DocumentReference allGroup = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+        DocumentReference alice = new DocumentReference("xwiki", "XWiki", "Alice");
+        DocumentReference bob = new DocumentReference("xwiki", "XWiki", "Bob");
+        DocumentReference carol = new DocumentReference("xwiki", "XWiki", "Carol");
+
+        ReadableSecurityRule groupsRule = new WritableSecurityRuleImpl(Arrays.asList(adminGroup, allGroup),
+            Collections.emptyList(), new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW);
+        ReadableSecurityRule aliceRule = new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(alice),
+            new RightSet(Right.COMMENT), RuleState.DENY);
+        List<ReadableSecurityRule> readRules = Arrays.asList(groupsRule, aliceRule);
+
+        // An editor removes edit from the all group and allows view to Bob
+        List<ReadableSecurityRule> editedRules = Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Collections.emptyList(), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            aliceRule,
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(bob), new RightSet(Right.VIEW),
+                RuleState.ALLOW));
+        List<SecurityRuleDiff> diffs = this.securityRuleAbacus.computeRuleDiff(readRules, editedRules);
+
+        // Meanwhile, someone else allowed edit to Carol
+        ReadableSecurityRule carolRule = new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(carol),
+            new RightSet(Right.EDIT), RuleState.ALLOW);
+        List<ReadableSecurityRule> storedRules = Arrays.asList(groupsRule, aliceRule, carolRule);
+
+        List<ReadableSecurityRule> patchedRules = this.securityRuleAbacus.applyRuleDiff(storedRules, diffs);
+
+        assertEquals(Arrays.asList(
+            new WritableSecurityRuleImpl(Arrays.asList(adminGroup), Collections.emptyList(),
+                new RightSet(Right.VIEW, Right.EDIT), RuleState.ALLOW),
+            new WritableSecurityRuleImpl(Arrays.asList(allGroup), Collections.emptyList(), new RightSet(Right.VIEW),
+                RuleState.ALLOW),
+            aliceRule,
+            carolRule,
+            new WritableSecurityRuleImpl(Collections.emptyList(), Arrays.asList(bob), new RightSet(Right.VIEW),
+                RuleState.ALLOW)), patchedRules);
+        // The untouched rules are kept as they are
+        assertSame(aliceRule, patchedRules.get(2));
+        assertSame(carolRule, patchedRules.get(3));
+
+        // Applying the same diffs again doesn't change anything
+        assertEquals(this.securityRuleAbacus.computeFingerprint(patchedRules), this.securityRuleAbacus
+            .computeFingerprint(this.securityRuleAbacus.applyRuleDiff(patchedRules, diffs)));
+        assertEquals(storedRules, this.securityRuleAbacus.applyRuleDiff(storedRules, Collections.emptyList()));
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.rights.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.security.authorization.ReadableSecurityRule;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.RightSet;
+import org.xwiki.security.authorization.RuleState;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id$
+ */
+@ComponentTest
+class PersistedRulesCacheTest
+{
+    private static final SpaceReference SPACE = new SpaceReference("xwiki", "Space");
+
+    private static final DocumentReference PAGE = new DocumentReference("Page", SPACE);
+
+    private static final List<ReadableSecurityRule> RULES = Collections.singletonList(
+        new WritableSecurityRuleImpl(Collections.emptyList(),
+            Collections.singletonList(new DocumentReference("xwiki", "XWiki", "Admin")), new RightSet(Right.VIEW),
+            RuleState.ALLOW));
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @InjectMockComponents
+    private PersistedRulesCache cache;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws Exception
+    {
+        Map<String, List<ReadableSecurityRule>> entries = new HashMap<>();
+        Cache<List<ReadableSecurityRule>> platformCache = mock(Cache.class);
+        when(platformCache.get(any())).thenAnswer(invocation -> entries.get(invocation.getArgument(0)));
+        doAnswer(invocation -> entries.put(invocation.getArgument(0), invocation.getArgument(1))).when(platformCache)
+            .set(any(), any());
+        doAnswer(invocation -> entries.remove(invocation.<String>getArgument(0))).when(platformCache).remove(any());
+        when(this.cacheManager.<List<ReadableSecurityRule>>createNewCache(any(CacheConfiguration.class)))
+            .thenReturn(platformCache);
+        when(this.serializer.serialize(any())).thenAnswer(invocation -> invocation.getArgument(0).toString());
+        this.cache.initialize();
+    }
+
+    @Test
+    void putAfterRemove()
+    {
+        long version = this.cache.getVersion(PAGE);
+        this.cache.remove(PAGE);
+
+        // The rules were read before the invalidation, so they may be outdated.
+        this.cache.put(PAGE, RULES, version);
+        assertNull(this.cache.get(PAGE));
+
+        this.cache.put(PAGE, RULES, this.cache.getVersion(PAGE));
+        assertEquals(RULES, this.cache.get(PAGE));
+    }
+
+    @Test
+    void update()
+    {
+        this.cache.put(PAGE, Collections.emptyList(), this.cache.getVersion(PAGE));
+        long readVersion = this.cache.getVersion(PAGE);
+
+        long beginVersion = this.cache.beginUpdate(PAGE);
+        // The invalidation caused by the save of the updater is ignored.
+        this.cache.remove(PAGE);
+        this.cache.endUpdate(PAGE, RULES, beginVersion);
+        assertEquals(RULES, this.cache.get(PAGE));
+
+        // The rules read by others before the update are not cached.
+        this.cache.put(PAGE, Collections.emptyList(), readVersion);
+        assertEquals(RULES, this.cache.get(PAGE));
+    }
+
+    @Test
+    void updateAfterConcurrentInvalidation() throws Exception
+    {
+        this.cache.put(PAGE, Collections.emptyList(), this.cache.getVersion(PAGE));
+
+        long beginVersion = this.cache.beginUpdate(PAGE);
+        // Another thread saved the rules in the meantime.
+        Thread thread = new Thread(() -> this.cache.remove(PAGE));
+        thread.start();
+        thread.join();
+        this.cache.endUpdate(PAGE, RULES, beginVersion);
+
+        assertNull(this.cache.get(PAGE));
+    }
+
+    @Test
+    void failedUpdate()
+    {
+        this.cache.put(PAGE, Collections.emptyList(), this.cache.getVersion(PAGE));
+
+        this.cache.endUpdate(PAGE, null, this.cache.beginUpdate(PAGE));
+
+        assertNull(this.cache.get(PAGE));
+        // The current thread invalidates the rules again once the update ended.
+        this.cache.put(PAGE, RULES, this.cache.getVersion(PAGE));
+        this.cache.remove(PAGE);
+        assertNull(this.cache.get(PAGE));
+    }
+
+    @Test
+    void modifyReturnedRules()
+    {
+        this.cache.put(PAGE, RULES, this.cache.getVersion(PAGE));
+
+        List<ReadableSecurityRule> rules = this.cache.get(PAGE);
+        rules.get(0).getRights().add(Right.EDIT);
+        rules.get(0).getUsers().clear();
+        rules.clear();
+
+        assertEquals(RULES, this.cache.get(PAGE));
+    }
+
+    @Test
+    void removeOtherEntity()
+    {
+        // The versions are kept per stripe of entities, so look for an entity in another stripe than the page.
+        EntityReference otherEntity;
+        long pageVersion;
+        int index = 0;
+        do {
+            otherEntity = new DocumentReference("Other" + index++, SPACE);
+            pageVersion = this.cache.getVersion(PAGE);
+            this.cache.remove(otherEntity);
+        } while (this.cache.getVersion(PAGE) != pageVersion);
+
+        long version = this.cache.getVersion(PAGE);
+        this.cache.remove(otherEntity);
+        this.cache.put(PAGE, RULES, version);
+
+        assertEquals(RULES, this.cache.get(PAGE));
+    }
+}